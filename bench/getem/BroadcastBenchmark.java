@@ -0,0 +1,184 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package getem;
+
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.lang.management.*;
+
+
+/**
+ * The BroadcastBenchmark compares the server CPU cost of sending one PLAYERS_FRAME to every
+ * client by re-encoding the frame for each client, as the server used to, against the
+ * encode-once broadcast path in the SendStage. The send stage is driven directly on the
+ * benchmark thread so only the encoding and sending is measured.
+ *
+ * Frames are sent over the loopback interface to a socket that is never read, so the cost
+ * of the sends is included. Results are thread CPU time per tick in microseconds.
+ *
+ * @author			Bryan Nielsen
+ */
+class BroadcastBenchmark {
+	static final int WARMUP_TICKS = 2000;
+	static final int MEASURE_TICKS = 2000;
+	
+	
+	public static void main(String[] args) throws Exception {
+		int[] playerCounts = new int[] { 2, 4, 8, 16, 32, 64 };
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		
+		// a communication engine without a game engine, we only use its send stage and message building
+		CommunicationEngine commEngine = new CommunicationEngine(null);
+		SendStage sendStage = commEngine.sendStage;
+		sendStage.channel = DatagramChannel.open();
+		sendStage.channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		
+		// sink socket the frames are sent to
+		DatagramSocket sinkSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		InetSocketAddress sinkAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), sinkSocket.getLocalPort());
+		
+		System.out.println("players  codec     per-client us/tick  broadcast us/tick  encode-once us/tick");
+		
+		for (MessageCodec codec : new MessageCodec[] { commEngine.jsonCodec, commEngine.binaryCodec }) {
+			for (int playerCount : playerCounts) {
+				GameRoom room = buildRoom(playerCount, codec, sinkAddress);
+				List<Player> players = room.playerList;
+				GameMessage msg = room.buildPlayersMessage(GameMessage.MessageTypes.PLAYERS_FRAME);
+				
+				double perClient = measure(threadBean, new PerClientTick(sendStage, msg, players));
+				double broadcast = measure(threadBean, new BroadcastTick(sendStage, msg, players));
+				double encodeOnce = measure(threadBean, new EncodeTick(codec, msg));
+				
+				System.out.println(String.format("%7d  %-8s  %18.2f  %17.2f  %19.2f", playerCount, codec.getName(), perClient, broadcast, encodeOnce));
+			}
+		}
+		
+		sendStage.channel.close();
+		sinkSocket.close();
+	}
+	
+	
+	// create a room of players with the remote players sending to the sink address, player 0 is it
+	static GameRoom buildRoom(int playerCount, MessageCodec codec, InetSocketAddress sinkAddress) {
+		GameRoom room = new GameRoom("bench", playerCount, 1);
+		
+		for (int i = 0; i < playerCount; i++) {
+			Player player = room.addPlayer("player" + i, null);
+			
+			// player 0 is the server's own player and has no address, every client sends to the one
+			// sink address so the addresses are set after the players are added
+			if (i > 0) {
+				player.address = sinkAddress;
+				player.codec = codec;
+			}
+		}
+		
+		return room;
+	}
+	
+	
+	// run the tick for the warm up and then return the mean CPU microseconds per measured tick
+	static double measure(ThreadMXBean threadBean, Runnable tick) {
+		for (int i = 0; i < WARMUP_TICKS; i++) tick.run();
+		
+		long start = threadBean.getCurrentThreadCpuTime();
+		for (int i = 0; i < MEASURE_TICKS; i++) tick.run();
+		long end = threadBean.getCurrentThreadCpuTime();
+		
+		return (end - start) / 1000.0 / MEASURE_TICKS;
+	}
+	
+	
+	// the old server path, encode the frame again for every client
+	static class PerClientTick implements Runnable {
+		SendStage sendStage;
+		GameMessage msg;
+		List<Player> players;
+		ByteBuffer buffer = ByteBuffer.allocate(65507);
+		
+		PerClientTick(SendStage ss, GameMessage m, List<Player> p) {
+			sendStage = ss;
+			msg = m;
+			players = p;
+		}
+		
+		public void run() {
+			for (Player next : players) {
+				if (next.address == null) continue;
+				
+				buffer.clear();
+				next.codec.encode(msg, buffer);
+				buffer.flip();
+				
+				try {
+					sendStage.channel.send(buffer, next.address);
+				}
+				catch (Exception e) {
+					System.out.println("Send Exception: " + e);
+				}
+			}
+		}
+	}
+	
+	
+	// the broadcast path, encode once and send the same bytes to every client
+	static class BroadcastTick implements Runnable {
+		SendStage sendStage;
+		GameMessage msg;
+		List<SendStage.Recipient> recipients;
+		
+		BroadcastTick(SendStage ss, GameMessage m, List<Player> p) {
+			sendStage = ss;
+			msg = m;
+			recipients = SendStage.recipientsOf(p);
+		}
+		
+		public void run() {
+			sendStage.broadcast(msg, recipients);
+		}
+	}
+	
+	
+	// encoding cost of a single frame with no sends
+	static class EncodeTick implements Runnable {
+		MessageCodec codec;
+		GameMessage msg;
+		ByteBuffer buffer = ByteBuffer.allocate(65507);
+		
+		EncodeTick(MessageCodec c, GameMessage m) {
+			codec = c;
+			msg = m;
+		}
+		
+		public void run() {
+			buffer.clear();
+			codec.encode(msg, buffer);
+		}
+	}
+}
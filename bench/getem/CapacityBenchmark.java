@@ -0,0 +1,208 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package getem;
+
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.lang.management.*;
+
+
+/**
+ * The CapacityBenchmark measures how many players one server core can sustain. For each player
+ * count it runs the server work for simulated seconds of play on one thread, moving every player
+ * towards a random goto point, checking for a tag each simulation tick and sending a delta players
+ * frame to every client at the network send rate over the loopback interface.
+ *
+ * Results are thread CPU time per simulation tick and per send, the share of one core used at
+ * the default 60 simulation ticks and 20 sends per second and the mean frame size sent to each
+ * client.
+ *
+ * @author			Bryan Nielsen
+ */
+class CapacityBenchmark {
+	static final int SIMULATION_HZ = 60;
+	static final int SEND_HZ = 20;
+	static final int WARMUP_SECONDS = 5;
+	static final int MEASURE_SECONDS = 10;
+	
+	
+	public static void main(String[] args) throws Exception {
+		int[] playerCounts = new int[] { 8, 64, 128, 256, 512, 1024 };
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		
+		// a communication engine without a game engine, we only use its send stage and message building
+		CommunicationEngine commEngine = new CommunicationEngine(null);
+		SendStage sendStage = commEngine.sendStage;
+		sendStage.channel = DatagramChannel.open();
+		sendStage.channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		
+		// sink socket the frames are sent to
+		DatagramSocket sinkSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		InetSocketAddress sinkAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), sinkSocket.getLocalPort());
+		
+		System.out.println("players  tick us  send us  core % at " + SIMULATION_HZ + "/" + SEND_HZ + " Hz  frame bytes/client");
+		
+		for (int playerCount : playerCounts) {
+			ServerLoad load = new ServerLoad(commEngine, sendStage, playerCount, sinkAddress);
+			
+			load.run(WARMUP_SECONDS);
+			load.tickNS = 0;
+			load.sendNS = 0;
+			load.frameBytes = 0;
+			load.run(MEASURE_SECONDS);
+			
+			double tickUS = load.tickNS / 1000.0 / (MEASURE_SECONDS * SIMULATION_HZ);
+			double sendUS = load.sendNS / 1000.0 / (MEASURE_SECONDS * SEND_HZ);
+			double corePercent = (tickUS * SIMULATION_HZ + sendUS * SEND_HZ) / 10000.0;
+			double frameBytes = (double)load.frameBytes / (MEASURE_SECONDS * SEND_HZ);
+			
+			System.out.println(String.format("%7d  %7.1f  %7.1f  %17.1f  %18.0f", playerCount, tickUS, sendUS, corePercent, frameBytes));
+		}
+		
+		sendStage.channel.close();
+		sinkSocket.close();
+	}
+	
+	
+	// the server work for one game, timed with the thread CPU clock
+	static class ServerLoad {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		CommunicationEngine commEngine;
+		SendStage sendStage;
+		GameRoom room;
+		ArrayList<Player> players;
+		SpatialGrid grid;
+		Random random = new Random(1);
+		ByteBuffer frameBuffer = ByteBuffer.allocate(1 << 20);
+		SnapshotHistory.Snapshot snapshot;
+		int snapshotSequence, playerItIndex, serverTime;
+		long tickNS, sendNS, frameBytes;
+		
+		ServerLoad(CommunicationEngine ce, SendStage ss, int playerCount, InetSocketAddress sinkAddress) {
+			commEngine = ce;
+			sendStage = ss;
+			sendStage.serverHistory.clear();
+			
+			// a room on the smallest field with a spawn point for every player
+			room = new GameRoom("capacity", playerCount, 1);
+			room.setFieldSize(Player.getFieldSizeFor(playerCount));
+			players = room.playerList;
+			grid = room.grid;
+			
+			for (int i = 0; i < playerCount; i++) {
+				Player player = room.addPlayer("player" + i, null);
+				
+				// player 0 is the server's own player and has no address, every client sends to the one
+				// sink address so the addresses are set after the players are added
+				if (i > 0) {
+					player.address = new InetSocketAddress(sinkAddress.getAddress(), sinkAddress.getPort());
+					player.codec = commEngine.binaryCodec;
+					player.deltaFrames = true;
+				}
+				
+				player.mousePressed = true;
+			}
+		}
+		
+		
+		// run the given number of seconds of game time
+		void run(int seconds) {
+			for (int tick = 0; tick < seconds * SIMULATION_HZ; tick++) {
+				long start = threadBean.getCurrentThreadCpuTime();
+				simulationTick();
+				tickNS += threadBean.getCurrentThreadCpuTime() - start;
+				
+				if (tick % (SIMULATION_HZ / SEND_HZ) == 0) {
+					start = threadBean.getCurrentThreadCpuTime();
+					sendFrame();
+					sendNS += threadBean.getCurrentThreadCpuTime() - start;
+					
+					measureFrame();
+				}
+			}
+		}
+		
+		
+		// move every player, rebuild the spatial grid and check for a tag as the game engine does
+		void simulationTick() {
+			for (Player next : players) {
+				// players pick a new goto point now and then
+				if (random.nextInt(SIMULATION_HZ) == 0) {
+					next.gotoX = random.nextInt(next.fieldSize);
+					next.gotoY = random.nextInt(next.fieldSize);
+				}
+				next.calculateMove(1.0f / SIMULATION_HZ);
+			}
+			
+			grid.rebuild(players);
+			
+			// a tag moves it on without resetting the field, so the load stays the same
+			Player itPlayer = players.get(playerItIndex);
+			int playerIndex = grid.lowestNear(itPlayer.currentX, itPlayer.currentY, itPlayer.playerRadius, playerItIndex);
+			if (playerIndex >= 0) playerItIndex = playerIndex;
+			
+			serverTime += 1000 / SIMULATION_HZ;
+		}
+		
+		
+		// build the snapshot and send a delta frame to every client, each client acked the last frame
+		@SuppressWarnings("unchecked")
+		void sendFrame() {
+			snapshotSequence += 1;
+			for (Player next : players) next.ackedSequence = snapshotSequence - 1;
+			
+			// the room builds the message from its player store, so the moves are loaded into it first
+			for (int slot = 0; slot < players.size(); slot++) room.state.load(slot, players.get(slot));
+			room.playerItIndex = playerItIndex;
+			GameMessage keyframe = room.buildPlayersMessage(GameMessage.MessageTypes.PLAYERS_FRAME);
+			snapshot = new SnapshotHistory.Snapshot(snapshotSequence, playerItIndex, serverTime, 
+				(List<Map<String, Object>>)keyframe.payload.get("playerMaps"));
+			
+			sendStage.sendPlayersFrame(snapshot, SendStage.recipientsOf(players));
+		}
+		
+		
+		// encode the delta frame each client got again to add up its size, outside the timing
+		void measureFrame() {
+			SnapshotHistory.Snapshot base = sendStage.serverHistory.get(snapshotSequence - 1);
+			if (base != null) {
+				GameMessage msg = new GameMessage(GameMessage.MessageTypes.PLAYERS_FRAME);
+				msg.payload.put("sequence", snapshot.sequence);
+				msg.payload.put("baseSequence", base.sequence);
+				msg.payload.put("playerItIndex", snapshot.playerItIndex);
+				msg.payload.put("serverTime", snapshot.serverTime);
+				msg.payload.put("playerCount", snapshot.playerMaps.size());
+				msg.payload.put("playerDeltas", SnapshotHistory.buildDeltas(base.playerMaps, snapshot.playerMaps));
+				
+				frameBuffer.clear();
+				commEngine.binaryCodec.encode(msg, frameBuffer);
+				frameBytes += frameBuffer.position();
+			}
+		}
+	}
+}
@@ -0,0 +1,415 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package getem;
+
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.lang.management.*;
+
+
+/**
+ * The HotPathBenchmark times the simulation and codec hot paths one at a time at several player
+ * counts. Each benchmark is an operation over the whole player list, run for a warm up period so
+ * the JIT has compiled it and then for a measured period. Results are wall time per operation and
+ * bytes allocated per operation, taken from the thread allocation counter.
+ *
+ *	move				Player.calculateMove for every player, one simulation tick.
+ *	storeMove		PlayerStore.moveAll over the room's player store, one simulation tick.
+ *	collide			Player.playerCollision of the it player against every player.
+ *	tag					Rebuild the spatial grid from the player list and find who tagged the it player.
+ *	storeTag		Rebuild the spatial grid from the player store and find who tagged the it player.
+ *	getMap			Player.getPlayerMap for every player.
+ *	storeMaps		GameRoom.buildPlayerMaps, the player maps of a frame from the player store.
+ *	applyMap		Player.applyMap for every player.
+ *	applyMaps		GameRoom.applyPlayerMaps of a keyframe, as a client does.
+ *	delta				Build the deltas between two snapshots and apply them again.
+ *	json				Encode and decode a PLAYERS_FRAME keyframe with the JSON codec.
+ *	binary			Encode and decode a PLAYERS_FRAME keyframe with the binary codec.
+ *	serverFrame	One server tick and send, the room moves, takes a snapshot and the send stage
+ *							sends every player a binary delta frame over a loopback channel.
+ *	clientApply	Decode a binary delta frame, rebuild its snapshot and apply it to a client room
+ *							and its interpolation buffer, as a client does for each frame.
+ *
+ * The serverFrame and clientApply paths must allocate nothing once warmed up, the benchmark
+ * fails with an exit status of 1 if either allocates any bytes in its one measured run. They warm
+ * up for five seconds rather than one so the JIT has finished with them first. The serverFrame
+ * room's trail grid and the snapshots its history cycles through first hold every chunk of the
+ * field filled with as many colors as a chunk holds, so the buffers they grow to as a game's
+ * trails spread are at their largest before the measurement, then one color in each chunk so its
+ * frames fit in a message.
+ *
+ * Before the timings the player store's move is checked against the per-player move the game used
+ * before it, both run for a few seconds of ticks from the same room, and the largest position
+ * difference is printed.
+ *
+ * Run a subset by naming benchmarks on the command line, results from this harness can be
+ * compared between builds on the same machine.
+ *
+ * @author			Bryan Nielsen
+ */
+class HotPathBenchmark {
+	static final long WARMUP_NS = 1000000000L;
+	static final long ZERO_ALLOCATION_WARMUP_NS = 5000000000L;
+	static final long MEASURE_NS = 2000000000L;
+	static final float TICK_SECONDS = 1.0f / 60;
+	
+	// results are folded into this so the JIT can not drop the work
+	static volatile long sink;
+	
+	
+	// a benchmark operation, returns a value that depends on the work done
+	interface Operation {
+		long run();
+	}
+	
+	
+	public static void main(String[] args) throws Exception {
+		int[] playerCounts = new int[] { 8, 64, 256, 1024 };
+		Set<String> selected = new HashSet<String>(Arrays.asList(args));
+		Set<String> zeroAllocation = new HashSet<String>(Arrays.asList("serverFrame", "clientApply"));
+		List<String> failures = new ArrayList<String>();
+		
+		System.out.println(String.format("store move differs from the per-player move by at most %.4f px", checkStoreMove(256, 600)));
+		System.out.println("benchmark    players        ns/op      bytes/op");
+		
+		for (int playerCount : playerCounts) {
+			GameRoom room = buildRoom(playerCount);
+			JsonMessageCodec jsonCodec = new JsonMessageCodec();
+			BinaryMessageCodec binaryCodec = new BinaryMessageCodec();
+			ByteBuffer buffer = ByteBuffer.allocate(FragmentAssembler.MAXIMUM_FRAGMENTS * 1200);
+			
+			// a keyframe and a second snapshot a few ticks later for the deltas
+			GameMessage keyframe = room.buildPlayersMessage(GameMessage.MessageTypes.PLAYERS_FRAME);
+			List<Map<String, Object>> baseMaps = room.takeSnapshot().getPlayerMaps();
+			for (int tick = 0; tick < 3; tick++) room.calculatePlayerMoves(TICK_SECONDS);
+			List<Map<String, Object>> currentMaps = room.takeSnapshot().getPlayerMaps();
+			
+			// the client side room the keyframe is applied to
+			GameRoom clientRoom = new GameRoom("client", playerCount, 1);
+			clientRoom.setFieldSize(room.fieldSize);
+			
+			// a server room of binary clients that ack every frame and a send stage with a loopback channel
+			GameRoom frameRoom = buildRoom(playerCount);
+			fillTrail(frameRoom);
+			for (int index = 0; index < playerCount; index++) {
+				Player player = frameRoom.playerList.get(index);
+				player.address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 20000 + index);
+				player.codec = binaryCodec;
+				player.deltaFrames = true;
+			}
+			SendStage sendStage = new SendStage(jsonCodec, binaryCodec, 1200, buffer.capacity(), 16, 8);
+			DatagramChannel channel = DatagramChannel.open();
+			channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			channel.configureBlocking(false);
+			sendStage.channel = channel;
+			
+			// a keyframe and a delta a few ticks later as the client receives them
+			ByteBuffer keyBuffer = ByteBuffer.allocate(buffer.capacity()), deltaBuffer = ByteBuffer.allocate(buffer.capacity());
+			SnapshotHistory.Snapshot keySnapshot = frameRoom.takeSnapshot();
+			binaryCodec.encodePlayersFrame(keySnapshot, null, keyBuffer);
+			keyBuffer.flip();
+			for (int tick = 0; tick < 3; tick++) frameRoom.calculatePlayerMoves(TICK_SECONDS);
+			binaryCodec.encodePlayersFrame(frameRoom.takeSnapshot(), keySnapshot, deltaBuffer);
+			deltaBuffer.flip();
+			
+			// the client room and history start from the keyframe
+			GameRoom applyRoom = new GameRoom("client", playerCount, 1);
+			applyRoom.setFieldSize(frameRoom.fieldSize);
+			SnapshotHistory clientHistory = new SnapshotHistory(32);
+			InterpolationBuffer interpolation = new InterpolationBuffer(8, 100, 250);
+			PlayersFrame frame = new PlayersFrame();
+			BinaryMessageCodec.decodePlayersFrame(keyBuffer, frame);
+			applyRoom.applySnapshot(clientHistory.applyFrame(frame));
+			int[] clientTime = new int[] { 0 }, moveTicks = new int[] { 0 };
+			
+			Map<String, Operation> operations = new LinkedHashMap<String, Operation>();
+			
+			operations.put("move", () -> {
+				long total = 0;
+				retarget(room, moveTicks[0]++);
+				for (Player next : room.playerList) {
+					next.calculateMove(TICK_SECONDS);
+					total += (long)next.currentX;
+				}
+				return total;
+			});
+			
+			operations.put("storeMove", () -> {
+				retarget(room, moveTicks[0]++);
+				room.state.moveAll(TICK_SECONDS, Player.MAXIMUM_INPUT_ALLOWANCE);
+				return (long)room.state.x[0];
+			});
+			
+			operations.put("collide", () -> {
+				Player itPlayer = room.playerList.get(room.playerItIndex);
+				long total = 0;
+				for (Player next : room.playerList) {
+					if (next != itPlayer && next.playerCollision(itPlayer.currentX, itPlayer.currentY)) total += 1;
+				}
+				return total;
+			});
+			
+			operations.put("tag", () -> {
+				room.grid.rebuild(room.playerList);
+				return room.playerTagged();
+			});
+			
+			operations.put("storeTag", () -> {
+				room.grid.rebuild(room.state);
+				return room.playerTagged();
+			});
+			
+			operations.put("getMap", () -> {
+				long total = 0;
+				for (Player next : room.playerList) total += next.getPlayerMap("current").size();
+				return total;
+			});
+			
+			operations.put("storeMaps", () -> room.buildPlayerMaps().size());
+			
+			operations.put("applyMap", () -> {
+				long total = 0;
+				for (int index = 0; index < playerCount; index++) {
+					Player next = room.playerList.get(index);
+					next.applyMap(currentMaps.get(index));
+					total += next.colorIndex;
+				}
+				return total;
+			});
+			
+			operations.put("applyMaps", () -> {
+				clientRoom.applyPlayerMaps(currentMaps);
+				return clientRoom.playerList.size();
+			});
+			
+			operations.put("delta", () -> {
+				List<Map<String, Object>> deltas = SnapshotHistory.buildDeltas(baseMaps, currentMaps);
+				return SnapshotHistory.applyDeltas(baseMaps, currentMaps.size(), deltas).size();
+			});
+			
+			operations.put("json", () -> roundTrip(jsonCodec, keyframe, buffer));
+			operations.put("binary", () -> roundTrip(binaryCodec, keyframe, buffer));
+			
+			operations.put("serverFrame", () -> {
+				// the players head somewhere new now and then so there is always movement to send
+				if (frameRoom.snapshotSequence % 60 == 0) {
+					for (int slot = 0; slot < playerCount; slot++) {
+						frameRoom.state.gotoX[slot] = (slot * 7919 + frameRoom.snapshotSequence) % frameRoom.fieldSize;
+						frameRoom.state.gotoY[slot] = (slot * 104729 + frameRoom.snapshotSequence) % frameRoom.fieldSize;
+					}
+				}
+				
+				frameRoom.calculatePlayerMoves(TICK_SECONDS);
+				for (int slot = 0; slot < playerCount; slot++) frameRoom.playerList.get(slot).ackedSequence = frameRoom.snapshotSequence;
+				sendStage.sendPlayersFrame(frameRoom.takeSnapshot(), null, frameRoom.history);
+				return frameRoom.snapshotSequence;
+			});
+			
+			operations.put("clientApply", () -> {
+				deltaBuffer.rewind();
+				BinaryMessageCodec.decodePlayersFrame(deltaBuffer, frame);
+				clientTime[0] += 50;
+				frame.serverTime = clientTime[0];
+				
+				SnapshotHistory.Snapshot snapshot = clientHistory.applyFrame(frame);
+				applyRoom.applySnapshot(snapshot);
+				interpolation.add(snapshot.serverTime, snapshot, clientTime[0]);
+				interpolation.apply(applyRoom.playerList, 0, clientTime[0]);
+				return snapshot.playerCount;
+			});
+			
+			for (Map.Entry<String, Operation> next : operations.entrySet()) {
+				if (!selected.isEmpty() && !selected.contains(next.getKey())) continue;
+				
+				// the paths that must not allocate warm up for longer, so the JIT has finished compiling
+				// them and escape analysis has removed their short lived objects before they are measured
+				double[] result = measure(next.getValue(), zeroAllocation.contains(next.getKey()) ? ZERO_ALLOCATION_WARMUP_NS : WARMUP_NS);
+				System.out.println(String.format("%-11s  %7d  %11.0f  %12.0f", next.getKey(), playerCount, result[0], result[1]));
+				if (zeroAllocation.contains(next.getKey()) && result[1] > 0) failures.add(String.format("%s allocated %.2f bytes/op at %d players", next.getKey(), result[1], playerCount));
+			}
+			
+			channel.close();
+		}
+		
+		// the allocation free paths are a requirement, not a number to read
+		for (String failure : failures) System.out.println("FAILED: " + failure);
+		if (!failures.isEmpty()) System.exit(1);
+	}
+	
+	
+	// a room with players spread over the field moving towards random points, player 0 is it, on the
+	// smallest field with a spawn point for every player
+	static GameRoom buildRoom(int playerCount) {
+		GameRoom room = new GameRoom("bench", playerCount, 4);
+		room.setFieldSize(Player.getFieldSizeFor(playerCount));
+		Random random = new Random(playerCount);
+		
+		for (int index = 0; index < playerCount; index++) {
+			Player player = room.addPlayer("player" + index, null);
+			player.mousePressed = true;
+			player.gotoX = random.nextInt(room.fieldSize);
+			player.gotoY = random.nextInt(room.fieldSize);
+			room.state.load(index, player);
+		}
+		
+		room.calculatePlayerMoves(TICK_SECONDS);
+		return room;
+	}
+	
+	
+	// fill every chunk of the trail with a different color in each cell, the largest a chunk encodes
+	// to, while every snapshot the room's history cycles through grows its trail buffers to their
+	// largest, then give every chunk one color so the frames sent fit in a message
+	static void fillTrail(GameRoom room) {
+		room.trail.apply(trailSection(room.trail, TrailGrid.CHUNK_AREA));
+		for (int index = 0; index <= room.history.snapshots.length; index++) room.history.add(room.takeSnapshot());
+		room.trail.apply(trailSection(room.trail, 1));
+	}
+	
+	
+	// a trail section giving every chunk a number of colors, each in one run of equal cells
+	static ByteBuffer trailSection(TrailGrid trail, int colors) {
+		ByteBuffer section = ByteBuffer.allocate(3 + trail.chunkCount * TrailGrid.MAXIMUM_CHUNK_BYTES);
+		section.put((byte)TrailGrid.SYNC);
+		section.putShort((short)trail.chunkCount);
+		
+		boolean packed = colors <= TrailGrid.PACKED_PALETTE;
+		int runLength = TrailGrid.CHUNK_AREA / colors, longest = packed ? 16 : 256;
+		int runsPerColor = (runLength + longest - 1) / longest;
+		
+		for (int chunk = 0; chunk < trail.chunkCount; chunk++) {
+			section.putShort((short)chunk);
+			section.put((byte)colors);
+			for (int entry = 0; entry < colors; entry++) section.putShort((short)(1 + (chunk * 7 + entry) % 1024));
+			section.put((byte)(colors * runsPerColor));
+			for (int entry = 0; entry < colors; entry++) {
+				for (int left = runLength; left > 0; left -= longest) {
+					int length = Math.min(left, longest);
+					if (packed) section.put((byte)(entry << 4 | (length - 1)));
+					else {
+						section.put((byte)entry);
+						section.put((byte)(length - 1));
+					}
+				}
+			}
+		}
+		
+		section.flip();
+		return section;
+	}
+	
+	
+	// every second of ticks give the players new targets, in the player views and the store, so they keep moving
+	static void retarget(GameRoom room, int tick) {
+		if (tick % 60 != 0) return;
+		
+		for (int slot = 0; slot < room.playerList.size(); slot++) {
+			Player player = room.playerList.get(slot);
+			player.gotoX = room.state.gotoX[slot] = (slot * 7919 + tick) % room.fieldSize;
+			player.gotoY = room.state.gotoY[slot] = (slot * 104729 + tick) % room.fieldSize;
+		}
+	}
+	
+	
+	// run the store's move and the per-player move from before the store side by side, returns the largest difference
+	static double checkStoreMove(int playerCount, int ticks) {
+		GameRoom room = buildRoom(playerCount);
+		float[] x = new float[playerCount], y = new float[playerCount];
+		for (int slot = 0; slot < playerCount; slot++) {
+			x[slot] = room.state.x[slot];
+			y[slot] = room.state.y[slot];
+		}
+		
+		double largest = 0;
+		for (int tick = 0; tick < ticks; tick++) {
+			room.state.moveAll(TICK_SECONDS, Player.MAXIMUM_INPUT_ALLOWANCE);
+			
+			for (int slot = 0; slot < playerCount; slot++) {
+				Player player = room.playerList.get(slot);
+				float moveIncrement = player.moveSpeed * TICK_SECONDS;
+				double dx = player.gotoX - x[slot], dy = player.gotoY - y[slot];
+				int distance = (int)Math.sqrt(dx * dx + dy * dy);
+				
+				if (distance > 0) {
+					x[slot] += moveIncrement * (player.gotoX - x[slot]) / distance;
+					if (x[slot] < 0) x[slot] = 0;
+					if (x[slot] > room.fieldSize - player.playerRadius) x[slot] = room.fieldSize - player.playerRadius;
+					
+					y[slot] += moveIncrement * (player.gotoY - y[slot]) / distance;
+					if (y[slot] < 0) y[slot] = 0;
+					if (y[slot] > room.fieldSize - player.playerRadius) y[slot] = room.fieldSize - player.playerRadius;
+				}
+				
+				largest = Math.max(largest, Math.max(Math.abs(x[slot] - room.state.x[slot]), Math.abs(y[slot] - room.state.y[slot])));
+			}
+		}
+		
+		return largest;
+	}
+	
+	
+	// encode a message and decode it again
+	static long roundTrip(MessageCodec codec, GameMessage msg, ByteBuffer buffer) {
+		buffer.clear();
+		codec.encode(msg, buffer);
+		buffer.flip();
+		return codec.decode(buffer).payload.size();
+	}
+	
+	
+	// run an operation for a warm up time and the measurement, returns the ns and bytes per operation
+	static double[] measure(Operation operation, long warmupNS) {
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		
+		run(operation, warmupNS);
+		
+		long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+		long startNS = System.nanoTime();
+		long count = run(operation, MEASURE_NS);
+		long elapsedNS = System.nanoTime() - startNS;
+		long bytes = threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+		
+		return new double[] { (double)elapsedNS / count, (double)bytes / count };
+	}
+	
+	
+	// run an operation in batches until the time is up, returns the number of runs
+	static long run(Operation operation, long durationNS) {
+		long count = 0, total = 0;
+		long deadline = System.nanoTime() + durationNS;
+		
+		while (System.nanoTime() - deadline < 0) {
+			for (int index = 0; index < 64; index++) total += operation.run();
+			count += 64;
+		}
+		
+		sink += total;
+		return count;
+	}
+}
@@ -0,0 +1,412 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package getem;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * The LoadGenerator measures how a room server copes as the number of clients grows. It starts a
+ * room server in this JVM on the loopback interface and adds headless bot clients in steps. Each
+ * bot has its own socket, joins with the real JOIN handshake and streams PLAYER_FRAME inputs like
+ * the game client, half of them wandering between random points and half chasing the it player.
+ * Bots rebuild the delta frames they are sent and acknowledge them as the game client does.
+ *
+ * For each step it reports the server tick time percentiles over all rooms, the packets and bytes
+ * per second in and out of the server and the rate at which the bots get player frames.
+ *
+ *	java -cp bench/classes:getem/* getem.LoadGenerator [16,64,256,1024]
+ *
+ * Bots share getem.botThreads threads (2 by default), which compete with the server for the same
+ * cores. The room size is getem.maxPlayers, all the bots go in one room unless it is set. The field
+ * is getem.worldSize, 1500 pixels unless it is set so the field has a spawn point for every slot.
+ *
+ * @author			Bryan Nielsen
+ */
+class LoadGenerator {
+	static final int WARMUP_SECONDS = 3;
+	static final int MEASURE_SECONDS = 5;
+	static final int PORT = 3300;
+	
+	
+	public static void main(String[] args) throws Exception {
+		int[] botCounts = new int[] { 16, 64, 256, 1024 };
+		if (args.length > 0) {
+			String[] counts = args[0].split(",");
+			botCounts = new int[counts.length];
+			for (int index = 0; index < counts.length; index++) botCounts[index] = Integer.parseInt(counts[index].trim());
+		}
+		
+		// one room big enough for every bot unless a room size is given
+		if (System.getProperty("getem.maxPlayers") == null) System.setProperty("getem.maxPlayers", "" + GameRoom.MAXIMUM_SLOTS);
+		if (System.getProperty("getem.worldSize") == null) System.setProperty("getem.worldSize", "1500");
+		
+		RoomManager server = new RoomManager(PORT);
+		server.start();
+		InetSocketAddress serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT);
+		
+		// the bot threads
+		BotDriver[] drivers = new BotDriver[Math.max(1, Integer.getInteger("getem.botThreads", 2))];
+		for (int index = 0; index < drivers.length; index++) {
+			drivers[index] = new BotDriver(index, serverAddress, server.mtu, server.maximumMessageSize);
+			drivers[index].start();
+		}
+		
+		System.out.println("bots  joined  rooms  tick us p50/p99/p99.9/max  in pkt/s  in KB/s  out pkt/s  out KB/s  frames/s per bot mean/min");
+		
+		int botTotal = 0;
+		for (int botCount : botCounts) {
+			// add bots to reach this step
+			while (botTotal < botCount) {
+				drivers[botTotal % drivers.length].addBot(new Bot("bot-" + botTotal, botTotal % 2 == 0));
+				botTotal += 1;
+			}
+			Thread.sleep(WARMUP_SECONDS * 1000L);
+			
+			// counters at the start of the measurement
+			LatencyHistogram startTicks = tickTimes(server);
+			long[] startTraffic = traffic(server);
+			long[] startFrames = botFrames(drivers);
+			long startNS = System.nanoTime();
+			
+			Thread.sleep(MEASURE_SECONDS * 1000L);
+			
+			double seconds = (System.nanoTime() - startNS) / 1e9;
+			LatencyHistogram ticks = tickTimes(server);
+			ticks.subtract(startTicks);
+			long[] endTraffic = traffic(server);
+			long[] endFrames = botFrames(drivers);
+			
+			// frame rate seen by each joined bot
+			int joined = 0;
+			double frameTotal = 0, frameMinimum = Double.MAX_VALUE;
+			for (int index = 0; index < endFrames.length; index++) {
+				if (endFrames[index] < 0) continue;
+				double rate = (endFrames[index] - Math.max(0, startFrames[index])) / seconds;
+				joined += 1;
+				frameTotal += rate;
+				frameMinimum = Math.min(frameMinimum, rate);
+			}
+			
+			System.out.println(String.format("%4d  %6d  %5d  %6.0f/%6.0f/%6.0f/%6.0f  %8.0f  %7.0f  %9.0f  %8.0f  %8.1f/%.1f",
+				botCount, joined, server.rooms.size(),
+				ticks.getPercentile(50) / 1000.0, ticks.getPercentile(99) / 1000.0, ticks.getPercentile(99.9) / 1000.0, ticks.getPercentile(100) / 1000.0,
+				(endTraffic[0] - startTraffic[0]) / seconds, (endTraffic[1] - startTraffic[1]) / seconds / 1024,
+				(endTraffic[2] - startTraffic[2]) / seconds, (endTraffic[3] - startTraffic[3]) / seconds / 1024,
+				joined > 0 ? frameTotal / joined : 0, joined > 0 ? frameMinimum : 0));
+		}
+		
+		for (BotDriver driver : drivers) driver.running = false;
+		server.shutDown();
+		System.exit(0);
+	}
+	
+	
+	// the tick times of all the rooms added together
+	static LatencyHistogram tickTimes(RoomManager server) {
+		LatencyHistogram total = new LatencyHistogram();
+		for (GameRoom room : server.rooms) total.add(room.tickTimes);
+		return total;
+	}
+	
+	
+	// datagrams and bytes in, datagrams and bytes out
+	static long[] traffic(RoomManager server) {
+		long[] counts = new long[] { server.receiveStage.metrics.getPacketsIn(), server.receiveStage.metrics.getBytesIn(), 0, 0 };
+		for (RoomWorker worker : server.workers) {
+			counts[2] += worker.metrics.getPacketsOut();
+			counts[3] += worker.metrics.getBytesOut();
+		}
+		return counts;
+	}
+	
+	
+	// the frames each bot has received, -1 for bots that have not joined
+	static long[] botFrames(BotDriver[] drivers) {
+		ArrayList<Long> frames = new ArrayList<Long>();
+		for (BotDriver driver : drivers) {
+			for (Bot bot : driver.allBots) frames.add(bot.joined ? bot.framesReceived : -1L);
+		}
+		
+		long[] counts = new long[frames.size()];
+		for (int index = 0; index < counts.length; index++) counts[index] = frames.get(index);
+		return counts;
+	}
+	
+	
+	/**
+	 * A BotDriver thread runs a share of the bots, reading their sockets, sampling their inputs each
+	 * simulation tick and sending their frames at the network send rate.
+	 */
+	static class BotDriver extends Thread {
+		InetSocketAddress serverAddress;
+		Selector selector;
+		TickScheduler scheduler;
+		ConcurrentLinkedQueue<Bot> newBots;
+		List<Bot> allBots;
+		ArrayList<Bot> bots;
+		JsonMessageCodec jsonCodec;
+		BinaryMessageCodec binaryCodec;
+		ByteBuffer receiveBuffer, sendBuffer;
+		int mtu, maximumMessageSize;
+		volatile boolean running;
+		
+		BotDriver(int index, InetSocketAddress server, int datagramSize, int maximumSize) throws IOException {
+			super("getem-bots-" + index);
+			setDaemon(true);
+			
+			serverAddress = server;
+			selector = Selector.open();
+			scheduler = new TickScheduler(Integer.getInteger("getem.simulationRate", 60), Integer.getInteger("getem.sendRate", 20), 5);
+			newBots = new ConcurrentLinkedQueue<Bot>();
+			allBots = Collections.synchronizedList(new ArrayList<Bot>());
+			bots = new ArrayList<Bot>();
+			jsonCodec = new JsonMessageCodec();
+			binaryCodec = new BinaryMessageCodec();
+			mtu = datagramSize;
+			maximumMessageSize = maximumSize;
+			receiveBuffer = ByteBuffer.allocateDirect(mtu + 1);
+			sendBuffer = ByteBuffer.allocate(maximumSize);
+			running = true;
+		}
+		
+		void addBot(Bot bot) {
+			allBots.add(bot);
+			newBots.add(bot);
+			selector.wakeup();
+		}
+		
+		public void run() {
+			try {
+				while (running) {
+					// open the sockets of new bots and send their join requests
+					Bot bot;
+					while ((bot = newBots.poll()) != null) {
+						bot.channel = DatagramChannel.open();
+						bot.channel.configureBlocking(false);
+						bot.channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+						bot.channel.register(selector, SelectionKey.OP_READ, bot);
+						bot.fragmentAssembler = new FragmentAssembler(maximumMessageSize);
+						bots.add(bot);
+						sendJoin(bot);
+					}
+					
+					// wait for frames until the next tick or send
+					long waitMS = scheduler.nanosUntilNextEvent() / 1000000;
+					if (waitMS > 0) selector.select(waitMS);
+					else selector.selectNow();
+					
+					for (SelectionKey key : selector.selectedKeys()) receive((Bot)key.attachment());
+					selector.selectedKeys().clear();
+					
+					int ticks = scheduler.simulationTicksDue();
+					boolean sendDue = scheduler.sendDue();
+					long now = System.nanoTime();
+					
+					for (Bot next : bots) {
+						if (next.joined) {
+							for (int tick = 0; tick < ticks; tick++) next.tick();
+							if (sendDue) sendFrame(next);
+						}
+						// ask again if the join was lost
+						else if (!next.rejected && now - next.joinSentNS > 1000000000L) sendJoin(next);
+					}
+				}
+			}
+			catch (IOException ioe) {
+				System.out.println("IO Exception: " + ioe);
+			}
+		}
+		
+		// send a join request, always as JSON like the game client
+		void sendJoin(Bot bot) throws IOException {
+			GameMessage msg = new GameMessage("JOIN");
+			msg.payload.put("name", bot.name);
+			msg.payload.put("codec", BinaryMessageCodec.requestName(System.getProperty("getem.codec", BinaryMessageCodec.FORMAT)));
+			msg.payload.put("delta", true);
+			send(bot, msg, jsonCodec);
+			bot.joinSentNS = System.nanoTime();
+		}
+		
+		// send the goto map, the frame ack and the unacknowledged inputs like the game client
+		void sendFrame(Bot bot) throws IOException {
+			GameMessage msg = new GameMessage("PLAYER_FRAME");
+			msg.payload = bot.me.getPlayerMap("goto");
+			msg.payload.put("mapType", "frame");
+			msg.payload.put("ack", bot.lastFrameSequence);
+			msg.payload.put("inputs", bot.inputs.getInputMaps(CommunicationEngine.MAXIMUM_SENT_INPUTS));
+			send(bot, msg, bot.serverCodec);
+		}
+		
+		void send(Bot bot, GameMessage msg, MessageCodec codec) throws IOException {
+			sendBuffer.clear();
+			codec.encode(msg, sendBuffer);
+			sendBuffer.flip();
+			bot.channel.send(sendBuffer, serverAddress);
+		}
+		
+		// read and apply everything waiting on a bot's socket
+		void receive(Bot bot) throws IOException {
+			while (true) {
+				receiveBuffer.clear();
+				InetSocketAddress sender = (InetSocketAddress)bot.channel.receive(receiveBuffer);
+				if (sender == null) return;
+				receiveBuffer.flip();
+				
+				ByteBuffer messageBuffer = receiveBuffer;
+				if (FragmentAssembler.isFragment(receiveBuffer)) {
+					messageBuffer = bot.fragmentAssembler.addFragment(sender, receiveBuffer);
+					if (messageBuffer == null) continue;
+				}
+				
+				MessageCodec codec = BinaryMessageCodec.isBinary(messageBuffer) ? binaryCodec : jsonCodec;
+				GameMessage msg = codec.decode(messageBuffer);
+				if (msg == null || msg.getMessageType() == null) continue;
+				
+				switch (msg.getMessageType()) {
+					case JOIN_ACCEPT:
+					bot.me.applyMap(msg.payload);
+					bot.me.fieldSize = BinaryMessageCodec.getInt(msg.payload, "worldSize", Player.MINIMUM_FIELD_SIZE);
+					bot.serverCodec = BinaryMessageCodec.NAME.equals(msg.payload.get("codec")) ? binaryCodec : jsonCodec;
+					bot.joined = true;
+					break;
+					
+					case JOIN_REJECT:
+					bot.rejected = true;
+					break;
+					
+					case PLAYERS_FRAME:
+					bot.applyPlayersFrame(msg);
+					break;
+					
+					default:
+					break;
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * A Bot is one headless client. Wandering bots walk between random points on the field, chasing
+	 * bots run at the it player, and the it player runs away from the nearest player it can see.
+	 */
+	static class Bot {
+		String name;
+		boolean chaser, joined, rejected;
+		DatagramChannel channel;
+		FragmentAssembler fragmentAssembler;
+		MessageCodec serverCodec;
+		Player me;
+		InputHistory inputs;
+		SnapshotHistory history;
+		List<Map<String, Object>> playerMaps;
+		int lastFrameSequence, playerItIndex, targetX, targetY;
+		long joinSentNS, framesReceived;
+		Random random;
+		
+		Bot(String botName, boolean chasing) {
+			name = botName;
+			chaser = chasing;
+			me = new Player(botName);
+			inputs = new InputHistory(128);
+			history = new SnapshotHistory(32);
+			lastFrameSequence = -1;
+			playerItIndex = -1;
+			random = new Random(botName.hashCode());
+			pickTarget();
+		}
+		
+		void pickTarget() {
+			targetX = random.nextInt(me.fieldSize);
+			targetY = random.nextInt(me.fieldSize);
+		}
+		
+		// steer for one simulation tick and sample the input the game client would
+		void tick() {
+			Map<String, Object> itMap = playerItIndex >= 0 && playerItIndex < mapCount() ? playerMaps.get(playerItIndex) : null;
+			
+			if (chaser && itMap != null && playerItIndex != me.colorIndex) {
+				// run at the it player
+				targetX = (int)BinaryMessageCodec.getFloat(itMap, "currentX");
+				targetY = (int)BinaryMessageCodec.getFloat(itMap, "currentY");
+			}
+			else if (Math.abs(targetX - me.currentX) < 8 && Math.abs(targetY - me.currentY) < 8 || random.nextInt(240) == 0) {
+				// wander to a new point once there, or now and then anyway
+				pickTarget();
+			}
+			
+			me.gotoX = targetX;
+			me.gotoY = targetY;
+			// let go of the mouse now and then like a person does
+			me.mousePressed = random.nextInt(60) != 0;
+			inputs.sample(me);
+		}
+		
+		int mapCount() {
+			return playerMaps == null ? 0 : playerMaps.size();
+		}
+		
+		// rebuild a players frame as the game client does and keep our own server position
+		@SuppressWarnings("unchecked")
+		void applyPlayersFrame(GameMessage msg) {
+			int sequence = ((Number)msg.payload.get("sequence")).intValue();
+			int baseSequence = ((Number)msg.payload.get("baseSequence")).intValue();
+			if (sequence <= lastFrameSequence) return;
+			
+			List<Map<String, Object>> maps;
+			if (baseSequence < 0) {
+				maps = (List<Map<String, Object>>)msg.payload.get("playerMaps");
+			}
+			else {
+				SnapshotHistory.Snapshot base = history.get(baseSequence);
+				if (base == null) return;
+				maps = SnapshotHistory.applyDeltas(base.playerMaps, ((Number)msg.payload.get("playerCount")).intValue(), 
+					(List<Map<String, Object>>)msg.payload.get("playerDeltas"));
+			}
+			
+			int itIndex = ((Number)msg.payload.get("playerItIndex")).intValue();
+			history.add(new SnapshotHistory.Snapshot(sequence, itIndex, -1, maps));
+			lastFrameSequence = sequence;
+			playerMaps = maps;
+			playerItIndex = itIndex;
+			framesReceived += 1;
+			
+			// our own position and the inputs the server has applied
+			if (me.colorIndex < maps.size() && maps.get(me.colorIndex) != null) {
+				Map<String, Object> meMap = maps.get(me.colorIndex);
+				me.currentX = BinaryMessageCodec.getFloat(meMap, "currentX");
+				me.currentY = BinaryMessageCodec.getFloat(meMap, "currentY");
+				inputs.acknowledge(BinaryMessageCodec.getInt(meMap, "inputSequence", -1));
+			}
+		}
+	}
+}
@@ -0,0 +1,10 @@
+#!/bin/bash
+
+# compile getem and the benchmarks into a separate output directory
+mkdir -p bench/classes
+javac -Xlint:unchecked -d bench/classes -classpath .:getem/* getem/*.java bench/getem/*.java
+
+# run the benchmarks with all libraries included in classpath
+java -classpath bench/classes:getem/* getem.BroadcastBenchmark
+java -classpath bench/classes:getem/* getem.CapacityBenchmark
+java -classpath bench/classes:getem/* getem.HotPathBenchmark
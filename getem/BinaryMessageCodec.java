@@ -0,0 +1,848 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package getem;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+
+/**
+ * The BinaryMessageCodec converts game messages to and from a compact versioned binary
+ * format. Every binary message starts with a three byte header.
+ *
+ *	magic (1 byte, 0xE7), version (1 byte), message type (1 byte, MessageTypes ordinal)
+ *
+ * The magic byte can never start a JSON message so a receiver can tell the two formats
+ * apart from the first byte of a datagram. Message types must only ever be appended to
+ * the MessageTypes enumeration as the ordinal is used on the wire.
+ *
+ * Players are written as fixed layout records of PLAYER_RECORD_SIZE bytes.
+ *
+ *	flags (1 byte, present / mousePressed / isVisible), colorIndex (2 bytes),
+ *	x (4 bytes), y (4 bytes), input sequence (4 bytes)
+ *
+ * The x and y values are the float current coordinates for "current" maps and the int
+ * goto coordinates for "goto" maps. The input sequence is the last client input applied
+ * to the player, -1 if the player does not send inputs. Strings are written as an unsigned
+ * 2 byte length followed by the UTF-8 bytes. A PLAYER_FRAME is a goto player record, the
+ * acknowledged snapshot sequence (4 bytes) and the input count (1 byte) followed by the
+ * inputs, each a sequence (4 bytes), flags (1 byte) and goto x and y (2 bytes each).
+ *
+ * A PLAYERS_FRAME or PING_RESPONSE starts with the snapshot sequence and base sequence
+ * (4 bytes each), the it player index (2 bytes) and the server simulation time in
+ * milliseconds (4 bytes). A keyframe, base sequence -1, is then
+ * the player count (2 bytes), the player records and the names of the present players.
+ * A delta frame is the player count and delta count (2 bytes each) followed by the deltas,
+ * each a slot (2 bytes), a field mask (1 byte) and only the fields named in the mask.
+ *
+ * A JOIN_ACCEPT, PLAYERS_FRAME or PING_RESPONSE ends with a trail section, laid out as in
+ * TrailGrid. A keyframe has the whole trail, a delta frame has only the trail chunks that
+ * changed since the base snapshot. A message without a trail has an empty section with no
+ * flags. In player maps the section is kept as a Base64 string under "trail", as JSON sends it.
+ *
+ * A JOIN ends with the view size of the client (2 bytes, 0 if it does not say) and a
+ * JOIN_ACCEPT has the field size (2 bytes) before its trail section. A client with a view size
+ * is only sent the players and trail chunks in the region round it, see SnapshotHistory.
+ *
+ * The codec is named with its version, as in "binary/6", in the JOIN and JOIN_ACCEPT codec
+ * field, so a client and server with different versions fall back to JSON rather than drop
+ * each other's messages.
+ *
+ * Version 2 added snapshot sequences and delta frames, version 3 added client inputs,
+ * version 4 added the server time, version 5 added the trail and version 6 added the view
+ * and field sizes.
+ *
+ * Players frames are also encoded straight from a typed snapshot and decoded into a reusable
+ * PlayersFrame, without building player maps. The bytes are the same either way.
+ *
+ * @author			Bryan Nielsen
+ */
+class BinaryMessageCodec implements MessageCodec {
+	static final byte MAGIC = (byte)0xE7;
+	static final byte VERSION = 6;
+	static final String FORMAT = "binary";
+	static final String NAME = FORMAT + "/" + VERSION;
+	static final int HEADER_SIZE = 3;
+	static final int PLAYER_RECORD_SIZE = 15;
+	static final int MAXIMUM_INPUTS = 255;
+	
+	// player record flag bits
+	static final int FLAG_PRESENT = 1;
+	static final int FLAG_MOUSE_PRESSED = 2;
+	static final int FLAG_VISIBLE = 4;
+	
+	// player delta field mask bits
+	static final int DELTA_REMOVED = 1;
+	static final int DELTA_FLAGS = 2;
+	static final int DELTA_COLOR = 4;
+	static final int DELTA_X = 8;
+	static final int DELTA_Y = 16;
+	static final int DELTA_NAME = 32;
+	static final int DELTA_INPUT = 64;
+	
+	static final GameMessage.MessageTypes[] messageTypes = GameMessage.MessageTypes.values();
+	
+	
+	public String getName() {
+		return NAME;
+	}
+	
+	
+	/**
+	 * Get the codec name to ask for in a join request for a format named with -Dgetem.codec, the
+	 * binary format is asked for at this version.
+	 *
+	 * @param format		The format name, "binary" or "json".
+	 * @return					The codec name to ask for.
+	 */
+	static String requestName(String format) {
+		return FORMAT.equals(format) ? NAME : format;
+	}
+	
+	
+	/**
+	 * Determine if the buffer holds a binary message by checking for the magic byte.
+	 *
+	 * @param buffer			The buffer holding a received message.
+	 * @return						A boolean is returned noting true if the message is binary.
+	 */
+	static boolean isBinary(ByteBuffer buffer) {
+		return buffer.remaining() > 0 && buffer.get(buffer.position()) == MAGIC;
+	}
+	
+	
+	/**
+	 * Determine if the binary message in the buffer is a players frame.
+	 *
+	 * @param buffer			The buffer holding a received binary message.
+	 * @return						A boolean is returned noting true if the message is a players frame.
+	 */
+	static boolean isPlayersFrame(ByteBuffer buffer) {
+		return buffer.remaining() >= HEADER_SIZE && (buffer.get(buffer.position() + 2) & 0xff) == GameMessage.MessageTypes.PLAYERS_FRAME.ordinal();
+	}
+	
+	
+	/**
+	 * Write the header and the payload fields used by the message type into the buffer.
+	 *
+	 * @param msg					The game message to encode.
+	 * @param buffer			The buffer to write the encoded message into.
+	 */
+	@SuppressWarnings("unchecked")
+	public void encode(GameMessage msg, ByteBuffer buffer) {
+		buffer.put(MAGIC);
+		buffer.put(VERSION);
+		buffer.put((byte)msg.getMessageType().ordinal());
+		
+		switch (msg.getMessageType()) {
+			case JOIN:
+			putString(buffer, (String)msg.payload.get("name"));
+			putString(buffer, (String)msg.payload.get("codec"));
+			buffer.put((byte)(getBoolean(msg.payload, "delta") ? 1 : 0));
+			buffer.putShort((short)getInt(msg.payload, "view", 0));
+			break;
+			
+			case JOIN_ACCEPT:
+			putPlayerRecord(buffer, msg.payload, "current");
+			putString(buffer, (String)msg.payload.get("name"));
+			putString(buffer, (String)msg.payload.get("codec"));
+			buffer.putShort((short)getInt(msg.payload, "worldSize", 0));
+			putTrail(buffer, msg.payload);
+			break;
+			
+			case PLAYER_FRAME:
+			putPlayerRecord(buffer, msg.payload, "goto");
+			buffer.putInt(getInt(msg.payload, "ack", -1));
+			
+			// client inputs, oldest first
+			List<Map<String, Object>> inputMaps = (List<Map<String, Object>>)msg.payload.get("inputs");
+			if (inputMaps == null) inputMaps = Collections.emptyList();
+			
+			// only the newest inputs are sent if there are more than the count byte can hold
+			int firstInput = Math.max(0, inputMaps.size() - MAXIMUM_INPUTS);
+			buffer.put((byte)(inputMaps.size() - firstInput));
+			
+			for (int i = firstInput; i < inputMaps.size(); i++) {
+				Map<String, Object> inputMap = inputMaps.get(i);
+				int flags = 0;
+				if (getBoolean(inputMap, "mousePressed")) flags |= FLAG_MOUSE_PRESSED;
+				if (getBoolean(inputMap, "isVisible")) flags |= FLAG_VISIBLE;
+				
+				buffer.putInt(getInt(inputMap, "sequence", -1));
+				buffer.put((byte)flags);
+				buffer.putShort((short)getInt(inputMap, "gotoX", 0));
+				buffer.putShort((short)getInt(inputMap, "gotoY", 0));
+			}
+			break;
+			
+			case PLAYERS_FRAME:
+			case PING_RESPONSE:
+			int baseSequence = getInt(msg.payload, "baseSequence", -1);
+			buffer.putInt(getInt(msg.payload, "sequence", -1));
+			buffer.putInt(baseSequence);
+			buffer.putShort((short)getInt(msg.payload, "playerItIndex", -1));
+			buffer.putInt(getInt(msg.payload, "serverTime", -1));
+			
+			if (baseSequence < 0) {
+				// keyframe with all player records
+				List<Map<String, Object>> playerMaps = (List<Map<String, Object>>)msg.payload.get("playerMaps");
+				buffer.putShort((short)playerMaps.size());
+				
+				for (Map<String, Object> playerMap : playerMaps) putPlayerRecord(buffer, playerMap, "current");
+				for (Map<String, Object> playerMap : playerMaps) {
+					if (playerMap != null) putString(buffer, (String)playerMap.get("name"));
+				}
+			}
+			else {
+				// delta frame with only the changed fields
+				List<Map<String, Object>> playerDeltas = (List<Map<String, Object>>)msg.payload.get("playerDeltas");
+				buffer.putShort((short)getInt(msg.payload, "playerCount", 0));
+				buffer.putShort((short)playerDeltas.size());
+				
+				for (Map<String, Object> playerDelta : playerDeltas) putPlayerDelta(buffer, playerDelta);
+			}
+			putTrail(buffer, msg.payload);
+			break;
+			
+			default:
+			// remaining message types have no payload
+			break;
+		}
+	}
+	
+	
+	/**
+	 * Read the header and payload from the buffer into a new game message. Payload values
+	 * are returned as Integer, Float, Boolean and String objects.
+	 *
+	 * @param buffer			The buffer holding the encoded message.
+	 * @return						The decoded game message.
+	 */
+	public GameMessage decode(ByteBuffer buffer) {
+		if (buffer.get() != MAGIC) throw new IllegalArgumentException("Not a binary game message");
+		
+		byte version = buffer.get();
+		if (version != VERSION) throw new IllegalArgumentException("Unsupported binary message version " + version);
+		
+		int typeIndex = buffer.get() & 0xff;
+		GameMessage.MessageTypes messageType = typeIndex < messageTypes.length ? messageTypes[typeIndex] : GameMessage.MessageTypes.UNKNOWN;
+		GameMessage msg = new GameMessage(messageType);
+		
+		switch (messageType) {
+			case JOIN:
+			msg.payload.put("name", getString(buffer));
+			msg.payload.put("codec", getString(buffer));
+			msg.payload.put("delta", buffer.get() != 0);
+			int view = buffer.getShort() & 0xffff;
+			if (view > 0) msg.payload.put("view", view);
+			break;
+			
+			case JOIN_ACCEPT:
+			getPlayerRecord(buffer, msg.payload, "current");
+			msg.payload.put("name", getString(buffer));
+			msg.payload.put("codec", getString(buffer));
+			msg.payload.put("mapType", "join");
+			int worldSize = buffer.getShort() & 0xffff;
+			if (worldSize > 0) msg.payload.put("worldSize", worldSize);
+			getTrail(buffer, msg.payload);
+			break;
+			
+			case PLAYER_FRAME:
+			getPlayerRecord(buffer, msg.payload, "goto");
+			msg.payload.put("ack", buffer.getInt());
+			msg.payload.put("mapType", "frame");
+			
+			// client inputs, oldest first
+			int inputCount = buffer.get() & 0xff;
+			ArrayList<Map<String, Object>> inputMaps = new ArrayList<Map<String, Object>>(inputCount);
+			
+			for (int i = 0; i < inputCount; i++) {
+				Map<String, Object> inputMap = new HashMap<>();
+				inputMap.put("sequence", buffer.getInt());
+				int flags = buffer.get();
+				inputMap.put("mousePressed", (flags & FLAG_MOUSE_PRESSED) != 0);
+				inputMap.put("isVisible", (flags & FLAG_VISIBLE) != 0);
+				inputMap.put("gotoX", (int)buffer.getShort());
+				inputMap.put("gotoY", (int)buffer.getShort());
+				inputMaps.add(inputMap);
+			}
+			
+			msg.payload.put("inputs", inputMaps);
+			break;
+			
+			case PLAYERS_FRAME:
+			case PING_RESPONSE:
+			int sequence = buffer.getInt();
+			int baseSequence = buffer.getInt();
+			int playerItIndex = buffer.getShort();
+			int serverTime = buffer.getInt();
+			int playerCount = buffer.getShort() & 0xffff;
+			
+			if (baseSequence < 0) {
+				// keyframe with all player records
+				ArrayList<Map<String, Object>> playerMaps = new ArrayList<Map<String, Object>>(playerCount);
+				
+				for (int i = 0; i < playerCount; i++) {
+					Map<String, Object> playerMap = new HashMap<>();
+					if (getPlayerRecord(buffer, playerMap, "current")) playerMaps.add(playerMap);
+					else playerMaps.add(null);
+				}
+				for (Map<String, Object> playerMap : playerMaps) {
+					if (playerMap != null) playerMap.put("name", getString(buffer));
+				}
+				
+				msg.payload.put("playerMaps", playerMaps);
+			}
+			else {
+				// delta frame with only the changed fields
+				int deltaCount = buffer.getShort() & 0xffff;
+				ArrayList<Map<String, Object>> playerDeltas = new ArrayList<Map<String, Object>>(deltaCount);
+				
+				for (int i = 0; i < deltaCount; i++) playerDeltas.add(getPlayerDelta(buffer));
+				
+				msg.payload.put("playerCount", playerCount);
+				msg.payload.put("playerDeltas", playerDeltas);
+			}
+			
+			msg.payload.put("sequence", sequence);
+			msg.payload.put("baseSequence", baseSequence);
+			msg.payload.put("playerItIndex", playerItIndex);
+			if (serverTime >= 0) msg.payload.put("serverTime", serverTime);
+			getTrail(buffer, msg.payload);
+			break;
+			
+			default:
+			// remaining message types have no payload
+			break;
+		}
+		
+		return msg;
+	}
+	
+	
+	/**
+	 * Encode a players frame straight from a snapshot, a keyframe if there is no base snapshot or
+	 * otherwise a delta frame with the fields and trail chunks that changed since the base. The
+	 * bytes written are the same as encode writes for the player maps and deltas of the two
+	 * snapshots.
+	 *
+	 * @param snapshot		The snapshot to send.
+	 * @param base				The snapshot the client has acknowledged, null for a keyframe.
+	 * @param buffer			The buffer to write the encoded message into.
+	 */
+	void encodePlayersFrame(SnapshotHistory.Snapshot snapshot, SnapshotHistory.Snapshot base, ByteBuffer buffer) {
+		encodePlayersFrame(snapshot, base, -1, buffer);
+	}
+	
+	
+	/**
+	 * Encode a players frame for one viewer, only the players and trail chunks in the region round
+	 * it. The players outside the region are written as empty slots and a delta frame removes the
+	 * players that have left the region and sends every trail chunk that has come into it. A delta
+	 * frame only looks at the slots the snapshot found in the viewer's region and in its region of
+	 * the base.
+	 *
+	 * @param snapshot		The snapshot to send.
+	 * @param base				The snapshot the viewer has acknowledged, null for a keyframe.
+	 * @param viewer			The slot of the player the frame is for, -1 to send every slot and chunk.
+	 * @param buffer			The buffer to write the encoded message into.
+	 */
+	void encodePlayersFrame(SnapshotHistory.Snapshot snapshot, SnapshotHistory.Snapshot base, int viewer, ByteBuffer buffer) {
+		buffer.put(MAGIC);
+		buffer.put(VERSION);
+		buffer.put((byte)GameMessage.MessageTypes.PLAYERS_FRAME.ordinal());
+		buffer.putInt(snapshot.sequence);
+		buffer.putInt(base == null ? -1 : base.sequence);
+		buffer.putShort((short)snapshot.playerItIndex);
+		buffer.putInt(snapshot.serverTime);
+		buffer.putShort((short)snapshot.playerCount);
+		
+		if (base == null) {
+			// keyframe with all player records
+			for (int slot = 0; slot < snapshot.playerCount; slot++) {
+				if (snapshot.has(slot) && snapshot.sees(viewer, snapshot.x[slot], snapshot.y[slot])) {
+					buffer.put((byte)snapshot.flags[slot]);
+					buffer.putShort((short)snapshot.colorIndex[slot]);
+					buffer.putFloat(snapshot.x[slot]);
+					buffer.putFloat(snapshot.y[slot]);
+					buffer.putInt(snapshot.inputSequence[slot] < 0 ? -1 : snapshot.inputSequence[slot]);
+				}
+				else {
+					buffer.put((byte)0);
+					buffer.putShort((short)0);
+					buffer.putInt(0);
+					buffer.putInt(0);
+					buffer.putInt(-1);
+				}
+			}
+			for (int slot = 0; slot < snapshot.playerCount; slot++) {
+				if (snapshot.has(slot) && snapshot.sees(viewer, snapshot.x[slot], snapshot.y[slot])) putString(buffer, snapshot.names[slot]);
+			}
+			putTrail(buffer, snapshot, null, viewer);
+			return;
+		}
+		
+		// delta frame, the delta count is written once the deltas are known
+		int countPosition = buffer.position();
+		buffer.putShort((short)0);
+		int deltaCount = 0;
+		
+		if (snapshot.hasViewSlots(viewer) && (base.hasViewSlots(viewer) || !base.has(viewer))) {
+			// the players in the viewer's region now, then the players in its base region that are not
+			for (int index = snapshot.viewFirst[viewer]; index < snapshot.viewEnd[viewer]; index++) {
+				deltaCount += putPlayerDelta(buffer, snapshot, base, viewer, snapshot.viewSlots[index]);
+			}
+			if (base.has(viewer)) {
+				for (int index = base.viewFirst[viewer]; index < base.viewEnd[viewer]; index++) {
+					int slot = base.viewSlots[index];
+					if (slot < snapshot.playerCount && !(snapshot.has(slot) && snapshot.sees(viewer, snapshot.x[slot], snapshot.y[slot]))) deltaCount += putPlayerDelta(buffer, snapshot, base, viewer, slot);
+				}
+			}
+		}
+		else {
+			for (int slot = 0; slot < snapshot.playerCount; slot++) deltaCount += putPlayerDelta(buffer, snapshot, base, viewer, slot);
+		}
+		
+		buffer.putShort(countPosition, (short)deltaCount);
+		putTrail(buffer, snapshot, base, viewer);
+	}
+	
+	
+	// write the delta of one slot between the base and the snapshot for a viewer, a player that has
+	// left the viewer's region is removed and one that has come into it is sent in full, returns 1 if
+	// a delta was written or 0 if the slot has not changed
+	private static int putPlayerDelta(ByteBuffer buffer, SnapshotHistory.Snapshot snapshot, SnapshotHistory.Snapshot base, int viewer, int slot) {
+		boolean inBase = base.has(slot) && base.sees(viewer, base.x[slot], base.y[slot]);
+		int mask;
+		
+		if (!snapshot.has(slot) || !snapshot.sees(viewer, snapshot.x[slot], snapshot.y[slot])) {
+			// player left the slot
+			if (!inBase) return 0;
+			mask = DELTA_REMOVED;
+		}
+		else if (!inBase) {
+			// new player in the slot, send all fields
+			mask = DELTA_FLAGS | DELTA_COLOR | DELTA_X | DELTA_Y | DELTA_NAME;
+			if (snapshot.inputSequence[slot] >= 0) mask |= DELTA_INPUT;
+		}
+		else {
+			// send only the fields that changed
+			mask = 0;
+			if (snapshot.flags[slot] != base.flags[slot]) mask |= DELTA_FLAGS;
+			if (snapshot.colorIndex[slot] != base.colorIndex[slot]) mask |= DELTA_COLOR;
+			if (Float.floatToIntBits(snapshot.x[slot]) != Float.floatToIntBits(base.x[slot])) mask |= DELTA_X;
+			if (Float.floatToIntBits(snapshot.y[slot]) != Float.floatToIntBits(base.y[slot])) mask |= DELTA_Y;
+			if (!Objects.equals(snapshot.names[slot], base.names[slot])) mask |= DELTA_NAME;
+			if (snapshot.inputSequence[slot] >= 0 && snapshot.inputSequence[slot] != base.inputSequence[slot]) mask |= DELTA_INPUT;
+			if (mask == 0) return 0;
+		}
+		
+		buffer.putShort((short)slot);
+		buffer.put((byte)mask);
+		if ((mask & DELTA_FLAGS) != 0) buffer.put((byte)(snapshot.flags[slot] & (FLAG_MOUSE_PRESSED | FLAG_VISIBLE)));
+		if ((mask & DELTA_COLOR) != 0) buffer.putShort((short)snapshot.colorIndex[slot]);
+		if ((mask & DELTA_X) != 0) buffer.putFloat(snapshot.x[slot]);
+		if ((mask & DELTA_Y) != 0) buffer.putFloat(snapshot.y[slot]);
+		if ((mask & DELTA_NAME) != 0) putString(buffer, snapshot.names[slot]);
+		if ((mask & DELTA_INPUT) != 0) buffer.putInt(snapshot.inputSequence[slot]);
+		return 1;
+	}
+	
+	
+	/**
+	 * Decode a binary players frame into a reusable frame rather than into player maps.
+	 *
+	 * @param buffer			The buffer holding the encoded message, from the magic byte.
+	 * @param frame				The frame to fill, any entries it held are dropped.
+	 */
+	static void decodePlayersFrame(ByteBuffer buffer, PlayersFrame frame) {
+		if (buffer.get() != MAGIC) throw new IllegalArgumentException("Not a binary game message");
+		
+		byte version = buffer.get();
+		if (version != VERSION) throw new IllegalArgumentException("Unsupported binary message version " + version);
+		if ((buffer.get() & 0xff) != GameMessage.MessageTypes.PLAYERS_FRAME.ordinal()) throw new IllegalArgumentException("Not a players frame");
+		
+		int sequence = buffer.getInt();
+		int baseSequence = buffer.getInt();
+		int playerItIndex = buffer.getShort();
+		int serverTime = buffer.getInt();
+		int playerCount = buffer.getShort() & 0xffff;
+		frame.reset(sequence, baseSequence, playerItIndex, serverTime, playerCount);
+		
+		if (baseSequence < 0) {
+			// keyframe with all player records, the entries are the present players
+			for (int slot = 0; slot < playerCount; slot++) {
+				int flags = buffer.get();
+				int colorIndex = buffer.getShort() & 0xffff;
+				float x = buffer.getFloat(), y = buffer.getFloat();
+				int inputSequence = buffer.getInt();
+				if ((flags & FLAG_PRESENT) == 0) continue;
+				
+				int entry = frame.addEntry(slot, PlayersFrame.KEYFRAME_MASK | (inputSequence >= 0 ? DELTA_INPUT : 0));
+				frame.flags[entry] = flags & (FLAG_MOUSE_PRESSED | FLAG_VISIBLE);
+				frame.colorIndex[entry] = colorIndex;
+				frame.x[entry] = x;
+				frame.y[entry] = y;
+				frame.inputSequence[entry] = inputSequence;
+			}
+			for (int entry = 0; entry < frame.entryCount; entry++) frame.names[entry] = getString(buffer);
+		}
+		else {
+			// delta frame with only the changed fields
+			int deltaCount = buffer.getShort() & 0xffff;
+			
+			for (int i = 0; i < deltaCount; i++) {
+				int entry = frame.addEntry(buffer.getShort() & 0xffff, buffer.get());
+				int mask = frame.masks[entry];
+				
+				if ((mask & DELTA_FLAGS) != 0) frame.flags[entry] = buffer.get() & (FLAG_MOUSE_PRESSED | FLAG_VISIBLE);
+				if ((mask & DELTA_COLOR) != 0) frame.colorIndex[entry] = buffer.getShort() & 0xffff;
+				if ((mask & DELTA_X) != 0) frame.x[entry] = buffer.getFloat();
+				if ((mask & DELTA_Y) != 0) frame.y[entry] = buffer.getFloat();
+				if ((mask & DELTA_NAME) != 0) frame.names[entry] = getString(buffer);
+				if ((mask & DELTA_INPUT) != 0) frame.inputSequence[entry] = buffer.getInt();
+			}
+		}
+		
+		// the trail section is the rest of the message, it is applied by the simulation thread
+		frame.setTrail(buffer);
+	}
+	
+	
+	/**
+	 * Write a fixed layout player record from a player map. A null map is written as a record
+	 * without the present flag so slot positions are kept.
+	 *
+	 * @param buffer			The buffer to write the record into.
+	 * @param playerMap		The player map to write, may be null.
+	 * @param mapType			The type of player map, "current" or "goto".
+	 */
+	static void putPlayerRecord(ByteBuffer buffer, Map<String, Object> playerMap, String mapType) {
+		if (playerMap == null) {
+			buffer.put((byte)0);
+			buffer.putShort((short)0);
+			buffer.putInt(0);
+			buffer.putInt(0);
+			buffer.putInt(-1);
+			return;
+		}
+		
+		int flags = FLAG_PRESENT;
+		if (getBoolean(playerMap, "mousePressed")) flags |= FLAG_MOUSE_PRESSED;
+		if (getBoolean(playerMap, "isVisible")) flags |= FLAG_VISIBLE;
+		
+		buffer.put((byte)flags);
+		buffer.putShort((short)getInt(playerMap, "colorIndex", 0));
+		
+		if (mapType.equals("goto")) {
+			buffer.putInt(getInt(playerMap, "gotoX", 0));
+			buffer.putInt(getInt(playerMap, "gotoY", 0));
+		}
+		else {
+			buffer.putFloat(getFloat(playerMap, "currentX"));
+			buffer.putFloat(getFloat(playerMap, "currentY"));
+		}
+		
+		buffer.putInt(getInt(playerMap, "inputSequence", -1));
+	}
+	
+	
+	/**
+	 * Read a fixed layout player record into a player map.
+	 *
+	 * @param buffer			The buffer to read the record from.
+	 * @param playerMap		The player map to fill with the record values.
+	 * @param mapType			The type of player map, "current" or "goto".
+	 * @return						A boolean is returned noting true if the record holds a player.
+	 */
+	static boolean getPlayerRecord(ByteBuffer buffer, Map<String, Object> playerMap, String mapType) {
+		int flags = buffer.get();
+		int colorIndex = buffer.getShort() & 0xffff;
+		
+		if (mapType.equals("goto")) {
+			playerMap.put("gotoX", buffer.getInt());
+			playerMap.put("gotoY", buffer.getInt());
+		}
+		else {
+			playerMap.put("currentX", buffer.getFloat());
+			playerMap.put("currentY", buffer.getFloat());
+		}
+		
+		int inputSequence = buffer.getInt();
+		if (inputSequence >= 0) playerMap.put("inputSequence", inputSequence);
+		
+		playerMap.put("colorIndex", colorIndex);
+		playerMap.put("mousePressed", (flags & FLAG_MOUSE_PRESSED) != 0);
+		playerMap.put("isVisible", (flags & FLAG_VISIBLE) != 0);
+		
+		return (flags & FLAG_PRESENT) != 0;
+	}
+	
+	
+	/**
+	 * Write a player delta as the slot, a mask of the fields present and then those fields.
+	 * The mousePressed and isVisible flags are always written together.
+	 *
+	 * @param buffer			The buffer to write the delta into.
+	 * @param playerDelta	The player delta map as built by SnapshotHistory.buildDeltas.
+	 */
+	static void putPlayerDelta(ByteBuffer buffer, Map<String, Object> playerDelta) {
+		int mask = 0;
+		if (getBoolean(playerDelta, "removed")) mask |= DELTA_REMOVED;
+		if (playerDelta.containsKey("mousePressed") || playerDelta.containsKey("isVisible")) mask |= DELTA_FLAGS;
+		if (playerDelta.containsKey("colorIndex")) mask |= DELTA_COLOR;
+		if (playerDelta.containsKey("currentX")) mask |= DELTA_X;
+		if (playerDelta.containsKey("currentY")) mask |= DELTA_Y;
+		if (playerDelta.containsKey("name")) mask |= DELTA_NAME;
+		if (playerDelta.containsKey("inputSequence")) mask |= DELTA_INPUT;
+		
+		buffer.putShort((short)getInt(playerDelta, "slot", 0));
+		buffer.put((byte)mask);
+		
+		if ((mask & DELTA_FLAGS) != 0) {
+			int flags = 0;
+			if (getBoolean(playerDelta, "mousePressed")) flags |= FLAG_MOUSE_PRESSED;
+			if (getBoolean(playerDelta, "isVisible")) flags |= FLAG_VISIBLE;
+			buffer.put((byte)flags);
+		}
+		if ((mask & DELTA_COLOR) != 0) buffer.putShort((short)getInt(playerDelta, "colorIndex", 0));
+		if ((mask & DELTA_X) != 0) buffer.putFloat(getFloat(playerDelta, "currentX"));
+		if ((mask & DELTA_Y) != 0) buffer.putFloat(getFloat(playerDelta, "currentY"));
+		if ((mask & DELTA_NAME) != 0) putString(buffer, (String)playerDelta.get("name"));
+		if ((mask & DELTA_INPUT) != 0) buffer.putInt(getInt(playerDelta, "inputSequence", -1));
+	}
+	
+	
+	/**
+	 * Read a player delta into a new player delta map.
+	 *
+	 * @param buffer			The buffer to read the delta from.
+	 * @return						The player delta map.
+	 */
+	static Map<String, Object> getPlayerDelta(ByteBuffer buffer) {
+		Map<String, Object> playerDelta = new HashMap<>();
+		playerDelta.put("slot", buffer.getShort() & 0xffff);
+		int mask = buffer.get();
+		
+		if ((mask & DELTA_REMOVED) != 0) playerDelta.put("removed", true);
+		if ((mask & DELTA_FLAGS) != 0) {
+			int flags = buffer.get();
+			playerDelta.put("mousePressed", (flags & FLAG_MOUSE_PRESSED) != 0);
+			playerDelta.put("isVisible", (flags & FLAG_VISIBLE) != 0);
+		}
+		if ((mask & DELTA_COLOR) != 0) playerDelta.put("colorIndex", buffer.getShort() & 0xffff);
+		if ((mask & DELTA_X) != 0) playerDelta.put("currentX", buffer.getFloat());
+		if ((mask & DELTA_Y) != 0) playerDelta.put("currentY", buffer.getFloat());
+		if ((mask & DELTA_NAME) != 0) playerDelta.put("name", getString(buffer));
+		if ((mask & DELTA_INPUT) != 0) playerDelta.put("inputSequence", buffer.getInt());
+		
+		return playerDelta;
+	}
+	
+	
+	/**
+	 * Write the trail section of a snapshot, with every chunk that holds a trail if the base is
+	 * from before the last clear or there is no base, otherwise with the chunks that changed
+	 * since the base. A snapshot without a trail is written as an empty section.
+	 *
+	 * For a viewer only the chunks in the region round it are written, and a chunk that was not
+	 * in its region in the base snapshot is written whether or not it has changed, as the viewer
+	 * may hold an older copy of it.
+	 *
+	 * @param buffer			The buffer to write the section into.
+	 * @param snapshot		The snapshot to send.
+	 * @param base				The snapshot the client has acknowledged, null for a keyframe.
+	 * @param viewer			The slot of the player the section is for, -1 for the whole trail.
+	 */
+	static void putTrail(ByteBuffer buffer, SnapshotHistory.Snapshot snapshot, SnapshotHistory.Snapshot base, int viewer) {
+		if (!snapshot.hasTrail) {
+			buffer.put((byte)0);
+			buffer.putShort((short)0);
+			return;
+		}
+		
+		// a viewer with no view is sent the whole trail
+		if (viewer >= 0 && snapshot.has(viewer) && snapshot.viewSize[viewer] == 0) viewer = -1;
+		
+		boolean clear = base == null || !base.hasTrail || base.trailVersion - snapshot.trailClearVersion < 0;
+		buffer.put((byte)(TrailGrid.SYNC | (clear ? TrailGrid.CLEAR : 0)));
+		int countPosition = buffer.position();
+		buffer.putShort((short)0);
+		int chunkCount = 0;
+		
+		if (viewer < 0) {
+			for (int index = 0; index < snapshot.trailChunkCount; index++) {
+				if (clear ? !snapshot.trailFilled[index] : snapshot.trailChunkVersions[index] - base.trailVersion <= 0) continue;
+				
+				putTrailChunk(buffer, snapshot, index);
+				chunkCount += 1;
+			}
+		}
+		else if (snapshot.has(viewer)) {
+			// only the chunks the viewer's region covers
+			int columns = snapshot.trailChunkColumns, rows = snapshot.trailEntries.length / columns;
+			float left = snapshot.viewLeft[viewer], top = snapshot.viewTop[viewer];
+			int span = snapshot.viewSize[viewer] + 2 * SnapshotHistory.VIEW_MARGIN;
+			int firstColumn = Math.max(0, (int)Math.floor(left / TrailGrid.CHUNK_PIXELS)), lastColumn = Math.min(columns - 1, (int)Math.floor((left + span) / TrailGrid.CHUNK_PIXELS));
+			int firstRow = Math.max(0, (int)Math.floor(top / TrailGrid.CHUNK_PIXELS)), lastRow = Math.min(rows - 1, (int)Math.floor((top + span) / TrailGrid.CHUNK_PIXELS));
+			
+			for (int row = firstRow; row <= lastRow; row++) {
+				for (int column = firstColumn; column <= lastColumn; column++) {
+					int chunk = row * columns + column, index = snapshot.trailEntries[chunk];
+					if (index < 0 || !snapshot.seesChunk(viewer, chunk)) continue;
+					if (clear ? !snapshot.trailFilled[index] : (snapshot.trailChunkVersions[index] - base.trailVersion <= 0 && base.seesChunk(viewer, chunk))) continue;
+					
+					putTrailChunk(buffer, snapshot, index);
+					chunkCount += 1;
+				}
+			}
+		}
+		
+		buffer.putShort(countPosition, (short)chunkCount);
+	}
+	
+	
+	// write the runs of one trail chunk of a snapshot
+	private static void putTrailChunk(ByteBuffer buffer, SnapshotHistory.Snapshot snapshot, int index) {
+		int offset = snapshot.trailOffsets[index];
+		buffer.put(snapshot.trailBytes, offset, snapshot.trailOffsets[index + 1] - offset);
+	}
+	
+	
+	/**
+	 * Get the trail section of a snapshot as a Base64 string, as it is kept in player maps.
+	 *
+	 * @param snapshot		The snapshot to send.
+	 * @param base				The snapshot the client has acknowledged, null for a keyframe.
+	 * @param viewer			The slot of the player the section is for, -1 for the whole trail.
+	 * @return						The trail section.
+	 */
+	static String getTrailString(SnapshotHistory.Snapshot snapshot, SnapshotHistory.Snapshot base, int viewer) {
+		int size = 3 + (snapshot.hasTrail ? snapshot.trailOffsets[snapshot.trailChunkCount] : 0);
+		ByteBuffer section = ByteBuffer.allocate(size);
+		putTrail(section, snapshot, base, viewer);
+		return Base64.getEncoder().encodeToString(Arrays.copyOf(section.array(), section.position()));
+	}
+	
+	
+	// write the Base64 trail section of a payload, a payload without one is written as an empty section
+	static void putTrail(ByteBuffer buffer, Map<String, Object> payload) {
+		Object trail = payload.get("trail");
+		if (trail instanceof String) buffer.put(Base64.getDecoder().decode((String)trail));
+		else {
+			buffer.put((byte)0);
+			buffer.putShort((short)0);
+		}
+	}
+	
+	
+	// read the trail section at the end of a message into the payload as Base64, an empty section is left out
+	static void getTrail(ByteBuffer buffer, Map<String, Object> payload) {
+		if (buffer.remaining() < 3 || (buffer.get(buffer.position()) & TrailGrid.SYNC) == 0) return;
+		
+		byte[] section = new byte[buffer.remaining()];
+		buffer.get(section);
+		payload.put("trail", Base64.getEncoder().encodeToString(section));
+	}
+	
+	
+	// write a length prefixed UTF-8 string, null is written as an empty string, ASCII is written
+	// a character at a time so player names do not allocate
+	static void putString(ByteBuffer buffer, String s) {
+		if (s == null) s = "";
+		
+		int length = s.length();
+		boolean ascii = true;
+		for (int i = 0; i < length && ascii; i++) ascii = s.charAt(i) < 0x80;
+		
+		if (ascii) {
+			buffer.putShort((short)length);
+			for (int i = 0; i < length; i++) buffer.put((byte)s.charAt(i));
+			return;
+		}
+		
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		buffer.putShort((short)bytes.length);
+		buffer.put(bytes);
+	}
+	
+	
+	// read a length prefixed UTF-8 string
+	static String getString(ByteBuffer buffer) {
+		int length = buffer.getShort() & 0xffff;
+		String s;
+		
+		if (buffer.hasArray()) {
+			s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+			buffer.position(buffer.position() + length);
+		}
+		else {
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			s = new String(bytes, StandardCharsets.UTF_8);
+		}
+		
+		return s;
+	}
+	
+	
+	// payload helpers, numbers may be any Number type depending on the codec that built the map,
+	// a missing value or a value of the wrong type gives the default so a bad message can not throw
+	static int getInt(Map<String, Object> map, String key, int defaultValue) {
+		Object value = map.get(key);
+		return value instanceof Number ? ((Number)value).intValue() : defaultValue;
+	}
+	
+	
+	static float getFloat(Map<String, Object> map, String key) {
+		return getFloat(map, key, 0);
+	}
+	
+	
+	static float getFloat(Map<String, Object> map, String key, float defaultValue) {
+		Object value = map.get(key);
+		return value instanceof Number ? ((Number)value).floatValue() : defaultValue;
+	}
+	
+	
+	static boolean getBoolean(Map<String, Object> map, String key) {
+		return getBoolean(map, key, false);
+	}
+	
+	
+	static boolean getBoolean(Map<String, Object> map, String key, boolean defaultValue) {
+		Object value = map.get(key);
+		return value instanceof Boolean ? ((Boolean)value).booleanValue() : defaultValue;
+	}
+	
+	
+	static String getString(Map<String, Object> map, String key, String defaultValue) {
+		Object value = map.get(key);
+		return value instanceof String ? (String)value : defaultValue;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package getem;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+
+/**
+ * The BufferPool keeps a set of equally sized byte buffers so the communication thread can
+ * reuse them for every datagram instead of allocating new arrays. Buffers are handed out
+ * cleared and are returned to the pool when the caller is done with them.
+ *
+ * @author			Bryan Nielsen
+ */
+class BufferPool {
+	int bufferSize, maximumPooled;
+	boolean direct;
+	ArrayDeque<ByteBuffer> freeBuffers;
+	
+	
+	/**
+	 * The constructor creates an empty pool, buffers are allocated as they are first needed.
+	 *
+	 * @param size					The capacity in bytes of each buffer.
+	 * @param useDirect			True to allocate direct buffers that the channel can read and
+	 *														write without an extra copy.
+	 * @param maximum				The most free buffers kept, extra returned buffers are dropped.
+	 */
+	public BufferPool(int size, boolean useDirect, int maximum) {
+		bufferSize = size;
+		direct = useDirect;
+		maximumPooled = maximum;
+		freeBuffers = new ArrayDeque<ByteBuffer>();
+	}
+	
+	
+	/**
+	 * Take a cleared buffer from the pool, a new buffer is allocated if the pool is empty.
+	 *
+	 * @return				A buffer with bufferSize capacity.
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = freeBuffers.poll();
+		
+		if (buffer == null) {
+			buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+		}
+		
+		buffer.clear();
+		return buffer;
+	}
+	
+	
+	/**
+	 * Return a buffer to the pool. Buffers from other sources are ignored.
+	 *
+	 * @param buffer			The buffer to return.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer != null && buffer.capacity() == bufferSize && freeBuffers.size() < maximumPooled) {
+			freeBuffers.push(buffer);
+		}
+	}
+}
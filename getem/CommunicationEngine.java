@@ -27,28 +27,54 @@ package getem;
 
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
-import com.google.gson.Gson;
+import java.nio.channels.*;
+import java.util.concurrent.locks.LockSupport;
 
 
 /**
  * The CommunicationEngine is a Thread class used to encapsulate the variables and functions
  * used for game engine communication between clients and the server.
  *
+ * Communication is a pipeline of three threads. The receive stage reads and decodes datagrams
+ * and queues them for this thread, the simulation stage, which applies them to the game and runs
+ * the simulation ticks. Outgoing messages are queued for the send stage which encodes and sends
+ * them. Each queue has a single producer and a single consumer so they are lock free, and a full
+ * queue drops messages rather than blocking a stage.
+ *
  * @author			Bryan Nielsen
  */
 class CommunicationEngine extends Thread {
 	// declare variables
-	int socketRequest, serverPort, timerDelayMS;
-	SocketStates socketState;
+	int serverPort, mtu, maximumMessageSize;
+	volatile int socketRequest;
+	volatile SocketStates socketState;
+	TickScheduler scheduler;
 	GameEngine getemEngine;
 	GameMessage getemMessage;
-	DatagramSocket communicationSocket;
-	DatagramPacket receivePacket, sendPacket;
+	volatile DatagramChannel communicationChannel;
+	ReceiveStage receiveStage;
+	SendStage sendStage;
 	String joinHost, joinPlayerName;
 	InetAddress serverAddress;
 	InetSocketAddress serverSocketAddress;
-	Gson gson;
+	JsonMessageCodec jsonCodec;
+	BinaryMessageCodec binaryCodec;
+	MessageCodec serverCodec;
+	String preferredCodec;
+	SnapshotHistory clientHistory;
+	InputHistory clientInputs;
+	InterpolationBuffer interpolation;
+	int snapshotSequence, lastFrameSequence;
+	ServerMetrics metrics;
+	
+	// the server sends the trail, otherwise a client draws the trails of the players it is sent
+	boolean trailSynced;
+	
+	
+	// the most unacknowledged inputs a client sends in one PLAYER_FRAME
+	static final int MAXIMUM_SENT_INPUTS = 32;
 	
 	
 	// enumerate possible socket states
@@ -62,31 +88,80 @@ class CommunicationEngine extends Thread {
 	 * creating this instance so it can react with the game engine players and components.
 	 *
 	 * @param ge				A reference to the parent game engine.
-	 */
+	 */
   public CommunicationEngine(GameEngine ge) {
   	// set variables
   	getemEngine = ge;
   	socketState = SocketStates.DISCONNECT;
   	socketRequest = 0;
   	serverPort = 3000;
-  	timerDelayMS = 100;
   	
-  	gson = new Gson();
+  	// simulation and network send rates can be set with -Dgetem.simulationRate and -Dgetem.sendRate
+  	scheduler = new TickScheduler(
+  		Integer.getInteger("getem.simulationRate", 60),
+  		Integer.getInteger("getem.sendRate", 20),
+  		Integer.getInteger("getem.catchUpTicks", 5)
+  	);
+  	
+  	// message codecs, a client asks for the preferred codec when joining, set with -Dgetem.codec
+  	jsonCodec = new JsonMessageCodec();
+  	binaryCodec = new BinaryMessageCodec();
+  	serverCodec = jsonCodec;
+  	preferredCodec = BinaryMessageCodec.requestName(System.getProperty("getem.codec", BinaryMessageCodec.FORMAT));
+  	
+  	// datagrams are never larger than the mtu, messages that do not fit are sent as fragments, set with -Dgetem.mtu
+  	mtu = Math.max(576, Math.min(65507, Integer.getInteger("getem.mtu", 1200)));
+  	
+  	// the largest encoded message is as many fragments as a message can be split into
+  	maximumMessageSize = FragmentAssembler.MAXIMUM_FRAGMENTS * (mtu - FragmentAssembler.HEADER_SIZE);
+  	
+  	// snapshots kept for delta frames, a client ack older than this gets a keyframe
+  	int historySize = Integer.getInteger("getem.snapshotHistory", 32);
+  	clientHistory = new SnapshotHistory(historySize);
+  	snapshotSequence = 0;
+  	lastFrameSequence = -1;
+  	
+  	// inputs a client has sent that the server has not applied yet
+  	clientInputs = new InputHistory(Integer.getInteger("getem.inputHistory", 128));
+  	
+  	// remote players are drawn this many milliseconds behind the server, set with -Dgetem.interpolationDelay
+  	interpolation = new InterpolationBuffer(
+  		Integer.getInteger("getem.interpolationFrames", 16),
+  		Integer.getInteger("getem.interpolationDelay", 100),
+  		Integer.getInteger("getem.extrapolationLimit", 250)
+  	);
   	
+  	// the receive and send stages with their queues, the queue size can be set with -Dgetem.queueSize
+  	int queueSize = Integer.getInteger("getem.queueSize", 4096);
+  	sendStage = new SendStage(jsonCodec, binaryCodec, mtu, maximumMessageSize, queueSize, historySize);
+  	try {
+  		receiveStage = new ReceiveStage(this, jsonCodec, binaryCodec, mtu, maximumMessageSize, queueSize);
+  	}
+  	catch (IOException ioe) {
+  		System.out.println("IO Exception: " + ioe);
+  	}
+  	
+  	// every stage records into the same metrics, each counter is only written by one of the threads
+  	metrics = new ServerMetrics("server");
+  	sendStage.metrics = metrics;
+  	if (receiveStage != null) receiveStage.metrics = metrics;
 	}
 	
 	
 	/**
 	 * The run function for the Thread will run continuously and process all socket communication
-	 * functions. The timing of this thread also determines the game play and refresh frequency.
+	 * functions. The tick scheduler determines the game play and network send frequency, incoming
+	 * messages are handled as soon as the receive stage queues them.
 	 */
 	public void run() {
+		// start the receive and send stages
+		receiveStage.start();
+		sendStage.start();
+		
 		while(true) {
-			// loop delay
-			try {
-				Thread.sleep(timerDelayMS);
-			}
-			catch(InterruptedException e) {}
+			// wait for the next simulation tick or network send, the receive stage wakes us early
+			long waitNS = scheduler.nanosUntilNextEvent();
+			if (waitNS > 0 && receiveStage.inputQueue.isEmpty() && socketRequest == 0) LockSupport.parkNanos(this, waitNS);
 			
 			
 			// socket request actions
@@ -98,22 +173,23 @@ class CommunicationEngine extends Thread {
 				
 				// open socket
 				try {
-					communicationSocket = new DatagramSocket(serverPort);
-					communicationSocket.setSoTimeout(5);
+					openChannel(new InetSocketAddress(serverPort));
 					socketState = SocketStates.SERVER_OPEN;
+					scheduler.reset();
+					metrics.register();
 					System.out.println("Server socket opened");
 					
-					// set player 0 color index to 0
-					getemEngine.resetMePlayer(0);
+					// the field is the size set with -Dgetem.worldSize, clients take it from the join accept
+					getemEngine.setFieldSize(Player.WORLD_SIZE);
 					
-					// repaint the MeCanvas to show new color
-					getemEngine.meCanvas.repaint();
+					// set player 0 color index to 0, the MeCanvas shows the new color once it is published
+					getemEngine.resetMePlayer(0);
 					
-					getemEngine.playerItIndex = 0;
-					getemEngine.who.repaint();
+					// the host is it
+					getemEngine.setPlayerItIndex(0);
 				}
-				catch (SocketException se) {
-					System.out.println("Socket Exception: " + se);
+				catch (IOException ioe) {
+					System.out.println("IO Exception: " + ioe);
 				}
 				break;
 				
@@ -125,274 +201,430 @@ class CommunicationEngine extends Thread {
 				
 				// open socket
 				try {
-					communicationSocket = new DatagramSocket();
-					communicationSocket.setSoTimeout(5);
+					openChannel(null);
 					socketState = SocketStates.JOIN_REQUEST;
+					clientHistory.clear();
+					clientInputs.clear();
+					interpolation.clear();
+					lastFrameSequence = -1;
+					trailSynced = false;
 					System.out.println("Client socket opened");
 					
-					// send join request
+					// send join request, always as JSON as we do not know what the server supports
 					getemMessage = new GameMessage("JOIN");
 					getemMessage.payload.put("name", joinPlayerName);
-					sendMessage(getemMessage, serverSocketAddress);
+					getemMessage.payload.put("codec", preferredCodec);
+					getemMessage.payload.put("delta", true);
+					
+					// the server streams only the region round our view of the field
+					getemMessage.payload.put("view", GameField.VIEW_SIZE);
+					
+					// a room server puts us in the room named with -Dgetem.room
+					if (System.getProperty("getem.room") != null) getemMessage.payload.put("room", System.getProperty("getem.room"));
+					sendMessage(getemMessage, serverSocketAddress, jsonCodec);
 				}
-				catch (SocketException se) {
-					System.out.println("Socket Exception: " + se);
+				catch (IOException ioe) {
+					System.out.println("IO Exception: " + ioe);
 				}
 				break;
+				
+				
+				// close socket request
+				case 3:
+				closeSocket();
+				break;
 			} // end of socket request switch
 			
 			// reset request
 			socketRequest = 0;
 			
 			
-			// if socket is open then read any incoming packets
-			if (socketState != SocketStates.DISCONNECT) readSocketPackets();
+			// handle the messages queued by the receive stage
+			if (!receiveStage.inputQueue.isEmpty()) {
+				long receiveStartNS = System.nanoTime();
+				processInboundMessages();
+				metrics.recordPhase(ServerMetrics.RECEIVE, System.nanoTime() - receiveStartNS);
+			}
+			
+			
+			// take the due ticks and send slot from the scheduler, they pass whether or not we use them
+			int ticks = scheduler.simulationTicksDue();
+			boolean sendDue = scheduler.sendDue();
 			
+			// take the mouse controls of our player from the AWT event thread before simulating it
+			if (ticks > 0) getemEngine.controls.applyTo(getemEngine.me);
 			
-			// server outgoing message processing
+			// server simulation and outgoing message processing
 			if (socketState == SocketStates.SERVER_OPEN) {
-				// move players in the game engine
-				getemEngine.calculatePlayerMoves();
-				
-				// check if a new player is tagged
-				int newPlayerItIndex = getemEngine.playerTagged();
-								
-				// build a game message frame for all players
-				getemMessage = new GameMessage("PLAYERS_FRAME");
-				ArrayList<Map<String, Object>> playerMaps = new ArrayList<Map<String, Object>>();
-				
-				// iterate through players adding their hash map to the a list of player maps
-				Iterator<Player> playerIterator = getemEngine.playerList.iterator();
-				while (playerIterator.hasNext()) {
-					Player next = playerIterator.next();
+				// run each due simulation tick with the fixed timestep
+				for (int tick = 0; tick < ticks; tick++) {
+					// move players in the game engine
+					long startNS = System.nanoTime();
+					getemEngine.calculatePlayerMoves(scheduler.getSimulationSeconds());
+					long movedNS = System.nanoTime();
+					
+					// check if a new player is tagged and if so update on server
+					int newPlayerItIndex = getemEngine.playerTagged();
+					if (newPlayerItIndex != getemEngine.room.playerItIndex) getemEngine.setPlayerItIndex(newPlayerItIndex);
 					
-					if (next == null) playerMaps.add(null);
-					else playerMaps.add(next.getPlayerMap("current"));
+					metrics.recordPhase(ServerMetrics.MOVE, movedNS - startNS);
+					metrics.recordPhase(ServerMetrics.TAG, System.nanoTime() - movedNS);
 				}
+				metrics.count(ServerMetrics.TICKS, ticks);
+				metrics.activePlayers = getemEngine.room.playerCount;
 				
-				// load player hash maps into the message payload
-				getemMessage.payload = new HashMap<>();
-				getemMessage.payload.put("playerMaps", playerMaps);
-				getemMessage.payload.put("playerItIndex", newPlayerItIndex);
+				// send a frame to the clients at the network send rate
+				if (sendDue) {
+					sendPlayersFrame();
+				}
 				
-				// send message to clients
-				playerIterator = getemEngine.playerList.iterator();
-				while (playerIterator.hasNext()) {
-					Player next = playerIterator.next();
-					
-					if (next != null && next.address != null) {
-						sendMessage(getemMessage, next.address);
+				// measure the round trip to each client now and then
+				if (getemEngine.room.pingDue()) {
+					GameMessage ping = GameRoom.buildPing();
+					for (Player next : getemEngine.playerList) {
+						if (next != null && next.address != null) sendMessage(ping, next.address, jsonCodec);
 					}
+					metrics.publishRoundTrips(getemEngine.playerList);
 				}
-				
-				// if it player has changed then update on server
-				if (newPlayerItIndex != getemEngine.playerItIndex) getemEngine.setPlayerItIndex(newPlayerItIndex);
-				
-				// repaint game field
-				getemEngine.display.repaint();
 			}
 			
-			// else if client then send me map update
+			// else if client then send me map update at the network send rate
 			else if (socketState == SocketStates.JOIN_OPEN) {
-				getemMessage = new GameMessage("PLAYER_FRAME");
+				// sample an input each tick and predict our own move with it
+				for (int tick = 0; tick < ticks; tick++) predictMePlayer(clientInputs.sample(getemEngine.me));
 				
-				// fill payload with player map
-				getemMessage.payload = getemEngine.me.getPlayerMap("goto");
-							
-				// add the map type
-				getemMessage.payload.put("mapType", "frame");
+				// move the remote players to their interpolated positions, and draw their trails if the server does not send them
+				if (ticks > 0) {
+					interpolation.apply(getemEngine.playerList, getemEngine.me.colorIndex, System.nanoTime() / 1000000);
+					if (!trailSynced) getemEngine.room.drawViewTrails();
+					getemEngine.publishWorld();
+				}
 				
-				// send frame to server
-				sendMessage(getemMessage, serverSocketAddress);
+				if (sendDue) {
+					getemMessage = new GameMessage("PLAYER_FRAME");
+					
+					// fill payload with player map
+					getemMessage.payload = getemEngine.me.getPlayerMap("goto");
+								
+					// add the map type, acknowledge the last players frame and send the inputs the server has not applied
+					getemMessage.payload.put("mapType", "frame");
+					getemMessage.payload.put("ack", lastFrameSequence);
+					getemMessage.payload.put("inputs", clientInputs.getInputMaps(MAXIMUM_SENT_INPUTS));
+					
+					// send frame to server
+					sendMessage(getemMessage, serverSocketAddress, serverCodec);
+				}
 			}
 		} // end of run while loop
 	} // end of Thread run function
 	
 	
-	// read packets
-	private void readSocketPackets() {
-		InetSocketAddress clientAddress;
+	/**
+	 * Open a non-blocking datagram channel and hand it to the send and receive stages.
+	 *
+	 * @param bindAddress			The local address to bind, null for any free port.
+	 */
+	private void openChannel(InetSocketAddress bindAddress) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.bind(bindAddress);
+		}
+		catch (IOException ioe) {
+			channel.close();
+			throw ioe;
+		}
+		communicationChannel = channel;
+		
+		// the send stage gets the channel first so replies to the first messages can be sent
+		enqueue(new SendStage.OutboundMessage(SendStage.Actions.OPEN, null, null, null, null, null, communicationChannel));
+		receiveStage.setChannel(communicationChannel);
+	}
+	
+	
+	// handle all messages queued by the receive stage
+	private void processInboundMessages() {
+		InetSocketAddress clientAddress, receiveAddress;
+		MessageCodec receiveCodec;
+		ReceiveStage.InboundMessage inbound;
 		
-		if (socketState != SocketStates.DISCONNECT) {
-			// loop to read all packets
-			while (true) {
-				try {
-					receivePacket = new DatagramPacket(new byte[1024], 1024);
-					communicationSocket.receive(receivePacket);
-					
-					// get packet data as string and trim to avoid JSON exception
-					String s = new String(receivePacket.getData());
-					s = s.trim();
-					
-					// convert JSON to game message
-					getemMessage = gson.fromJson(s, GameMessage.class);
-					
-					switch (getemMessage.getMessageType()) {
-						// received a join request message
-						case JOIN:
-						// assign slot
-						Player newPlayer = getemEngine.addPlayer(
-							(String)getemMessage.payload.get("name"), 
-							new InetSocketAddress(receivePacket.getAddress(), receivePacket.getPort())
-						);
-						
-						if (newPlayer == null) {
-							// join failed
-							getemMessage = new GameMessage(GameMessage.MessageTypes.JOIN_REJECT);
-						}
-						else {
-							// send accept message
-							getemMessage = new GameMessage(GameMessage.MessageTypes.JOIN_ACCEPT);
-						
-							// fill payload with new player info
-							getemMessage.payload = newPlayer.getPlayerMap("current");
-							
-							// add the map type
-							getemMessage.payload.put("mapType", "join");
-						}
-						
-						// send message to client
-						clientAddress = new InetSocketAddress(receivePacket.getAddress(), receivePacket.getPort());
-						sendMessage(getemMessage, clientAddress);
-						break;
-						
-						
-						// join request accepted
-						case JOIN_ACCEPT:
-						// remove an pre-existing player list
-						getemEngine.playerList.removeAll(getemEngine.playerList);
-						
-						// apply the map in the message payload to player 0
-						getemEngine.me.applyMap(getemMessage.payload);
-						
-						// redraw the MeCanvas to update name and color
-						getemEngine.meCanvas.repaint();
-						
-						getemEngine.display.clearField();
-						
-						// socket state set to game joined
-						socketState = SocketStates.JOIN_OPEN;
-						break;
-						
-						
-						// player frame
-						case PLAYER_FRAME:
-						// apply map in frame to player with same address
-						clientAddress = new InetSocketAddress(receivePacket.getAddress(), receivePacket.getPort());
-						int playerIndex = getemEngine.getPlayerIndexByAddress(clientAddress);
-						
-						if (playerIndex > 0) {
-							getemEngine.applyPlayerMap(playerIndex, getemMessage.payload);
-						}
-						break;
-						
-						
-						// players frame
-						case PLAYERS_FRAME:
-						getemEngine.applyPlayerMaps((ArrayList<Map<String, Object>>)getemMessage.payload.get("playerMaps"));
-						
-						if (getemMessage.payload.containsKey("playerItIndex")) 
-							getemEngine.setPlayerItIndex(((Double)getemMessage.payload.get("playerItIndex")).intValue());
-						break;
-						
-						
-						// disconnect
-						case DISCONNECT:
-						// if client socket open then server disconnected
-						if (socketState == SocketStates.JOIN_OPEN) {
-							// close our connection
-							closeSocket();
-							
-							// reset player
-							getemEngine.resetMePlayer(0);
-						}
-						// if server socket open then a client disconnected
-						else if (socketState == SocketStates.SERVER_OPEN) {
-							clientAddress = new InetSocketAddress(receivePacket.getAddress(), receivePacket.getPort());
-							getemEngine.nullPlayer(clientAddress);
-						}
-						
-						break;
-						
-						
-						// ping packet
-						case PING:
-						clientAddress = new InetSocketAddress(receivePacket.getAddress(), receivePacket.getPort());
+		while ((inbound = receiveStage.inputQueue.poll()) != null) {
+			// skip messages from a socket that has since been closed
+			if (socketState == SocketStates.DISCONNECT || inbound.channel != communicationChannel) {
+				receiveStage.release(inbound.message);
+				continue;
+			}
+			
+			getemMessage = inbound.message;
+			receiveAddress = inbound.address;
+			receiveCodec = inbound.codec;
+			
+			// a message we can not apply is counted as malformed, it must not stop the communication thread
+			try {
+				switch (getemMessage.getMessageType()) {
+					// received a join request message
+					case JOIN:
+					// assign slot and build the accept or reject message
+					getemMessage = getemEngine.room.join(getemMessage, receiveAddress, jsonCodec, binaryCodec);
+					
+					// send message to client with the codec the join request used
+					clientAddress = receiveAddress;
+					sendMessage(getemMessage, clientAddress, receiveCodec);
+					break;
+					
+					
+					// join request accepted
+					case JOIN_ACCEPT:
+					// remove an pre-existing player list
+					getemEngine.players.clear();
+					
+					// apply the map in the message payload to player 0
+					getemEngine.me.applyMap(getemMessage.payload);
+					
+					// use the codec selected by the server, older servers and servers with another binary version use JSON
+					if (BinaryMessageCodec.NAME.equals(getemMessage.payload.get("codec"))) serverCodec = binaryCodec;
+					else serverCodec = jsonCodec;
+					
+					// take the size of the server's field, older servers only have the 400 pixel field
+					if (getemMessage.payload.get("worldSize") instanceof Number) getemEngine.setFieldSize(((Number)getemMessage.payload.get("worldSize")).intValue());
+					else getemEngine.setFieldSize(Player.MINIMUM_FIELD_SIZE);
+					
+					// clear the field, the MeCanvas shows our new name and color once it is published
+					getemEngine.clearField();
+					
+					// start from the trails the other players have left so far, older servers send none
+					if (getemMessage.payload.get("trail") instanceof String) {
+						trailSynced = getemEngine.room.trail.apply(ByteBuffer.wrap(Base64.getDecoder().decode((String)getemMessage.payload.get("trail"))));
+					}
+					
+					// socket state set to game joined
+					socketState = SocketStates.JOIN_OPEN;
+					scheduler.reset();
+					break;
+					
+					
+					// player frame
+					case PLAYER_FRAME:
+					// apply map in frame to player with same address
+					clientAddress = receiveAddress;
+					int playerIndex = getemEngine.getPlayerIndexByAddress(clientAddress);
+					
+					// the goto map, the frame ack and the inputs are applied by the room
+					if (playerIndex > 0) getemEngine.room.applyPlayerFrame(playerIndex, getemMessage.payload, scheduler.getSimulationSeconds());
+					break;
+					
+					
+					// players frame
+					case PLAYERS_FRAME:
+					applyPlayersFrame(getemMessage);
+					break;
+					
+					
+					// disconnect
+					case DISCONNECT:
+					// if client socket open then server disconnected
+					if (socketState == SocketStates.JOIN_OPEN) {
+						// close our connection
+						closeSocket();
 						
+						// reset player
+						getemEngine.resetMePlayer(0);
+					}
+					// if server socket open then a client disconnected
+					else if (socketState == SocketStates.SERVER_OPEN) {
+						clientAddress = receiveAddress;
+						getemEngine.nullPlayer(clientAddress);
+					}
+					
+					break;
+					
+					
+					// ping packet
+					case PING:
+					clientAddress = receiveAddress;
+					
+					if (getemMessage.payload.get("pingTime") != null) {
+						// a round trip ping from the server, send the ping time straight back
+						Object pingTime = getemMessage.payload.get("pingTime");
+						getemMessage = new GameMessage(GameMessage.MessageTypes.PING_RESPONSE);
+						getemMessage.payload.put("pingTime", pingTime);
+					}
+					else {
 						// build a game message frame for all players
-						getemMessage = new GameMessage("PING_RESPONSE");
-						ArrayList<Map<String, Object>> playerMaps = new ArrayList<Map<String, Object>>();
-						
-						Iterator<Player> playerIterator = getemEngine.playerList.iterator();
-						while (playerIterator.hasNext()) {
-							Player next = playerIterator.next();
-							
-							if (next == null) playerMaps.add(null);
-							else playerMaps.add(next.getPlayerMap("current"));
-						}
-						
-						getemMessage.payload = new HashMap<>();
-						getemMessage.payload.put("playerMaps", playerMaps);
-						getemMessage.payload.put("playerItIndex", getemEngine.playerItIndex);
-						
-						// send response
-						sendMessage(getemMessage, clientAddress);
-						break;
-						
+						getemMessage = getemEngine.room.buildPlayersMessage(GameMessage.MessageTypes.PING_RESPONSE);
 					}
-				}
-				catch (IOException ioe) {
-					// nothing left to read
 					
-					return;
+					// send response
+					sendMessage(getemMessage, clientAddress, receiveCodec);
+					break;
+					
+					
+					// the response to a round trip ping
+					case PING_RESPONSE:
+					if (socketState == SocketStates.SERVER_OPEN) {
+						int pingIndex = getemEngine.getPlayerIndexByAddress(receiveAddress);
+						if (pingIndex > 0) getemEngine.room.pingResponse(pingIndex, getemMessage.payload, metrics);
+					}
+					break;
+					
 				}
 			}
+			catch (RuntimeException re) {
+				System.out.println("Malformed message: " + re);
+				metrics.count(ServerMetrics.MALFORMED, 1);
+			}
+			
+			// a pooled players frame can be decoded into again
+			receiveStage.release(inbound.message);
 		}
 	}
 	
 	
 	/**
-	 * The send message function will prepare the provided message instance for transmission
-	 * and send it through the socket. The message is converted to a JSON formatted string so 
-	 * it can easily be used by alternative clients and message consumers.
+	 * The send message function will queue the provided message instance for the send stage
+	 * to encode and send through the socket. The message is encoded with the codec selected for
+	 * the destination, JSON so it can easily be used by alternative clients and message consumers
+	 * or the compact binary format. The message must not be changed after it has been queued.
 	 *
 	 * @param msg				A game message ready to be sent.
 	 * @param sockAdd	The socket address where the message should be sent.
+	 * @param codec			The codec used to encode the message, null for JSON.
 	 */
-	private void sendMessage(GameMessage msg, InetSocketAddress sockAdd) {
-		try {
-			// convert message to a JSON string
-			String s = gson.toJson(msg);
-			
-			// create datagram packet to send
-			sendPacket = new DatagramPacket(s.getBytes(), s.length(), sockAdd);
-			
-			// send the packet
-			sendSocketPacket(sendPacket);
-		}
-		catch (SocketException se) {
-			System.out.println("Socket Exception: " + se);
-		}
+	private void sendMessage(GameMessage msg, InetSocketAddress sockAdd, MessageCodec codec) {
+		enqueue(new SendStage.OutboundMessage(SendStage.Actions.SEND, msg, sockAdd, codec, null, null, null));
+	}
+	
+	
+	/**
+	 * Queue an action for the send stage and wake it. The action is dropped if the send stage
+	 * has fallen so far behind that the queue is full.
+	 *
+	 * @param out				The outbound action.
+	 */
+	private void enqueue(SendStage.OutboundMessage out) {
+		if (!sendStage.outputQueue.offer(out)) metrics.count(ServerMetrics.DROPPED_OUT, 1);
+		LockSupport.unpark(sendStage);
 	}
 
 
 	/**
-	 * The sendSocketPacket is a general datagram packet send function used
-	 * for all communications.
+	 * The send players frame function takes a snapshot of all the players, with the send details
+	 * of each client, and queues it for the send stage. The send stage keeps the snapshot history
+	 * and picks a delta frame or keyframe for each client. Snapshots that have left the history
+	 * are reused.
+	 */
+	private void sendPlayersFrame() {
+		snapshotSequence += 1;
+		
+		SnapshotHistory.Snapshot snapshot = sendStage.serverHistory.obtain();
+		getemEngine.room.fillSnapshot(snapshot, snapshotSequence, scheduler.getSimulationMillis());
+		
+		enqueue(SendStage.playersFrameOf(snapshot, null));
+	}
+	
+	
+	/**
+	 * The apply players frame function is used by a client to apply a players frame from the server.
+	 * Delta frames are applied to the base snapshot from the client history to rebuild the full
+	 * snapshot. Frames older than the last applied frame are ignored. Binary frames arrive already
+	 * decoded into a frame and are applied without allocating, frames decoded as maps are turned
+	 * into a frame first.
 	 *
-	 * @param sendDP				The datagram packet to send over the communication socket.
+	 * @param msg				The players frame message received from the server.
 	 */
-	private void sendSocketPacket(DatagramPacket sendDP) {
-		if (socketState != SocketStates.DISCONNECT) {
-			try {
-				communicationSocket.send(sendDP);
-			}
-			catch (IOException ioe) {
-				System.out.println("IO Exception: " + ioe);
-			}
+	private void applyPlayersFrame(GameMessage msg) {
+		PlayersFrame frame = msg.frame != null ? msg.frame : PlayersFrame.fromPayload(msg.payload, getemEngine.room.playerItIndex);
+		
+		// ignore frames that arrive out of order, frames from servers without snapshot sequences are always full frames
+		if (frame.sequence >= 0 && frame.sequence <= lastFrameSequence) return;
+		
+		// we can not rebuild a delta if we no longer have the base snapshot
+		SnapshotHistory.Snapshot snapshot = clientHistory.applyFrame(frame);
+		if (snapshot == null) return;
+		if (frame.sequence >= 0) lastFrameSequence = frame.sequence;
+		
+		// the players are reset when the it player changes, start the remote players again from there
+		int playerItIndex = snapshot.playerItIndex;
+		if (playerItIndex != getemEngine.room.playerItIndex) interpolation.clear();
+		
+		getemEngine.applySnapshot(snapshot);
+		getemEngine.setPlayerItIndex(playerItIndex);
+		
+		// apply the trail chunks after any reset for a new it player has cleared the trails
+		if (getemEngine.room.trail.apply(frame.trail)) trailSynced = true;
+		
+		// keep the frame for interpolation and put the remote players back at their interpolated positions,
+		// frames from older servers have no server time and are shown as they arrive
+		if (snapshot.serverTime >= 0) {
+			long now = System.nanoTime() / 1000000;
+			interpolation.add(snapshot.serverTime, snapshot, now);
+			interpolation.apply(getemEngine.playerList, getemEngine.me.colorIndex, now);
 		}
+		
+		// put our own player back where the server has it and replay the inputs the server has not applied
+		int meIndex = getemEngine.me.colorIndex;
+		if (snapshot.has(meIndex)) reconcileMePlayer(snapshot, meIndex);
+		
+		// a frame without a sequence is not kept in the history
+		if (frame.sequence < 0) clientHistory.recycle(snapshot);
+	}
+	
+	
+	/**
+	 * Move our own player in the player list with a new input before the server has applied it.
+	 * Prediction only starts once the server shows it applies our inputs, an older server moves
+	 * the player itself from the goto coordinates.
+	 *
+	 * @param input				The input sampled for this tick.
+	 */
+	private void predictMePlayer(InputHistory.Input input) {
+		Player predicted = getPredictedPlayer();
+		if (predicted != null) predicted.applyInput(input, scheduler.getSimulationSeconds());
+	}
+	
+	
+	/**
+	 * Reconcile our own player with its authoritative state from the server. The inputs the
+	 * server has applied are dropped and the rest are replayed from the server's position.
+	 *
+	 * @param snapshot		The snapshot from the server.
+	 * @param meIndex			Our slot in the snapshot.
+	 */
+	private void reconcileMePlayer(SnapshotHistory.Snapshot snapshot, int meIndex) {
+		Player predicted = getPredictedPlayer();
+		if (predicted == null) return;
+		
+		snapshot.copyToView(meIndex, predicted);
+		clientInputs.acknowledge(predicted.inputSequence);
+		
+		for (InputHistory.Input input : clientInputs.inputs) predicted.applyInput(input, scheduler.getSimulationSeconds());
+	}
+	
+	
+	// our own player in the player list, null if the server does not apply our inputs
+	private Player getPredictedPlayer() {
+		int meIndex = getemEngine.me.colorIndex;
+		if (meIndex >= getemEngine.playerList.size()) return null;
+		
+		Player predicted = getemEngine.playerList.get(meIndex);
+		if (predicted == null || predicted.inputSequence < 0) return null;
+		
+		return predicted;
+	}
+	
+	
+	/**
+	 * The broadcast message function queues the same message for every player with an address.
+	 * The send stage encodes the message at most once for each codec in use and sends the
+	 * encoded bytes to each player, so the encoding cost does not grow with the number of clients.
+	 *
+	 * @param msg				A game message ready to be sent.
+	 * @param players		The list of players to send the message to.
+	 */
+	void broadcastMessage(GameMessage msg, List<Player> players) {
+		enqueue(new SendStage.OutboundMessage(SendStage.Actions.BROADCAST, msg, null, null, SendStage.recipientsOf(players), null, null));
 	}
-	
+	
 	
 	/**
 	 * The close socket function will handle any required pre-closing messages and
@@ -406,23 +638,23 @@ class CommunicationEngine extends Thread {
 			
 			// if client then send to server
 			if (socketState == SocketStates.JOIN_OPEN) {
-				sendMessage(getemMessage, serverSocketAddress);
+				sendMessage(getemMessage, serverSocketAddress, serverCodec);
 			}
 			
 			// if server then send to all clients
 			if (socketState == SocketStates.SERVER_OPEN) {
-				// iterate through player list
-				Iterator<Player> playerIterator = getemEngine.playerList.iterator();
-				while (playerIterator.hasNext()) {
-					Player next = playerIterator.next();
-					if (next != null && next.address != null) {
-						sendMessage(getemMessage, next.address);
-					}
-				}
+				broadcastMessage(getemMessage, getemEngine.playerList);
 			}
 
+			// stop receiving and let the send stage close the channel after the disconnect messages
 			socketState = SocketStates.DISCONNECT;
-			communicationSocket.close();
+			receiveStage.setChannel(null);
+			enqueue(new SendStage.OutboundMessage(SendStage.Actions.CLOSE, null, null, null, null, null, communicationChannel));
+			
+			// wait a short time for the channel to close so the port can be bound again
+			long deadline = System.nanoTime() + 1000000000L;
+			while (communicationChannel.isOpen() && System.nanoTime() - deadline < 0) LockSupport.parkNanos(1000000);
+			communicationChannel = null;
 			System.out.println("Socket closed");
 		}
 	}
@@ -435,6 +667,7 @@ class CommunicationEngine extends Thread {
 	 */
 	public void startServer() {
 		socketRequest = 1;
+		LockSupport.unpark(this);
 	}
 	
 	
@@ -471,6 +704,7 @@ class CommunicationEngine extends Thread {
 			
 			// set message to join server
 			socketRequest = 2;
+			LockSupport.unpark(this);
 		}
 		catch (UnknownHostException uhe) {
 			System.out.println("Host Exception: " + uhe);
@@ -478,8 +712,17 @@ class CommunicationEngine extends Thread {
 	}
 	
 	
-	// shut down communication engine
+	// shut down communication engine, waits a short time for the disconnect messages to be sent
 	public void shutDown() {
-		closeSocket();
-	}
+		if (!isAlive()) return;
+		
+		socketRequest = 3;
+		LockSupport.unpark(this);
+		
+		long deadline = System.nanoTime() + 2000000000L;
+		while (System.nanoTime() - deadline < 0) {
+			if (socketRequest == 0 && communicationChannel == null) return;
+			LockSupport.parkNanos(1000000);
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,199 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package getem;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+
+/**
+ * The FragmentAssembler splits messages that are too large for one datagram into fragments
+ * and puts received fragments back together. Each fragment starts with a header.
+ *
+ *	magic (1 byte, 0xE8), message id (2 bytes), fragment index (1 byte),
+ *	fragment count (1 byte), message length (4 bytes), fragment offset (4 bytes)
+ *
+ * followed by the fragment's part of the encoded message. Like the binary codec magic byte the
+ * fragment magic byte can never start a JSON message. Only one message per sender is put back
+ * together at a time, a fragment of a newer message drops the unfinished older message.
+ *
+ * @author			Bryan Nielsen
+ */
+class FragmentAssembler {
+	static final byte MAGIC = (byte)0xE8;
+	static final int HEADER_SIZE = 13;
+	static final int MAXIMUM_FRAGMENTS = 255;
+	static final long TIMEOUT_NS = 2000000000L;
+	
+	int maximumMessageSize;
+	HashMap<InetSocketAddress, Assembly> assemblies;
+	
+	
+	// a message being put back together
+	static class Assembly {
+		int messageId, fragmentCount, receivedCount;
+		long startNS;
+		BitSet received;
+		ByteBuffer message;
+	}
+	
+	
+	/**
+	 * The constructor creates an assembler for messages up to the given size.
+	 *
+	 * @param maximumSize			The largest message length accepted from a sender.
+	 */
+	public FragmentAssembler(int maximumSize) {
+		maximumMessageSize = maximumSize;
+		assemblies = new HashMap<InetSocketAddress, Assembly>();
+	}
+	
+	
+	/**
+	 * Determine if the buffer holds a fragment by checking for the magic byte.
+	 *
+	 * @param buffer			The buffer holding a received datagram.
+	 * @return						A boolean is returned noting true if the datagram is a fragment.
+	 */
+	static boolean isFragment(ByteBuffer buffer) {
+		return buffer.remaining() > 0 && buffer.get(buffer.position()) == MAGIC;
+	}
+	
+	
+	/**
+	 * Get the number of fragments needed to send a message in datagrams no larger than the mtu.
+	 *
+	 * @param length			The length of the encoded message.
+	 * @param mtu					The largest datagram size.
+	 * @return						The number of fragments.
+	 */
+	static int fragmentCount(int length, int mtu) {
+		int partSize = mtu - HEADER_SIZE;
+		return (length + partSize - 1) / partSize;
+	}
+	
+	
+	/**
+	 * Write one fragment of a message into a datagram buffer. The message buffer position and
+	 * limit are not changed.
+	 *
+	 * @param message			The encoded message from its position to its limit.
+	 * @param messageId		The id shared by all fragments of the message.
+	 * @param index				The index of the fragment to write.
+	 * @param count				The number of fragments in the message.
+	 * @param mtu					The largest datagram size.
+	 * @param datagram		The buffer to write the fragment into.
+	 */
+	static void putFragment(ByteBuffer message, int messageId, int index, int count, int mtu, ByteBuffer datagram) {
+		int partSize = mtu - HEADER_SIZE;
+		int offset = index * partSize;
+		int length = Math.min(partSize, message.remaining() - offset);
+		
+		datagram.put(MAGIC);
+		datagram.putShort((short)messageId);
+		datagram.put((byte)index);
+		datagram.put((byte)count);
+		datagram.putInt(message.remaining());
+		datagram.putInt(offset);
+		
+		// copy the part through a window on the message rather than a duplicate, so no buffer is allocated
+		int position = message.position(), limit = message.limit();
+		message.limit(position + offset + length);
+		message.position(position + offset);
+		datagram.put(message);
+		message.limit(limit);
+		message.position(position);
+	}
+	
+	
+	/**
+	 * Add a received fragment. When the last fragment of a message arrives the whole message
+	 * is returned ready to decode.
+	 *
+	 * @param sender			The socket address the fragment came from.
+	 * @param datagram		The received fragment from its position to its limit.
+	 * @return						The complete message, or null if fragments are still missing or
+	 *														the fragment is not valid.
+	 */
+	public ByteBuffer addFragment(InetSocketAddress sender, ByteBuffer datagram) {
+		if (datagram.remaining() < HEADER_SIZE || datagram.get() != MAGIC) return null;
+		
+		int messageId = datagram.getShort() & 0xffff;
+		int index = datagram.get() & 0xff;
+		int count = datagram.get() & 0xff;
+		int messageLength = datagram.getInt();
+		int offset = datagram.getInt();
+		
+		// ignore fragments that could not belong to a valid message
+		if (index >= count || messageLength <= 0 || messageLength > maximumMessageSize) return null;
+		if (offset < 0 || offset + datagram.remaining() > messageLength) return null;
+		
+		Assembly assembly = assemblies.get(sender);
+		if (assembly == null || assembly.messageId != messageId || assembly.message.capacity() != messageLength) {
+			// a new message from this sender replaces any unfinished message
+			expire();
+			
+			assembly = new Assembly();
+			assembly.messageId = messageId;
+			assembly.fragmentCount = count;
+			assembly.receivedCount = 0;
+			assembly.startNS = System.nanoTime();
+			assembly.received = new BitSet(count);
+			assembly.message = ByteBuffer.allocate(messageLength);
+			assemblies.put(sender, assembly);
+		}
+		
+		// copy a fragment we have not seen into its place in the message
+		if (!assembly.received.get(index)) {
+			assembly.received.set(index);
+			assembly.receivedCount += 1;
+			
+			ByteBuffer target = assembly.message.duplicate();
+			target.position(offset);
+			target.put(datagram);
+		}
+		
+		if (assembly.receivedCount < assembly.fragmentCount) return null;
+		
+		// the message is complete
+		assemblies.remove(sender);
+		assembly.message.clear();
+		return assembly.message;
+	}
+	
+	
+	// drop messages that have been waiting too long for their missing fragments
+	private void expire() {
+		long now = System.nanoTime();
+		
+		Iterator<Assembly> assemblyIterator = assemblies.values().iterator();
+		while (assemblyIterator.hasNext()) {
+			if (now - assemblyIterator.next().startNS > TIMEOUT_NS) assemblyIterator.remove();
+		}
+	}
+}
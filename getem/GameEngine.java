@@ -24,65 +24,88 @@ along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
 */
 
 package getem;
-
-import java.awt.*;
-import java.awt.event.*;
+
+import java.awt.*;
+import java.awt.event.*;
 import java.io.*;
 import java.util.*;
-import java.net.*;
+import java.net.*;
 
 
 /**
  * GameEngine encapsulates all the properties and functions required for the main user
  * interface and the game components.
  *
+ * The game is only changed by the communication thread. After each change it publishes a world
+ * snapshot through a triple buffer and the field is drawn from the latest published snapshot by
+ * the render loop or the AWT event thread, while the mouse listeners hand our player's controls the other way
+ * through PlayerControls. Neither thread locks or waits for the other.
+ *
  * @author			Bryan Nielsen
  */
 public class GameEngine extends Frame implements WindowListener {
 	// declare class variables
 	whoCanvas who;
-	MeCanvas meCanvas;
-	GameField display;
-	Panel gameFieldPanel, whoPanel, buttonsPanel;
-	Button start, join;
+	MeCanvas meCanvas;
+	GameField display;
+	Panel gameFieldPanel, whoPanel, buttonsPanel;
+	Button start, join;
 	String s;
+	GameRoom room;
+	PlayerRegistry players;
 	ArrayList<Player> playerList;
 	Player me;
-	int maximumPlayers, playerItIndex;
+	int maximumPlayers;
 	CommunicationEngine commEngine;
 	
+	// the world as last published for painting and the mouse controls of our player
+	TripleBuffer<WorldSnapshot> world;
+	PlayerControls controls;
+	
+	// the it player and our player as last published, read by the small canvases so the field is the only reader of the world
+	volatile int publishedItIndex, publishedMeColor;
+	volatile String publishedMeName;
+	
 	
 	// constructor
 	public GameEngine() {
 		// call parent constructor
-		super("getem v0.1");
-		
-		playerItIndex = -1;
+		super("getem v0.1");
 		
-		// create player list
-		maximumPlayers = 8;
-		playerList = new ArrayList<Player>();
+		// the game is a single room holding the players and the game rules, set the size with -Dgetem.maxPlayers
+		room = new GameRoom("getem", Integer.getInteger("getem.maxPlayers", 8), Integer.getInteger("getem.snapshotHistory", 32));
+		maximumPlayers = room.maximumPlayers;
+		players = room.players;
+		playerList = room.playerList;
 		
 		// create me player
 		me = new Player("Me");
+		controls = new PlayerControls();
 		
-		// create communication engine
+		// an empty world to paint until the communication thread publishes one
+		world = new TripleBuffer<WorldSnapshot>(new WorldSnapshot(GameField.VIEW_SIZE), new WorldSnapshot(GameField.VIEW_SIZE), new WorldSnapshot(GameField.VIEW_SIZE));
+		publishedItIndex = -1;
+		publishedMeColor = -1;
+		publishedMeName = null;
+		
+		// create communication engine, it is started once the canvases it repaints exist
 		commEngine = new CommunicationEngine(this);
-		commEngine.start();
 		
 		// set up frame
 		addWindowListener(this);
-		setSize(420, 500);
+		// the frame is sized round the view of the field, set with -Dgetem.viewSize
+		int viewSize = GameField.VIEW_SIZE;
+		setSize(viewSize + 20, viewSize + 100);
 		setResizable(false);
 		setLayout(new BorderLayout());
 		
 		// create panels for frame
 		gameFieldPanel = new Panel();
-		gameFieldPanel.setSize(400, 400);
+		gameFieldPanel.setSize(viewSize, viewSize);
 		whoPanel = new Panel();
-		whoPanel.setSize(400, 20);
+		whoPanel.setSize(viewSize, 20);
 		buttonsPanel = new Panel();
-		buttonsPanel.setSize(400, 50);
+		buttonsPanel.setSize(viewSize, 50);
 		
 		// create elements for panels
 		who = new whoCanvas(this);
@@ -108,6 +131,18 @@ public class GameEngine extends Frame implements WindowListener {
 		
 		// set frame to visible
 		setVisible(true);
+		
+		// publish the empty game before the communication thread takes over publishing
+		publishWorld();
+		commEngine.start();
+		
+		// draw the field from its own render loop unless -Dgetem.activeRender=false, set the rate with -Dgetem.frameRate
+		display.metrics.register();
+		// the loop is started on the event thread so no repaint there is part way through the field when it takes over
+		if (!"false".equals(System.getProperty("getem.activeRender"))) {
+			int frameRate = Integer.getInteger("getem.frameRate", 60);
+			EventQueue.invokeLater(() -> display.startRenderLoop(frameRate));
+		}
 	}
 	
 	
@@ -148,54 +183,7 @@ public class GameEngine extends Frame implements WindowListener {
 	 */
 	// add a new player to the game engine
 	public Player addPlayer(String playerName, InetSocketAddress playerAddress) {
-		Iterator<Player> playerIterator;
-		
-		// check to see if there is an empty slot
-		int emptyIndex = 0;
-		boolean useEmpty = false;
-		playerIterator = playerList.iterator();
-		while (playerIterator.hasNext()) {
-			Player next = playerIterator.next();
-			if (next == null) {
-				// found an empty slot
-				useEmpty = true;
-				break;
-			}
-			else emptyIndex += 1;
-		}
-		
-		// make sure we don't exceed maximum (-1 because 0 index is for me)
-		if (useEmpty == false && playerList.size() >= maximumPlayers) return null;
-		
-		// make sure name is available
-		playerIterator = playerList.iterator();
-		while (playerIterator.hasNext()) {
-			Player next = playerIterator.next();
-			
-			// if name matches then fail with null
-			if (next != null && next.name.equals(playerName.toString())) return null;
-		}
-
-		// attempt adding player to list
-		Player newPlayer = new Player(playerName);
-		if (newPlayer != null) {
-			// set player's address
-			newPlayer.address = playerAddress;
-			
-			if (useEmpty) {
-				newPlayer.setColorIndex(emptyIndex);
-				playerList.set(emptyIndex, newPlayer);
-			}
-			else {
-				newPlayer.setColorIndex(playerList.size());
-				playerList.add(newPlayer);
-			}
-			
-			
-			return newPlayer;
-		}
-		
-		return null;
+		return room.addPlayer(playerName, playerAddress);
 	}
 	
 	
@@ -210,16 +198,15 @@ public class GameEngine extends Frame implements WindowListener {
 	public void resetMePlayer(int colorIndex) {
 		// set me player settings to defaults
 		me.setColorIndex(colorIndex);
-		meCanvas.repaint();
 		
 		// if zero player then assume this is a server and make player zero me
 		if (colorIndex == 0) {
-			playerList.removeAll(playerList);
-			playerList.add(me);
+			players.clear();
+			players.add(me);
 		}
 		
 		// clear the game play field
-		display.clearField();
+		clearField();
 	}
 	
 		
@@ -233,17 +220,11 @@ public class GameEngine extends Frame implements WindowListener {
 	 */
 	// null out a player in the list
 	public void nullPlayer(InetSocketAddress playerAddress) {
-		// iterate through the player list looking for the matching player instance to null
-		Iterator<Player> playerIterator = playerList.iterator();
-		while (playerIterator.hasNext()) {
-			Player next = playerIterator.next();
-			if (next != null && next.address != null && next.address.toString().equals(playerAddress.toString())) {
-				// if the it player is nulled then reset the it layer to me
-				if (playerList.indexOf(next) == playerItIndex) setPlayerItIndex(0);
-				
-				playerList.set(playerList.indexOf(next), null);
-			}
-		}
+		int itIndex = room.playerItIndex;
+		
+		// if the it player is nulled then the room makes the lowest player, me, it
+		room.nullPlayer(playerAddress);
+		if (room.playerItIndex != itIndex) playersReset();
 	}
 	
 	
@@ -254,14 +235,7 @@ public class GameEngine extends Frame implements WindowListener {
 	 * @return										Returns a Player instance if located, null if not found.
 	 */
 	public Player getPlayerByName(String playerName) {
-		Iterator<Player> playerIterator = playerList.iterator();
-		while (playerIterator.hasNext()) {
-			Player next = playerIterator.next();
-			if (next != null && next.name.equals(playerName)) return next;
-		}
-		
-		// did not find player
-		return null;
+		return players.get(players.indexOfName(playerName));
 	}
 	
 	
@@ -272,14 +246,7 @@ public class GameEngine extends Frame implements WindowListener {
 	 * @return												Returns a Player instance if located, null if not found.
 	 */
 	public Player getPlayerByAddress(InetSocketAddress playerAddress) {
-		Iterator<Player> playerIterator = playerList.iterator();
-		while (playerIterator.hasNext()) {
-			Player next = playerIterator.next();
-			if (next != null && next.address != null && next.address.toString().equals(playerAddress.toString())) return next;
-		}
-		
-		// did not find player
-		return null;
+		return players.get(players.indexOfAddress(playerAddress));
 	}
 	
 	
@@ -290,17 +257,7 @@ public class GameEngine extends Frame implements WindowListener {
 	 * @return											The integer index value of the player within the player list or -1 if not found.
 	 */
 	public int getPlayerIndexByAddress(InetSocketAddress playerAddress) {
-		int playerIndex = 0;
-		
-		Iterator<Player> playerIterator = playerList.iterator();
-		while (playerIterator.hasNext()) {
-			Player next = playerIterator.next();
-			if (next != null && next.address != null && next.address.toString().equals(playerAddress.toString())) return playerIndex;
-			playerIndex += 1;
-		}
-		
-		// did not find player
-		return -1;
+		return players.indexOfAddress(playerAddress);
 	}
 	
 	
@@ -311,17 +268,7 @@ public class GameEngine extends Frame implements WindowListener {
 	 * @return										The integer index value of the player within the player list or -1 if not found.
 	 */
 	public int getPlayerIndexByName(String playerName) {
-		int playerIndex = 0;
-		
-		Iterator<Player> playerIterator = playerList.iterator();
-		while (playerIterator.hasNext()) {
-			Player next = playerIterator.next();
-			if (next != null && next.name.equals(playerName)) return playerIndex;
-			playerIndex += 1;
-		}
-		
-		// did not find player
-		return -1;
+		return players.indexOfName(playerName);
 	}
 	
 	
@@ -333,55 +280,20 @@ public class GameEngine extends Frame implements WindowListener {
 	 * @param playerMap						The hash map of player values to apply to the player.
 	 */
 	public void applyPlayerMap(int playerIndex, Map<String, Object> playerMap) {
-		playerList.get(playerIndex).applyMap(playerMap);
+		room.applyPlayerMap(playerIndex, playerMap);
 	}
 	
 	
 	/**
-	 * The applyPlayerMaps function assumes a list of player hash map values need to be applied
-	 * to the player list.
+	 * The applySnapshot function applies a snapshot rebuilt from a players frame to the player list.
 	 *
-	 * @param playerMaps				An array of hash maps with player values to be applied to the player list.
+	 * @param snapshot					The snapshot with the player values to be applied to the player list.
 	 */
-	public void applyPlayerMaps(ArrayList<Map<String, Object>> playerMaps) {
-		Player newPlayer;
-		
-		// iterate through the list of player maps to apply
-		Iterator<Map<String, Object>> mapsIterator = playerMaps.iterator();
-		int mapIndex = 0;
-		while (mapsIterator.hasNext()) {
-			Map<String, Object> next = mapsIterator.next();
-			
-			// if index out of range then create a new player for this map
-			if (mapIndex + 1 > playerList.size()) {
-				newPlayer = new Player("new");
-				newPlayer.applyMap(next);
-				playerList.add(newPlayer);
-			}
-			else {
-				// if map is null then set player list to null
-				if (next == null) {
-					playerList.set(mapIndex, null);
-				}
-				
-				// else if player list is null then create new player
-				else if (playerList.get(mapIndex) == null) {
-					newPlayer = new Player("new");
-					newPlayer.applyMap(next);
-					playerList.set(mapIndex, newPlayer);
-				}
-				
-				// else apply map
-				else {
-					playerList.get(mapIndex).applyMap(next);
-				}
-			}
-			
-			mapIndex += 1;
-		}
+	public void applySnapshot(SnapshotHistory.Snapshot snapshot) {
+		room.applySnapshot(snapshot);
 		
 		// repaint the play field
-		display.repaint();
+		publishWorld();
 	}
 	
 	
@@ -391,12 +303,8 @@ public class GameEngine extends Frame implements WindowListener {
 	 * @param playerIndex				The index value within the player list of the player to assign as it.
 	 */
 	public void setPlayerItIndex(int playerIndex) {
-		if (playerIndex != playerItIndex) {
-			// the it index has changed
-			playerItIndex = playerIndex;
-			resetAllPlayers();
-			who.repaint();
-		}
+		// the room resets the players when the it index changes
+		if (room.setPlayerItIndex(playerIndex)) playersReset();
 	}
 	
 	
@@ -406,7 +314,7 @@ public class GameEngine extends Frame implements WindowListener {
 	 * @parm playerIndex				The index value within the player list of the player to query for a Color.
 	 */
 	public Color getPlayerColor(int playerIndex) {
-		return Player.playerColors[playerIndex];
+		return PlayerPalette.getColor(playerIndex);
 	}
 	
 	
@@ -421,23 +329,22 @@ public class GameEngine extends Frame implements WindowListener {
 	
 	
 	/**
-	 * The calculatePlayerMoves function is called at some interval to move the players in the player list.
+	 * The calculatePlayerMoves function is called once per simulation tick to move the players in the player list.
+	 *
+	 * @param tickSeconds				The length of the simulation tick in seconds.
 	 */
-	public void calculatePlayerMoves() {
+	public void calculatePlayerMoves(float tickSeconds) {
 		// if we are running as server then calculate other players
 		if (commEngine.isServer()) {
-			Iterator<Player> playerIterator = playerList.iterator();
-			while (playerIterator.hasNext()) {
-				Player next = playerIterator.next();
-				
-				if (next != null) {
-					next.calculateMove();
-				}
-			}
+			// our own player is steered through its view by the mouse, the room moves everyone and the views are updated for drawing
+			int meIndex = players.get(0) == me ? 0 : -1;
+			if (meIndex >= 0) room.state.setControls(meIndex, me);
+			room.calculatePlayerMoves(tickSeconds);
+			room.updateViews(meIndex);
 		}
 		
 		// redraw display after move
-		display.repaint();
+		publishWorld();
 	}
 	
 	
@@ -451,26 +358,19 @@ public class GameEngine extends Frame implements WindowListener {
 	 *								index value.
 	 */
 	public int playerTagged() {
-		int playerIndex = 0;
-		
-		// get coordinates of it player
-		if (playerItIndex < playerList.size()) {
-			Player itPlayer = playerList.get(playerItIndex);
-			
-			if (itPlayer != null) {
-				Iterator<Player> playerIterator = playerList.iterator();
-				while (playerIterator.hasNext()) {
-					Player next = playerIterator.next();
-					
-					if (playerIndex != playerItIndex && next != null && next.playerCollision(itPlayer.currentX, itPlayer.currentY)) return playerIndex;
-					
-					playerIndex += 1;
-				}
-			}
-		}
-		
-		// no players have tagged it player
-		return playerItIndex;
+		return room.playerTagged();
+	}
+	
+	
+	/**
+	 * Change the size of the play field, to the server's when joining one or our own when
+	 * starting a server.
+	 *
+	 * @param size					The width and height of the field in pixels.
+	 */
+	public void setFieldSize(int size) {
+		room.setFieldSize(size);
+		me.fieldSize = room.fieldSize;
 	}
 	
 	
@@ -478,29 +378,59 @@ public class GameEngine extends Frame implements WindowListener {
 	 * All players will be reset to their default coordinates based on their color index and the play field is cleared.
 	 */
 	public void resetAllPlayers() {
-		Iterator<Player> playerIterator = playerList.iterator();
-		while (playerIterator.hasNext()) {
-			Player next = playerIterator.next();
-			if (next != null) next.setColorIndex(next.colorIndex);		
-		}
-		
-		display.clearField();
+		room.resetAllPlayers();
+		playersReset();
 	}
 	
 	
-	
+	// the room has put the players back at their start points, clear the field and show the new it player
+	private void playersReset() {
+		clearField();
+	}
+	
+	
+	/**
+	 * Clear the trails from the play field and publish the world.
+	 */
+	public void clearField() {
+		room.trail.clear();
+		publishWorld();
+	}
+	
+	
+	/**
+	 * Publish a snapshot of the world for painting and ask for the canvases to be redrawn. The
+	 * it player bar and our player's name are only repainted when they have changed. Only the
+	 * communication thread may call this function.
+	 */
+	public void publishWorld() {
+		WorldSnapshot snapshot = world.back();
+		snapshot.fill(playerList, room.playerItIndex, me, room.trail);
+		world.publish();
+		
+		display.worldPublished();
+		boolean itChanged = snapshot.playerItIndex != publishedItIndex;
+		boolean meChanged = snapshot.meColorIndex != publishedMeColor || !snapshot.meName.equals(publishedMeName);
+		publishedItIndex = snapshot.playerItIndex;
+		publishedMeColor = snapshot.meColorIndex;
+		publishedMeName = snapshot.meName;
+		
+		if (itChanged) who.repaint();
+		if (meChanged) meCanvas.repaint();
+	}
+	
 	
 	/**
 	 * Start the game engine.
-	 */
+	 */
 	public static void main(String[] args) {
 		GameEngine ge = new GameEngine();
-	}
-}
+	}
+}
 
 
 
-// action listener for game engine buttons
+// action listener for game engine buttons
 class buttonAction implements ActionListener {
 	GameEngine parent;
 	
@@ -521,12 +451,12 @@ class buttonAction implements ActionListener {
 			
 			d.setVisible(true);
 		}
-	}
-}
-
-
-
-// join host dialog
+	}
+}
+
+
+
+// join host dialog
 class hostDialog extends Dialog {
 	GameEngine getemEngine;
 	Panel p;
@@ -557,12 +487,12 @@ class hostDialog extends Dialog {
 		
 		add(p);
 		pack();
-	}
+	}
 }
 
-
 
-// action listener for the host dialog
+
+// action listener for the host dialog
 class hostAction implements ActionListener {
 	hostDialog parent;
 	//GameEngine getemEngine;
@@ -581,16 +511,16 @@ class hostAction implements ActionListener {
 			parent.getemEngine.commEngine.joinServer(s, parent.name.getText());
 			parent.dispose();
 		}
-	}
-}
-
-
+	}
+}
+
+
 class whoCanvas extends Canvas {
 	GameEngine parent;
 	
 	public whoCanvas(GameEngine so) {
 		super();
-		setSize(400, 20);
+		setSize(GameField.VIEW_SIZE, 20);
 		setBackground(new Color(0, 0, 0));
 		parent = so;
 	}
@@ -603,16 +533,17 @@ class whoCanvas extends Canvas {
 		Dimension s = getSize();
 		FontMetrics fm = g.getFontMetrics();
 		
-		//g.setColor(parent.cArray[parent.it]);
-		if (parent.playerItIndex == -1) g.setColor(new Color(0, 0, 0));
-		else g.setColor(Player.playerColors[parent.playerItIndex]);
+		// the it player as last published
+		int playerItIndex = parent.publishedItIndex;
+		if (playerItIndex == -1) g.setColor(new Color(0, 0, 0));
+		else g.setColor(PlayerPalette.getColor(playerItIndex));
 		g.fillRect(0, 0, s.width, s.height);
 		
 		g.setColor(new Color(0, 0, 0));
 		g.drawString(parent.s, (s.width / 2) - (fm.stringWidth(parent.s) / 2), 15);
-	}
+	}
 	
-}
+}
 
 
 class MeCanvas extends Canvas {
@@ -633,10 +564,11 @@ GameEngine parent;
 		Dimension canvasDim = getSize();
 		FontMetrics fm = g.getFontMetrics();
 		
-		g.setColor(parent.getPlayerColor(parent.me.colorIndex));
+		// our player as last published
+		g.setColor(parent.getPlayerColor(Math.max(0, parent.publishedMeColor)));
 		g.fillRect(0, 0, canvasDim.width, canvasDim.height);
 		
-		String playerName = parent.me.name;
+		String playerName = parent.publishedMeName == null ? "" : parent.publishedMeName;
 		g.setColor(new Color(0, 0, 0));
 		g.drawString(playerName, (canvasDim.width / 2) - (fm.stringWidth(playerName) / 2), 15);
 	}
@@ -25,20 +25,49 @@ along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
 
 package getem;
 
-import java.awt.*;
-import java.awt.event.*;
+import java.awt.*;
+import java.awt.event.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.awt.image.BufferStrategy;
 
 
 /**
  * A GameField is a canvas to display game play and interact with the user.
  *
+ * The field is painted from the latest world snapshot the communication thread has published,
+ * and the mouse listeners write our player's controls for the communication thread to pick up,
+ * so the event thread never touches the player list.
+ *
+ * The trails and players are drawn into an off screen trail layer as the players move, and only
+ * the rectangles that changed are copied to the canvas. A repaint from the system, when the
+ * window is uncovered, copies the uncovered region back from the trail layer so the trails are
+ * never lost.
+ *
+ * With an active render loop the loop draws the field every frame into a BufferStrategy instead,
+ * and repaints from AWT only ask the loop to draw the whole field on its next frame.
+ *
+ * The canvas is a view of getem.viewSize pixels onto a field that may be much larger, with a
+ * camera that follows our player. Mouse positions are moved by the camera last drawn so the
+ * controls are always in field coordinates.
+ *
  * @author			Bryan Nielsen
  */
 class GameField extends Canvas {
-	GameEngine parent;
-	boolean resetField = true;
+	// the width and height of the view in pixels, set with -Dgetem.viewSize
+	static final int VIEW_SIZE = Math.max(200, Math.min(1200, Integer.getInteger("getem.viewSize", 400)));
+	
+	GameEngine parent;
+	TrailLayer trail;
+	AtomicBoolean renderQueued;
+	Runnable renderTask;
+	RenderMetrics metrics;
+	volatile RenderLoop renderLoop;
+	volatile boolean redrawAll;
+	
+	// the camera as last drawn, read by the mouse listeners
+	volatile int cameraX, cameraY;
 	
 	/**
 	 * The GameField constructure sets up the canvas play field and instantiates the listeners
@@ -49,73 +78,143 @@ class GameField extends Canvas {
 	 */
 	public GameField(GameEngine so) {
 		super();
-		setSize(400, 400);
-		setBackground(new Color(0, 0, 0));
-		parent = so;
-		addMouseListener(new displayMouseListener(this));
-		addMouseMotionListener(
-		new displayMouseMotionListener(this));
+		setSize(VIEW_SIZE, VIEW_SIZE);
+		setBackground(TrailLayer.BACKGROUND);
+		parent = so;
+		trail = new TrailLayer(VIEW_SIZE);
+		renderQueued = new AtomicBoolean(false);
+		renderTask = () -> render();
+		metrics = new RenderMetrics();
+		redrawAll = true;
+		addMouseListener(new displayMouseListener(this));
+		addMouseMotionListener(
+		new displayMouseMotionListener(this));
+	}
+	
+	
+	/**
+	 * Ask for the latest published world to be drawn. Requests made before the event thread gets
+	 * round to drawing are drawn together, so a busy event thread is not sent a backlog. Any
+	 * thread may call this function.
+	 */
+	public void worldPublished() {
+		// the render loop draws the latest world every frame anyway
+		if (renderLoop != null) return;
+		
+		if (renderQueued.compareAndSet(false, true)) EventQueue.invokeLater(renderTask);
 	}
 	
 	
 	/**
-	 * The clearField function sets the flag needed by the canvas paint function to clear the play field.
-	 * It then calls repaint to kick off the paint process.
+	 * Start drawing the field from a render loop on its own thread, AWT no longer paints it. The
+	 * field must be showing and only the AWT event thread may call this function.
+	 *
+	 * @param frameRate				The target frames per second.
 	 */
-	public void clearField() {
-		resetField = true;
-		repaint();
+	public void startRenderLoop(int frameRate) {
+		setIgnoreRepaint(true);
+		redrawAll = true;
+		renderLoop = new RenderLoop(this, metrics, frameRate);
+		renderLoop.start();
+	}
+	
+	
+	// draw the latest world into the trail layer and copy the changed rectangles to the canvas
+	void render() {
+		renderQueued.set(false);
+		if (renderLoop != null) return;
+		
+		long startNS = System.nanoTime();
+		updateTrail();
+		
+		Graphics g = getGraphics();
+		if (g == null) return;
+		
+		trail.copyDirty(g);
+		g.dispose();
+		metrics.recordPart(RenderMetrics.DRAW, System.nanoTime() - startNS);
+		metrics.count(RenderMetrics.FRAMES, 1);
 	}
-	
-	
-	public void update(Graphics g) {
-		paint(g);
-	}
 	
-	
+	
+	/**
+	 * Draw the latest world into a screen buffer, called by the render loop for each frame.
+	 *
+	 * @param strategy				The buffer strategy of the field.
+	 * @param whole						True to draw the whole field, false for only what changed when the
+	 *														buffer still holds the last frame.
+	 */
+	void drawFrame(BufferStrategy strategy, boolean whole) {
+		updateTrail();
+		
+		// the buffer may be restored while we draw, it is then drawn again whole
+		do {
+			Graphics g = strategy.getDrawGraphics();
+			if (whole || redrawAll) {
+				redrawAll = false;
+				trail.copyAll(g);
+			}
+			else trail.copyDirty(g);
+			g.dispose();
+			whole = true;
+		} while (strategy.contentsRestored());
+	}
+	
+	
+	// draw the latest world into the trail layer and note where its camera is
+	void updateTrail() {
+		trail.update(parent.world.latest());
+		cameraX = trail.cameraX;
+		cameraY = trail.cameraY;
+	}
+	
+	
+	public void update(Graphics g) {
+		paint(g);
+	}
+	
+	
 	public void paint(Graphics g) {
-		Dimension s = getSize();
+		// the render loop owns the trail layer, it draws the whole field on its next frame
+		if (renderLoop != null) {
+			redrawAll = true;
+			return;
+		}
 		
-		// if field reset flag is set then clear the field
-		if (resetField) {
-			g.setColor(new Color(0, 0, 0));
-			g.fillRect(0, 0, s.width, s.height);
-			resetField = false;
-		}
+		// copy the region the system asked for back from the trail layer
+		updateTrail();
+		Rectangle clip = g.getClipBounds();
+		if (clip == null) trail.copyRegion(g, 0, 0, trail.width, trail.height);
+		else trail.copyRegion(g, clip.x, clip.y, clip.width, clip.height);
 		
-		// iterate through player list from the game engine
-		Iterator<Player> playerIterator = parent.playerList.iterator();
-		while (playerIterator.hasNext()) {
-			Player next = playerIterator.next();
-			if (next != null) next.drawPlayer(g);
-		}
-	}
-}
+		// changes outside the region are copied by a render
+		worldPublished();
+	}
+}
+
 
-
 class displayMouseMotionListener implements MouseMotionListener {
-	GameField parent;
+	GameField parent;
 	
 	public displayMouseMotionListener(GameField so) {
-		parent = so;
-	}
-	
+		parent = so;
+	}
+	
 	public void mouseDragged(MouseEvent e) {
+		PlayerControls controls = parent.parent.controls;
+		int x = e.getX() + parent.cameraX, y = e.getY() + parent.cameraY;
+		
 		// if mouse has moved significantly from previous location then change coordinates
-		if (Math.abs(parent.parent.me.gotoX - e.getX()) > 2 || Math.abs(parent.parent.me.gotoY - e.getY()) > 2) {
-			parent.parent.me.gotoX = e.getX();
-			parent.parent.me.gotoY = e.getY();
-			
-			if (e.isControlDown()) parent.parent.me.isVisible = false;
-			else parent.parent.me.isVisible = true;
+		if (Math.abs(controls.getGotoX() - x) > 2 || Math.abs(controls.getGotoY() - y) > 2) {
+			controls.set(x, y, controls.isPressed(), !e.isControlDown());
 		}
 	}
 	
 	
-	public void mouseMoved(MouseEvent e) {}
-}
+	public void mouseMoved(MouseEvent e) {}
+}
+
 
-
 class displayMouseListener implements MouseListener {
 	GameField parent;
 	
@@ -124,23 +223,19 @@ class displayMouseListener implements MouseListener {
 	}
 	
 	
-	public void mouseClicked(MouseEvent e) {}
-	public void mouseEntered(MouseEvent e) {}
+	public void mouseClicked(MouseEvent e) {}
+	public void mouseEntered(MouseEvent e) {}
 	public void mouseExited(MouseEvent e) {}
 	
-	
+	
 	public void mousePressed(MouseEvent e) {
-		parent.parent.me.mousePressed = true;
-		
-		parent.parent.me.gotoX = e.getX();
-		parent.parent.me.gotoY = e.getY();
-		
-		if (e.isControlDown()) parent.parent.me.isVisible = false;
-		else parent.parent.me.isVisible = true;
+		// visible unless the Ctrl key is held
+		parent.parent.controls.set(e.getX() + parent.cameraX, e.getY() + parent.cameraY, true, !e.isControlDown());
 	}
 	
 	
 	public void mouseReleased(MouseEvent e) {
-		parent.parent.me.mousePressed = false;
-	}
-}
+		PlayerControls controls = parent.parent.controls;
+		controls.set(controls.getGotoX(), controls.getGotoY(), false, controls.isVisible());
+	}
+}
@@ -38,6 +38,10 @@ class GameMessage {
 	MessageTypes messageType;
 	Map<String, Object> payload;
 	
+	// a binary players frame decoded straight into a reusable frame, the payload is then left empty,
+	// it is never sent so the JSON codec leaves it out
+	transient PlayersFrame frame;
+	
 	// enumerate the message types
 	public enum MessageTypes {
 		JOIN, JOIN_REJECT, JOIN_ACCEPT, DISCONNECT, PLAYER_FRAME, PLAYERS_FRAME, PING, PING_RESPONSE, UNKNOWN;
@@ -0,0 +1,651 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package getem;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A GameRoom is one game of tag with no user interface, the players in their slots, the spatial
+ * grid, the trail grid and the it player along with the server rules that move the players, draw
+ * their trails, apply their inputs and find who has been tagged. The game engine window plays one room and draws it.
+ *
+ * The rules run on the player store of the registry, the Player objects in the slots keep the
+ * names and send details and are brought up to date for drawing with updateViews.
+ *
+ * A room is only ever used by the one thread that owns it, the communication engine or a RoomWorker
+ * when the room is hosted by a RoomManager, so none of it is locked. The room keeps its own tick time line and snapshot
+ * history so rooms on the same thread do not hold each other up. The stats fields are written by
+ * the owning thread and may be read by any thread for reporting.
+ *
+ * @author			Bryan Nielsen
+ */
+class GameRoom {
+	String name;
+	PlayerRegistry players;
+	PlayerStore state;
+	ArrayList<Player> playerList;
+	SpatialGrid grid;
+	TrailGrid trail;
+	int maximumPlayers, requestedPlayers, playerItIndex;
+	
+	// the tag checks left to skip after the players respawn
+	int tagGraceTicks;
+	
+	// size of the room's square play field in pixels, a client room takes the size of the server it joins
+	int fieldSize;
+	
+	TickScheduler scheduler;
+	SnapshotHistory history;
+	int snapshotSequence;
+	RoomWorker worker;
+	boolean hosted;
+	long nextPingNS;
+	
+	// the players the room manager has routed to the room, counted as they join so a burst of joins does not overfill it
+	AtomicInteger routedPlayers;
+	
+	// room stats, written by the owning thread
+	volatile int playerCount;
+	volatile long ticksRun, ticksDropped, tickNanos, maximumTickNanos, framesSent;
+	LatencyHistogram tickTimes;
+	
+	
+	// the most player slots, slots are sent as unsigned 2 byte values
+	static final int MAXIMUM_SLOTS = 4096;
+	
+	// the tag checks skipped after the players respawn, so a player that spawns next to the it player
+	// cannot tag it before anyone has moved
+	static final int TAG_GRACE_TICKS = 1;
+	
+	// cell size of the spatial grid in pixels, larger than a player so a collision query covers few cells
+	static final int GRID_CELL_SIZE = 32;
+	
+	// the time between round trip pings to the players, set in seconds with -Dgetem.pingInterval
+	static final long PING_INTERVAL_NS = Math.max(1, Integer.getInteger("getem.pingInterval", 5)) * 1000000000L;
+	
+	
+	/**
+	 * The constructor creates an empty room with no it player. The room holds no more players than
+	 * its field has spawn points for.
+	 *
+	 * @param roomName				The name players use to join the room.
+	 * @param maximum					The most players in the room.
+	 * @param historySize			The number of snapshots kept for delta frames.
+	 */
+	public GameRoom(String roomName, int maximum, int historySize) {
+		name = roomName;
+		fieldSize = Player.WORLD_SIZE;
+		requestedPlayers = Math.max(2, Math.min(MAXIMUM_SLOTS, maximum));
+		maximumPlayers = Math.min(requestedPlayers, Player.getSpawnCapacity(fieldSize));
+		players = new PlayerRegistry(maximumPlayers);
+		playerList = players.slots;
+		state = players.state;
+		grid = new SpatialGrid(fieldSize, GRID_CELL_SIZE);
+		trail = new TrailGrid(fieldSize, fieldSize);
+		state.setField(fieldSize, fieldSize);
+		playerItIndex = -1;
+		
+		// each room has its own time line, set the rates with -Dgetem.simulationRate and -Dgetem.sendRate
+		scheduler = new TickScheduler(
+			Integer.getInteger("getem.simulationRate", 60),
+			Integer.getInteger("getem.sendRate", 20),
+			Integer.getInteger("getem.catchUpTicks", 5)
+		);
+		history = new SnapshotHistory(historySize);
+		snapshotSequence = 0;
+		hosted = false;
+		routedPlayers = new AtomicInteger();
+		tickTimes = new LatencyHistogram();
+		nextPingNS = System.nanoTime() + PING_INTERVAL_NS;
+	}
+	
+	
+	/**
+	 * Add a new player to the lowest empty slot. The first player in an empty room is it.
+	 *
+	 * @param playerName			The name of the player, it must be unique in the room.
+	 * @param playerAddress		The socket address of the player, it must be unique in the room.
+	 * @return								The added player, null if the room is full or the name or address is taken.
+	 */
+	public Player addPlayer(String playerName, InetSocketAddress playerAddress) {
+		Player newPlayer = new Player(playerName);
+		newPlayer.address = playerAddress;
+		newPlayer.fieldSize = fieldSize;
+		
+		int slot = players.add(newPlayer);
+		if (slot < 0) return null;
+		
+		// the player's color is the slot
+		newPlayer.setColorIndex(slot);
+		state.load(slot, newPlayer);
+		playerCount = players.size();
+		
+		if (playerItIndex < 0) setPlayerItIndex(slot);
+		
+		return newPlayer;
+	}
+	
+	
+	/**
+	 * Remove the player with the given socket address. If the it player leaves then the player in
+	 * the lowest slot is it.
+	 *
+	 * @param playerAddress		The socket address of the player to remove.
+	 */
+	public void nullPlayer(InetSocketAddress playerAddress) {
+		int playerIndex = players.indexOfAddress(playerAddress);
+		if (playerIndex < 0) return;
+		
+		players.remove(playerIndex);
+		playerCount = players.size();
+		
+		if (playerIndex == playerItIndex) setPlayerItIndex(lowestPlayerIndex());
+	}
+	
+	
+	// the lowest slot with a player in it, -1 if the room is empty
+	private int lowestPlayerIndex() {
+		for (int index = 0; index < playerList.size(); index++) {
+			if (playerList.get(index) != null) return index;
+		}
+		return -1;
+	}
+	
+	
+	/**
+	 * Handle a JOIN message, adding the player and building the reply. The player is sent frames
+	 * with the codec they asked for and as deltas if they can rebuild them.
+	 *
+	 * @param msg							The JOIN message.
+	 * @param playerAddress		The socket address the message came from.
+	 * @param json						The JSON codec.
+	 * @param binary					The binary codec.
+	 * @return								The JOIN_ACCEPT or JOIN_REJECT message to send back.
+	 */
+	public GameMessage join(GameMessage msg, InetSocketAddress playerAddress, JsonMessageCodec json, BinaryMessageCodec binary) {
+		Object playerName = msg.payload.get("name");
+		Player newPlayer = playerName instanceof String ? addPlayer((String)playerName, playerAddress) : null;
+		
+		if (newPlayer == null) return new GameMessage(GameMessage.MessageTypes.JOIN_REJECT);
+		
+		// use the binary codec with this player if they asked for it at our version, any other version uses JSON
+		if (BinaryMessageCodec.NAME.equals(msg.payload.get("codec"))) newPlayer.codec = binary;
+		else newPlayer.codec = json;
+		
+		// send delta frames if the player can rebuild them
+		newPlayer.deltaFrames = Boolean.TRUE.equals(msg.payload.get("delta"));
+		
+		// stream only the region round the player if it says how much of the field it shows, older
+		// clients are sent the whole field
+		if (msg.payload.get("view") instanceof Number) newPlayer.viewSize = Math.max(1, ((Number)msg.payload.get("view")).intValue());
+		
+		// fill payload with new player info, the map type, the selected codec, the room, the field size
+		// and the trails so far in the region the player is sent
+		GameMessage reply = new GameMessage(GameMessage.MessageTypes.JOIN_ACCEPT);
+		reply.payload = newPlayer.getPlayerMap("current");
+		reply.payload.put("mapType", "join");
+		reply.payload.put("codec", newPlayer.codec.getName());
+		reply.payload.put("room", name);
+		reply.payload.put("worldSize", fieldSize);
+		
+		byte[] image;
+		if (newPlayer.viewSize > 0 && newPlayer.viewSize < fieldSize) {
+			float left = Player.viewEdge(newPlayer.currentX, newPlayer.viewSize, fieldSize) - SnapshotHistory.VIEW_MARGIN;
+			float top = Player.viewEdge(newPlayer.currentY, newPlayer.viewSize, fieldSize) - SnapshotHistory.VIEW_MARGIN;
+			int span = newPlayer.viewSize + 2 * SnapshotHistory.VIEW_MARGIN;
+			image = trail.getImage((int)left, (int)top, (int)left + span, (int)top + span);
+		}
+		else image = trail.getImage();
+		reply.payload.put("trail", Base64.getEncoder().encodeToString(image));
+		
+		return reply;
+	}
+	
+	
+	/**
+	 * Change the size of the play field, used by a client taking the size of the server it joins.
+	 * The spatial grid and the trails start again empty for the new field, the players in the
+	 * room move on it and the room holds as many players as it has spawn points for.
+	 *
+	 * @param size						The width and height of the field in pixels.
+	 */
+	public void setFieldSize(int size) {
+		size = Math.max(Player.MINIMUM_FIELD_SIZE, Math.min(Player.MAXIMUM_FIELD_SIZE, size));
+		if (size == fieldSize) return;
+		
+		fieldSize = size;
+		maximumPlayers = players.maximumPlayers = Math.min(requestedPlayers, Player.getSpawnCapacity(fieldSize));
+		grid = new SpatialGrid(fieldSize, GRID_CELL_SIZE);
+		trail = new TrailGrid(fieldSize, fieldSize);
+		state.setField(fieldSize, fieldSize);
+		for (Player player : playerList) {
+			if (player != null) player.fieldSize = fieldSize;
+		}
+	}
+	
+	
+	/**
+	 * Apply a map of player values to the player in a slot, keeping the name index in step if
+	 * the map renames the player.
+	 *
+	 * @param playerIndex			The slot of the player.
+	 * @param playerMap				The map of player values.
+	 */
+	public void applyPlayerMap(int playerIndex, Map<String, Object> playerMap) {
+		Player player = playerList.get(playerIndex);
+		String oldName = player.name;
+		
+		player.applyMap(playerMap);
+		players.rename(playerIndex, oldName);
+		state.applyMap(playerIndex, playerMap);
+	}
+	
+	
+	/**
+	 * Apply a list of player maps from a players frame to the slots, used by a client. A null map
+	 * empties its slot and a map for an empty slot creates a new player.
+	 *
+	 * @param playerMaps			The player maps, one for each slot.
+	 */
+	public void applyPlayerMaps(List<Map<String, Object>> playerMaps) {
+		int mapIndex = 0;
+		for (Map<String, Object> next : playerMaps) {
+			if (next == null) {
+				players.set(mapIndex, null);
+			}
+			else if (players.get(mapIndex) == null) {
+				Player newPlayer = new Player("new");
+				newPlayer.fieldSize = fieldSize;
+				newPlayer.applyMap(next);
+				players.set(mapIndex, newPlayer);
+			}
+			else {
+				applyPlayerMap(mapIndex, next);
+			}
+			
+			mapIndex += 1;
+		}
+	}
+	
+	
+	/**
+	 * Apply a PLAYER_FRAME from a player, the controls in its goto map, the frame ack and any
+	 * inputs. The name, color index and position in the map are ignored, the room owns those.
+	 *
+	 * @param playerIndex			The slot of the player that sent the frame.
+	 * @param payload					The frame payload.
+	 * @param tickSeconds			The length of a simulation tick in seconds.
+	 */
+	public void applyPlayerFrame(int playerIndex, Map<String, Object> payload, float tickSeconds) {
+		Player framePlayer = playerList.get(playerIndex);
+		framePlayer.applyControls(payload);
+		state.applyControls(playerIndex, payload);
+		
+		// remember the newest players frame the client has acknowledged
+		if (payload.get("ack") instanceof Number) {
+			framePlayer.ackedSequence = Math.max(framePlayer.ackedSequence, ((Number)payload.get("ack")).intValue());
+		}
+		
+		// move the player with each new input, older clients send no inputs and are moved every tick
+		if (payload.get("inputs") instanceof List) applyInputs(playerIndex, (List<?>)payload.get("inputs"), tickSeconds);
+	}
+	
+	
+	/**
+	 * Move a player with the inputs from a PLAYER_FRAME. Inputs already applied are skipped, and a
+	 * client can not send inputs faster than the simulation ticks, any inputs beyond its allowance
+	 * wait for a later frame.
+	 *
+	 * @param playerIndex			The slot of the player that sent the inputs.
+	 * @param inputMaps				The list of input maps, oldest first.
+	 * @param tickSeconds			The length of a simulation tick in seconds.
+	 */
+	@SuppressWarnings("unchecked")
+	public void applyInputs(int playerIndex, List<?> inputMaps, float tickSeconds) {
+		for (Object next : inputMaps) {
+			if (!(next instanceof Map)) continue;
+			
+			InputHistory.Input input = InputHistory.Input.fromMap((Map<String, Object>)next);
+			if (input.sequence <= state.inputSequence[playerIndex]) continue;
+			if (state.inputAllowance[playerIndex] <= 0) break;
+			
+			state.inputAllowance[playerIndex] -= 1;
+			state.applyInput(playerIndex, input, tickSeconds);
+		}
+	}
+	
+	
+	/**
+	 * Set the it player. All the players go back to their start points when the it player changes.
+	 *
+	 * @param playerIndex			The slot of the new it player.
+	 * @return								True if the it player changed.
+	 */
+	public boolean setPlayerItIndex(int playerIndex) {
+		if (playerIndex == playerItIndex) return false;
+		
+		playerItIndex = playerIndex;
+		resetAllPlayers();
+		return true;
+	}
+	
+	
+	/**
+	 * All players are reset to their default coordinates based on their color index and the trails
+	 * are cleared. The next tag check is skipped so the it player is not tagged where it spawns.
+	 */
+	public void resetAllPlayers() {
+		trail.clear();
+		tagGraceTicks = TAG_GRACE_TICKS;
+		
+		for (int slot = 0; slot < playerList.size(); slot++) {
+			Player next = playerList.get(slot);
+			if (next == null) continue;
+			
+			next.setColorIndex(next.colorIndex);
+			state.spawn(slot);
+		}
+	}
+	
+	
+	/**
+	 * Bring the Player objects in the slots up to date with the player store for drawing.
+	 *
+	 * @param controlSlot			The slot of a player controlled through its view whose move target
+	 *														and flags are left alone, -1 for none.
+	 */
+	public void updateViews(int controlSlot) {
+		for (int slot = state.present.nextSetBit(0); slot >= 0; slot = state.present.nextSetBit(slot + 1)) {
+			state.copyToView(slot, playerList.get(slot), slot != controlSlot);
+		}
+	}
+	
+	
+	/**
+	 * Run one simulation tick, move the players and check whether the it player has been tagged.
+	 * The time spent on each is recorded as the move and tag phases.
+	 *
+	 * @param tickSeconds			The length of the simulation tick in seconds.
+	 * @param metrics					The metrics of the thread running the room.
+	 */
+	public void tick(float tickSeconds, ServerMetrics metrics) {
+		long startNS = System.nanoTime();
+		calculatePlayerMoves(tickSeconds);
+		long movedNS = System.nanoTime();
+		setPlayerItIndex(playerTagged());
+		
+		metrics.recordPhase(ServerMetrics.MOVE, movedNS - startNS);
+		metrics.recordPhase(ServerMetrics.TAG, System.nanoTime() - movedNS);
+	}
+	
+	
+	/**
+	 * Determine if it is time to ping the players again to measure their round trips.
+	 *
+	 * @return								True if the pings should be sent now.
+	 */
+	public boolean pingDue() {
+		long now = System.nanoTime();
+		if (now - nextPingNS < 0) return false;
+		
+		nextPingNS = now + PING_INTERVAL_NS;
+		return true;
+	}
+	
+	
+	/**
+	 * Build a round trip ping. The client sends the ping time back in a PING_RESPONSE. Pings are
+	 * always sent as JSON as the binary codec has no layout for them.
+	 *
+	 * @return								The PING message.
+	 */
+	public static GameMessage buildPing() {
+		GameMessage ping = new GameMessage(GameMessage.MessageTypes.PING);
+		ping.payload.put("pingTime", System.nanoTime() / 1000000);
+		return ping;
+	}
+	
+	
+	/**
+	 * Handle the PING_RESPONSE to a round trip ping, keep the round trip with the player and in the metrics.
+	 *
+	 * @param playerIndex			The slot of the player that sent the response.
+	 * @param payload					The response payload.
+	 * @param metrics					The metrics of the thread running the room.
+	 */
+	public void pingResponse(int playerIndex, Map<String, Object> payload, ServerMetrics metrics) {
+		// older clients answer with a players message and no ping time
+		if (!(payload.get("pingTime") instanceof Number)) return;
+		
+		long roundTrip = System.nanoTime() / 1000000 - ((Number)payload.get("pingTime")).longValue();
+		if (roundTrip < 0 || roundTrip > PING_INTERVAL_NS / 1000000 * 10) return;
+		
+		playerList.get(playerIndex).roundTripMillis = roundTrip;
+		metrics.recordRoundTrip(roundTrip);
+	}
+	
+	
+	/**
+	 * Move the players that do not send inputs, rebuild the spatial grid and draw the trails. Each
+	 * tick allows every player one more input.
+	 *
+	 * @param tickSeconds			The length of the simulation tick in seconds.
+	 */
+	public void calculatePlayerMoves(float tickSeconds) {
+		// players that send their inputs are moved as the inputs arrive
+		state.moveAll(tickSeconds, Player.MAXIMUM_INPUT_ALLOWANCE);
+		
+		// rebuild the spatial grid with the new positions
+		grid.rebuild(state);
+		drawTrails();
+	}
+	
+	
+	/**
+	 * Draw the players of the store into the trail grid from where each was last drawn, including
+	 * any moves made by inputs since the last tick.
+	 */
+	public void drawTrails() {
+		for (int slot = 0; slot < playerList.size(); slot++) {
+			if (state.present.get(slot)) trail.draw(slot, state.x[slot], state.y[slot], state.radius[slot], state.colorIndex[slot], state.visible.get(slot));
+			else trail.liftPen(slot);
+		}
+	}
+	
+	
+	/**
+	 * Draw the player views into the trail grid, used by a client when the server does not send
+	 * the trail.
+	 */
+	public void drawViewTrails() {
+		for (int slot = 0; slot < playerList.size(); slot++) {
+			Player view = playerList.get(slot);
+			if (view != null) trail.draw(slot, view.currentX, view.currentY, view.playerRadius, view.colorIndex, view.isVisible);
+			else trail.liftPen(slot);
+		}
+	}
+	
+	
+	/**
+	 * Find the player that has tagged the it player, the lowest slot touching it. Only the players
+	 * in the spatial grid cells around the it player are checked. No one is tagged on the first check
+	 * after the players respawn.
+	 *
+	 * @return								The slot of the new it player, or the current it player if no one tagged it.
+	 */
+	public int playerTagged() {
+		if (tagGraceTicks > 0) {
+			tagGraceTicks -= 1;
+			return playerItIndex;
+		}
+		
+		if (playerItIndex >= 0 && state.present.get(playerItIndex)) {
+			int playerIndex = grid.lowestNear(state.x[playerItIndex], state.y[playerItIndex], state.radius[playerItIndex], playerItIndex);
+			if (playerIndex >= 0) return playerIndex;
+		}
+		
+		return playerItIndex;
+	}
+	
+	
+	/**
+	 * Take a snapshot of all the players for a players frame, reusing a snapshot that has left the
+	 * room's history.
+	 *
+	 * @return								The snapshot with the next sequence number and the room's simulation time.
+	 */
+	public SnapshotHistory.Snapshot takeSnapshot() {
+		snapshotSequence += 1;
+		SnapshotHistory.Snapshot snapshot = history.obtain();
+		fillSnapshot(snapshot, snapshotSequence, scheduler.getSimulationMillis());
+		return snapshot;
+	}
+	
+	
+	/**
+	 * Fill a snapshot with every slot from the player store, the names, send details and views
+	 * from the player views and the trail. The spatial grid is rebuilt at the store positions the
+	 * first time a player is sent only its region, so the players in each region are found from
+	 * the cells it covers.
+	 *
+	 * @param snapshot				The snapshot to fill.
+	 * @param sequence				The snapshot sequence.
+	 * @param serverTime			The simulation time of the snapshot in milliseconds.
+	 */
+	public void fillSnapshot(SnapshotHistory.Snapshot snapshot, int sequence, int serverTime) {
+		snapshot.reset(sequence, playerItIndex, serverTime, playerList.size());
+		trail.copyTo(snapshot);
+		boolean gridBuilt = false;
+		
+		for (int slot = 0; slot < playerList.size(); slot++) {
+			if (!state.present.get(slot)) continue;
+			
+			Player view = playerList.get(slot);
+			int flags = BinaryMessageCodec.FLAG_PRESENT;
+			if (state.pressed.get(slot)) flags |= BinaryMessageCodec.FLAG_MOUSE_PRESSED;
+			if (state.visible.get(slot)) flags |= BinaryMessageCodec.FLAG_VISIBLE;
+			
+			snapshot.flags[slot] = flags;
+			snapshot.colorIndex[slot] = state.colorIndex[slot];
+			snapshot.x[slot] = state.x[slot];
+			snapshot.y[slot] = state.y[slot];
+			snapshot.inputSequence[slot] = state.inputSequence[slot];
+			snapshot.names[slot] = view.name;
+			
+			// the send details, an ack of -1 is always sent keyframes, and the region round the player it
+			// is sent if it shows less than the whole field
+			if (view.address != null) {
+				snapshot.addresses[slot] = view.address;
+				snapshot.codecs[slot] = view.codec;
+				snapshot.ackedSequence[slot] = view.deltaFrames ? view.ackedSequence : -1;
+				if (view.viewSize > 0 && view.viewSize < fieldSize) {
+					// inputs since the tick may have moved players after the grid was built
+					if (!gridBuilt) grid.rebuild(state);
+					gridBuilt = true;
+					snapshot.setView(slot, view.viewSize, fieldSize, grid);
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * Apply a snapshot rebuilt from a players frame to the slots, used by a client. An empty slot
+	 * in the snapshot empties its slot and a player in an empty slot creates a new player.
+	 *
+	 * @param snapshot				The snapshot.
+	 */
+	public void applySnapshot(SnapshotHistory.Snapshot snapshot) {
+		for (int slot = 0; slot < snapshot.playerCount; slot++) {
+			if (!snapshot.has(slot)) {
+				if (slot < playerList.size() && playerList.get(slot) != null) players.set(slot, null);
+			}
+			else if (slot >= playerList.size() || playerList.get(slot) == null) {
+				Player newPlayer = new Player("new");
+				newPlayer.fieldSize = fieldSize;
+				snapshot.copyToView(slot, newPlayer);
+				players.set(slot, newPlayer);
+			}
+			else {
+				Player player = playerList.get(slot);
+				String oldName = player.name;
+				
+				snapshot.copyToView(slot, player);
+				players.rename(slot, oldName);
+				state.load(slot, player);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Build the "current" player maps of every slot from the player store, null for an empty slot.
+	 *
+	 * @return								The list of player maps.
+	 */
+	public List<Map<String, Object>> buildPlayerMaps() {
+		ArrayList<Map<String, Object>> playerMaps = new ArrayList<Map<String, Object>>(playerList.size());
+		
+		for (int slot = 0; slot < playerList.size(); slot++) {
+			if (state.present.get(slot)) playerMaps.add(state.getPlayerMap(slot, playerList.get(slot).name));
+			else playerMaps.add(null);
+		}
+		
+		return playerMaps;
+	}
+	
+	
+	/**
+	 * Build a message of the "current" player maps of every slot, null for an empty slot, and the
+	 * it player index.
+	 *
+	 * @param msgType					The type of message to build, PLAYERS_FRAME or PING_RESPONSE.
+	 * @return								The message.
+	 */
+	public GameMessage buildPlayersMessage(GameMessage.MessageTypes msgType) {
+		GameMessage msg = new GameMessage(msgType);
+		msg.payload.put("playerMaps", buildPlayerMaps());
+		msg.payload.put("playerItIndex", playerItIndex);
+		return msg;
+	}
+	
+	
+	/**
+	 * Get a one line summary of the room stats.
+	 *
+	 * @return								The room name, players, ticks run and dropped, tick time and frames sent.
+	 */
+	public String getStats() {
+		long ticks = ticksRun;
+		long meanMicros = ticks > 0 ? tickNanos / ticks / 1000 : 0;
+		
+		return name + ": players " + playerCount + "/" + maximumPlayers + ", ticks " + ticks + ", dropped " + ticksDropped + 
+			", tick mean " + meanMicros + "us p99 " + (tickTimes.getPercentile(99) / 1000) + "us max " + (maximumTickNanos / 1000) + "us, frames " + framesSent;
+	}
+}
@@ -0,0 +1,49 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package getem;
+
+
+/**
+ * GetEm starts the game. With no arguments the game window is opened, with --server a dedicated
+ * room server is started instead with no window, running headless so no display is needed.
+ *
+ * java -jar getem.jar --server [port]
+ *
+ * Nothing from the window classes is loaded by the server.
+ *
+ * @author			Bryan Nielsen
+ */
+public class GetEm {
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("--server")) {
+			System.setProperty("java.awt.headless", "true");
+			RoomManager.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+		}
+		else {
+			GameEngine.main(args);
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package getem;
+
+import java.util.*;
+
+
+/**
+ * The InputHistory holds the inputs a client has sent to the server that the server has not yet
+ * acknowledged. Each simulation tick the client samples its player's goto coordinates and flags
+ * into a sequence numbered input, moves its own player with the input straight away and sends
+ * the unacknowledged inputs to the server with every PLAYER_FRAME.
+ *
+ * The server moves the player with each input as it arrives and sends back the sequence of the
+ * last input it applied in the player's map. When the client gets the authoritative position it
+ * drops the acknowledged inputs and replays the rest on top of it, so the player keeps moving
+ * without waiting a round trip and still ends up where the server puts it.
+ *
+ * @author			Bryan Nielsen
+ */
+class InputHistory {
+	ArrayDeque<Input> inputs;
+	int capacity, nextSequence;
+	
+	
+	/**
+	 * An Input is the state of the player's controls for one simulation tick.
+	 */
+	static class Input {
+		final int sequence, gotoX, gotoY;
+		final boolean mousePressed, isVisible;
+		
+		Input(int seq, int x, int y, boolean pressed, boolean visible) {
+			sequence = seq;
+			gotoX = x;
+			gotoY = y;
+			mousePressed = pressed;
+			isVisible = visible;
+		}
+		
+		
+		/**
+		 * Build the map sent in the inputs list of a PLAYER_FRAME.
+		 *
+		 * @return					The input map.
+		 */
+		Map<String, Object> getInputMap() {
+			Map<String, Object> inputMap = new HashMap<>();
+			inputMap.put("sequence", sequence);
+			inputMap.put("gotoX", gotoX);
+			inputMap.put("gotoY", gotoY);
+			inputMap.put("mousePressed", mousePressed);
+			inputMap.put("isVisible", isVisible);
+			return inputMap;
+		}
+		
+		
+		/**
+		 * Read an input from a map received in a PLAYER_FRAME.
+		 *
+		 * @param inputMap	The input map.
+		 * @return					The input.
+		 */
+		static Input fromMap(Map<String, Object> inputMap) {
+			return new Input(
+				BinaryMessageCodec.getInt(inputMap, "sequence", -1),
+				BinaryMessageCodec.getInt(inputMap, "gotoX", 0),
+				BinaryMessageCodec.getInt(inputMap, "gotoY", 0),
+				BinaryMessageCodec.getBoolean(inputMap, "mousePressed"),
+				BinaryMessageCodec.getBoolean(inputMap, "isVisible")
+			);
+		}
+	}
+	
+	
+	/**
+	 * The constructor creates a history to hold the given number of unacknowledged inputs.
+	 *
+	 * @param size				The number of inputs held, older inputs are dropped.
+	 */
+	public InputHistory(int size) {
+		capacity = Math.max(1, size);
+		inputs = new ArrayDeque<Input>(capacity);
+		nextSequence = 0;
+	}
+	
+	
+	/**
+	 * Sample the player's controls into a new input and add it to the history.
+	 *
+	 * @param player			The local player.
+	 * @return						The new input.
+	 */
+	public Input sample(Player player) {
+		Input input = new Input(nextSequence++, player.gotoX, player.gotoY, player.mousePressed, player.isVisible);
+		
+		if (inputs.size() >= capacity) inputs.pollFirst();
+		inputs.addLast(input);
+		
+		return input;
+	}
+	
+	
+	/**
+	 * Drop the inputs the server has applied.
+	 *
+	 * @param sequence		The sequence of the last input the server applied.
+	 */
+	public void acknowledge(int sequence) {
+		while (!inputs.isEmpty() && inputs.peekFirst().sequence <= sequence) inputs.pollFirst();
+	}
+	
+	
+	/**
+	 * Build the list of input maps for a PLAYER_FRAME, oldest first. Every unacknowledged input is
+	 * sent again so a lost datagram does not lose inputs.
+	 *
+	 * @param maximum			The most inputs to send, the newest inputs are kept.
+	 * @return						The list of input maps.
+	 */
+	public List<Map<String, Object>> getInputMaps(int maximum) {
+		ArrayList<Map<String, Object>> inputMaps = new ArrayList<Map<String, Object>>(Math.min(maximum, inputs.size()));
+		int skip = inputs.size() - maximum;
+		
+		for (Input input : inputs) {
+			if (skip-- > 0) continue;
+			inputMaps.add(input.getInputMap());
+		}
+		
+		return inputMaps;
+	}
+	
+	
+	/**
+	 * Remove all inputs and start the sequence again, used when joining a game.
+	 */
+	public void clear() {
+		inputs.clear();
+		nextSequence = 0;
+	}
+}
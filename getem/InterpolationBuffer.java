@@ -0,0 +1,201 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package getem;
+
+import java.util.*;
+
+
+/**
+ * The InterpolationBuffer is a client side jitter buffer for the remote players. It keeps the
+ * player positions from the most recent player frames stamped with the server's simulation time
+ * and moves the remote players to where they were a short delay behind the server, interpolating
+ * between the two frames either side of that time. Frames that arrive late or unevenly are then
+ * hidden by the delay and remote players move smoothly between frames.
+ *
+ * When no frame newer than the render time has arrived the players are extrapolated along their
+ * last velocity for at most the extrapolation limit and then held still.
+ *
+ * The server clock is estimated from the frame arrival times. The offset follows the fastest
+ * arrivals straight away and drifts slowly towards slower ones, so network jitter does not move
+ * the render time around.
+ *
+ * The frames are kept in a ring and written over in place, so adding a frame allocates nothing
+ * once the ring has been filled with frames as large as the player list.
+ *
+ * @author			Bryan Nielsen
+ */
+class InterpolationBuffer {
+	Frame[] frames;
+	int frameCount, newestIndex;
+	int delayMS, extrapolationMS;
+	long clockOffsetMS;
+	boolean clockSet;
+	
+	
+	/**
+	 * A Frame is the position of each player slot at one server time.
+	 */
+	static class Frame {
+		int serverTime, slotCount;
+		float[] x, y;
+		boolean[] present;
+		
+		Frame() {
+			x = new float[0];
+			y = new float[0];
+			present = new boolean[0];
+		}
+		
+		
+		// take the positions from a snapshot, growing the arrays if it has more slots
+		void set(int time, SnapshotHistory.Snapshot snapshot) {
+			serverTime = time;
+			slotCount = snapshot.playerCount;
+			
+			if (present.length < slotCount) {
+				x = new float[slotCount];
+				y = new float[slotCount];
+				present = new boolean[slotCount];
+			}
+			
+			for (int slot = 0; slot < slotCount; slot++) {
+				present[slot] = snapshot.has(slot);
+				x[slot] = snapshot.x[slot];
+				y[slot] = snapshot.y[slot];
+			}
+		}
+		
+		
+		// the slot is in this frame
+		boolean has(int slot) {
+			return slot < slotCount && present[slot];
+		}
+	}
+	
+	
+	/**
+	 * The constructor creates an empty buffer.
+	 *
+	 * @param size						The number of frames kept.
+	 * @param delay						The render delay behind the server in milliseconds.
+	 * @param extrapolation		The longest time to extrapolate past the newest frame in milliseconds.
+	 */
+	public InterpolationBuffer(int size, int delay, int extrapolation) {
+		frames = new Frame[Math.max(2, size)];
+		for (int index = 0; index < frames.length; index++) frames[index] = new Frame();
+		delayMS = Math.max(0, delay);
+		extrapolationMS = Math.max(0, extrapolation);
+		clear();
+	}
+	
+	
+	/**
+	 * Add the player positions from a player frame. Frames older than the newest frame are ignored.
+	 *
+	 * @param serverTime			The server simulation time of the frame in milliseconds.
+	 * @param snapshot				The snapshot rebuilt from the frame.
+	 * @param localTime				The local time the frame arrived in milliseconds.
+	 */
+	public void add(int serverTime, SnapshotHistory.Snapshot snapshot, long localTime) {
+		if (frameCount > 0 && serverTime <= frames[newestIndex].serverTime) return;
+		
+		// follow faster arrivals at once and slower ones gradually
+		long offset = localTime - serverTime;
+		if (!clockSet || offset < clockOffsetMS) clockOffsetMS = offset;
+		else clockOffsetMS += (offset - clockOffsetMS) / 32;
+		clockSet = true;
+		
+		newestIndex = (newestIndex + 1) % frames.length;
+		frames[newestIndex].set(serverTime, snapshot);
+		frameCount = Math.min(frameCount + 1, frames.length);
+	}
+	
+	
+	/**
+	 * Move the players in the list to their positions at the render time.
+	 *
+	 * @param players					The player list.
+	 * @param skipIndex				The slot of a player that is not moved, our own predicted player.
+	 * @param localTime				The local time now in milliseconds.
+	 */
+	public void apply(List<Player> players, int skipIndex, long localTime) {
+		if (frameCount == 0) return;
+		
+		long renderTime = localTime - clockOffsetMS - delayMS;
+		
+		// find the newest frame at or before the render time, the frame after it and the frame before it
+		Frame before = null, from = null, to = null;
+		for (int i = 0; i < frameCount; i++) {
+			Frame frame = frames[Math.floorMod(newestIndex - i, frames.length)];
+			
+			if (frame.serverTime <= renderTime) {
+				from = frame;
+				if (i + 1 < frameCount) before = frames[Math.floorMod(newestIndex - i - 1, frames.length)];
+				break;
+			}
+			to = frame;
+		}
+		
+		// render time is older than every frame, hold at the oldest
+		if (from == null) {
+			from = to;
+			to = null;
+		}
+		
+		for (int slot = 0; slot < players.size(); slot++) {
+			Player player = players.get(slot);
+			if (slot == skipIndex || player == null || !from.has(slot)) continue;
+			
+			if (to != null && to.has(slot)) {
+				// interpolate between the frames either side of the render time
+				float t = (float)(renderTime - from.serverTime) / (to.serverTime - from.serverTime);
+				player.currentX = from.x[slot] + (to.x[slot] - from.x[slot]) * t;
+				player.currentY = from.y[slot] + (to.y[slot] - from.y[slot]) * t;
+			}
+			else if (to == null && before != null && before.has(slot)) {
+				// extrapolate along the last velocity for a limited time
+				float t = (float)Math.min(renderTime - from.serverTime, extrapolationMS) / (from.serverTime - before.serverTime);
+				player.currentX = from.x[slot] + (from.x[slot] - before.x[slot]) * t;
+				player.currentY = from.y[slot] + (from.y[slot] - before.y[slot]) * t;
+			}
+			else {
+				player.currentX = from.x[slot];
+				player.currentY = from.y[slot];
+			}
+		}
+	}
+	
+	
+	/**
+	 * Remove all frames and the clock estimate, used when joining a game and when the players are
+	 * reset so remote players are not moved across the field from their old positions.
+	 */
+	public void clear() {
+		frameCount = 0;
+		newestIndex = 0;
+		clockSet = false;
+	}
+}
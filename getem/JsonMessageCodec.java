@@ -0,0 +1,134 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package getem;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+
+
+/**
+ * The JsonMessageCodec converts game messages to and from UTF-8 encoded JSON strings. This is
+ * the original GetEm wire format and is kept so alternative clients and message consumers can
+ * easily read and write game messages.
+ *
+ * @author			Bryan Nielsen
+ */
+class JsonMessageCodec implements MessageCodec {
+	static final String NAME = "json";
+	Gson gson;
+	
+	
+	public JsonMessageCodec() {
+		gson = new Gson();
+	}
+	
+	
+	public String getName() {
+		return NAME;
+	}
+	
+	
+	/**
+	 * Write the message as UTF-8 JSON straight into the buffer.
+	 *
+	 * @param msg					The game message to encode.
+	 * @param buffer			The buffer to write the encoded message into.
+	 */
+	public void encode(GameMessage msg, ByteBuffer buffer) {
+		Writer writer = new OutputStreamWriter(new ByteBufferOutputStream(buffer), StandardCharsets.UTF_8);
+		
+		try {
+			gson.toJson(msg, writer);
+			writer.flush();
+		}
+		catch (IOException ioe) {
+			throw new JsonIOException(ioe);
+		}
+	}
+	
+	
+	/**
+	 * Read the UTF-8 JSON in the buffer straight into a game message without building an
+	 * intermediate String. Note that Gson returns all payload numbers as Double values.
+	 *
+	 * @param buffer			The buffer holding the encoded message.
+	 * @return						The decoded game message.
+	 */
+	public GameMessage decode(ByteBuffer buffer) {
+		return gson.fromJson(new InputStreamReader(new ByteBufferInputStream(buffer), StandardCharsets.UTF_8), GameMessage.class);
+	}
+}
+
+
+
+// input stream reading the remaining bytes of a byte buffer
+class ByteBufferInputStream extends InputStream {
+	ByteBuffer buffer;
+	
+	public ByteBufferInputStream(ByteBuffer b) {
+		buffer = b;
+	}
+	
+	public int read() {
+		return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+	}
+	
+	public int read(byte[] bytes, int offset, int length) {
+		if (length == 0) return 0;
+		if (!buffer.hasRemaining()) return -1;
+		
+		length = Math.min(length, buffer.remaining());
+		buffer.get(bytes, offset, length);
+		return length;
+	}
+	
+	public int available() {
+		return buffer.remaining();
+	}
+}
+
+
+
+// output stream writing into a byte buffer, overflowing the buffer throws BufferOverflowException
+class ByteBufferOutputStream extends OutputStream {
+	ByteBuffer buffer;
+	
+	public ByteBufferOutputStream(ByteBuffer b) {
+		buffer = b;
+	}
+	
+	public void write(int b) {
+		buffer.put((byte)b);
+	}
+	
+	public void write(byte[] bytes, int offset, int length) {
+		buffer.put(bytes, offset, length);
+	}
+}
@@ -0,0 +1,149 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package getem;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A LatencyHistogram counts nanosecond timings in log linear buckets, each power of two split
+ * into eight steps, so any value is held to within an eighth of itself in a fixed 512 counts and
+ * recording is an array increment. It is written by one thread and may be read by any thread,
+ * a reader copies the counts and takes percentiles from the copy.
+ *
+ * @author			Bryan Nielsen
+ */
+class LatencyHistogram {
+	// each power of two is split into 1 << SUB_BITS buckets
+	static final int SUB_BITS = 3;
+	static final int SUB_BUCKETS = 1 << SUB_BITS;
+	static final int BUCKETS = 64 * SUB_BUCKETS;
+	
+	AtomicLongArray counts;
+	
+	
+	/**
+	 * The constructor creates an empty histogram.
+	 */
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+	}
+	
+	
+	/**
+	 * Count one value. Only the owning thread may record.
+	 *
+	 * @param value				The value, negative values are counted as zero.
+	 */
+	public void record(long value) {
+		int index = bucketOf(Math.max(0, value));
+		counts.lazySet(index, counts.get(index) + 1);
+	}
+	
+	
+	// the bucket a value is counted in
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) return (int)value;
+		
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int)((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+	
+	
+	// the largest value counted in a bucket
+	static long highestOf(int index) {
+		if (index < SUB_BUCKETS) return index;
+		
+		int shift = index / SUB_BUCKETS - 1;
+		long lowest = (long)(SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+	
+	
+	/**
+	 * Copy the counts so far into a new histogram.
+	 *
+	 * @return						The copy.
+	 */
+	public LatencyHistogram copy() {
+		LatencyHistogram copy = new LatencyHistogram();
+		copy.add(this);
+		return copy;
+	}
+	
+	
+	/**
+	 * Add the counts of another histogram to this one, used to total the histograms of several rooms.
+	 *
+	 * @param other				The histogram to add.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int index = 0; index < BUCKETS; index++) counts.lazySet(index, counts.get(index) + other.counts.get(index));
+	}
+	
+	
+	/**
+	 * Take the counts of an earlier copy away from this one, leaving what was counted since.
+	 *
+	 * @param earlier			An earlier copy of the same histogram.
+	 */
+	public void subtract(LatencyHistogram earlier) {
+		for (int index = 0; index < BUCKETS; index++) counts.lazySet(index, counts.get(index) - earlier.counts.get(index));
+	}
+	
+	
+	/**
+	 * Get the number of values counted.
+	 *
+	 * @return						The count.
+	 */
+	public long getCount() {
+		long total = 0;
+		for (int index = 0; index < BUCKETS; index++) total += counts.get(index);
+		return total;
+	}
+	
+	
+	/**
+	 * Get a percentile of the values counted, rounded up to the top of its bucket.
+	 *
+	 * @param percent			The percentile, 50 for the median, 100 for the largest value.
+	 * @return						The value, zero if nothing has been counted.
+	 */
+	public long getPercentile(double percent) {
+		long total = getCount();
+		if (total == 0) return 0;
+		
+		// the rank of the value we want, at least the first value
+		long rank = Math.max(1, (long)Math.ceil(total * percent / 100.0));
+		long seen = 0;
+		for (int index = 0; index < BUCKETS; index++) {
+			seen += counts.get(index);
+			if (seen >= rank) return highestOf(index);
+		}
+		return highestOf(BUCKETS - 1);
+	}
+}
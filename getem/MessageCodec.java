@@ -0,0 +1,67 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package getem;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * A MessageCodec converts game messages to and from the bytes carried in a datagram.
+ *
+ * Two codecs are available, the JSON codec that can easily be used by alternative clients
+ * and message consumers and the compact binary codec. The codec used between a client and
+ * the server is selected in the JOIN / JOIN_ACCEPT handshake.
+ *
+ * @author			Bryan Nielsen
+ */
+interface MessageCodec {
+	
+	/**
+	 * Get the name of this codec as used in the join handshake.
+	 *
+	 * @return				The codec name.
+	 */
+	public String getName();
+	
+	
+	/**
+	 * Encode a game message into the buffer starting at the buffer's current position.
+	 *
+	 * @param msg					The game message to encode.
+	 * @param buffer			The buffer to write the encoded message into.
+	 */
+	public void encode(GameMessage msg, ByteBuffer buffer);
+	
+	
+	/**
+	 * Decode a game message from the remaining bytes in the buffer.
+	 *
+	 * @param buffer			The buffer holding the encoded message.
+	 * @return						The decoded game message.
+	 */
+	public GameMessage decode(ByteBuffer buffer);
+}
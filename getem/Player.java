@@ -26,7 +26,6 @@ along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
 package getem;
 
 import java.util.*;
-import java.awt.*;
 import java.net.*;
 import java.io.*;
 
@@ -38,30 +37,35 @@ import java.io.*;
  */
 class Player {
 	// declare class variables
-	static Color[] playerColors = new Color[] {
-		new Color(255, 0, 0),
-		new Color(0, 255, 0),
-		new Color(0, 0, 255),
-		new Color(255, 255, 0),
-		new Color(0, 255, 255),
-		new Color(255, 0, 255),
-		new Color(128, 64, 0),
-		new Color(0, 128, 64),
-		new Color(128, 0, 192),
-		new Color(255, 192, 128),
-		new Color(128, 128, 128),
-		new Color(64, 192, 64),
-		new Color(128, 0, 0),
-		new Color(0, 0, 128),
-		new Color(255, 255, 255),
-		new Color(128, 128, 0)
-	};
+	// the smallest and largest play fields, a trail chunk index is sent as an unsigned 2 byte value
+	static final int MINIMUM_FIELD_SIZE = 400;
+	static final int MAXIMUM_FIELD_SIZE = 4000;
+	
+	// size of the square play field a server hosts in pixels, set with -Dgetem.worldSize
+	static final int WORLD_SIZE = Math.max(MINIMUM_FIELD_SIZE, Math.min(MAXIMUM_FIELD_SIZE, Integer.getInteger("getem.worldSize", 400)));
+	
+	// spawn points for color indexes past the fixed colors by field size, generated as needed
+	static float[][][] spawnPoints = new float[MAXIMUM_FIELD_SIZE + 1][][];
+	
+	// the first players spawn on the diagonal, one for each fixed color, this far apart
+	static final int DIAGONAL_SPAWNS = 16;
+	static final int DIAGONAL_SPACING = 23;
+	
+	// further players spawn on a square lattice this far apart, more than two player radiuses so no
+	// two spawn touching, and no nearer the edge of the field than the first diagonal spawn
+	static final int SPAWN_SPACING = 22;
+	static final int SPAWN_BORDER = 16;
+	
+	// the most inputs a client may get ahead of the server's simulation ticks
+	static final int MAXIMUM_INPUT_ALLOWANCE = 30;
 	
 	String name;
-	boolean isIt, isVisible, mousePressed, isConnected;
-	int playerIndex, colorIndex, gotoX, gotoY, playerRadius, moveIncrement;
-	float currentX, currentY;
+	boolean isIt, isVisible, mousePressed, isConnected, deltaFrames;
+	int ackedSequence, inputSequence, inputAllowance, playerIndex, colorIndex, gotoX, gotoY, playerRadius, viewSize, fieldSize;
+	float currentX, currentY, moveSpeed;
+	long roundTripMillis;
 	InetSocketAddress address;
+	MessageCodec codec;
 	Date lastCommunicationDate;
 	
 	
@@ -84,9 +88,19 @@ class Player {
 		currentX = 0;
 		currentY = 0;
 		address = null;
+		codec = null;
+		deltaFrames = false;
+		ackedSequence = -1;
+		inputSequence = -1;
+		inputAllowance = 0;
+		roundTripMillis = -1;
+		viewSize = 0;
 		lastCommunicationDate = new Date();
 		playerRadius = 10;
-		moveIncrement = 5;
+		moveSpeed = 50;
+		
+		// the field of the room the player is in, the room sets it when the player joins
+		fieldSize = WORLD_SIZE;
 		
 		// assume player 0
 		setColorIndex(0);
@@ -97,18 +111,19 @@ class Player {
 	 * Sets the color index value to use with this player and sets other player variables to
 	 * the default values to be used with the specified color index.
 	 *
-	 * @param newColorIndex			The index value of the color from the class playerColors array to
-	 *																	use for this player.
+	 * @param newColorIndex			The index value of the color from the palette to use for this player,
+	 *																	which is also the player's slot.
 	 */
 	public void setColorIndex(int newColorIndex) {
 		// if color index exceeds possible values then default to 0
-		if (newColorIndex >= playerColors.length) newColorIndex = 0;
+		if (newColorIndex < 0 || newColorIndex >= GameRoom.MAXIMUM_SLOTS) newColorIndex = 0;
 		
 		colorIndex = newColorIndex;
 		
 		// set play field coordinates
-		currentX = 16 + colorIndex * 23;
-		currentY = currentX;
+		float[] spawnPoint = getSpawnPoint(colorIndex, fieldSize);
+		currentX = spawnPoint[0];
+		currentY = spawnPoint[1];
 		
 		gotoX = 0;
 		gotoY = 0;
@@ -119,12 +134,110 @@ class Player {
 	
 	
 	/**
-	 * Returns the Color object for this player.
+	 * Get the left or top edge of a view of the play field that follows a player, centred on the
+	 * player and kept inside the field. A view larger than the field starts at its edge. A client
+	 * scrolls its camera with this and the server streams the region round it, so both agree.
+	 *
+	 * @param position		The x or y coordinate of the player.
+	 * @param size				The width or height of the view in pixels.
+	 * @param fieldSize		The width or height of the play field in pixels.
+	 * @return						The x or y coordinate of the edge of the view.
+	 */
+	static float viewEdge(float position, int size, int fieldSize) {
+		return Math.max(0, Math.min(position - size / 2.0f, fieldSize - size));
+	}
+	
+	
+	/**
+	 * Get the spawn point for a color index. The fixed colors spawn along the diagonal of the play
+	 * field as they always have. Further players spawn on the points of a square lattice over the
+	 * field, away from the diagonal, so no two players spawn touching. Indexes past the spawn points
+	 * a field has wrap round, a room never holds more players than its field has spawn points.
+	 *
+	 * @param index				The color index.
+	 * @param fieldSize		The width and height of the play field in pixels.
+	 * @return						The x and y coordinates of the spawn point.
+	 */
+	static float[] getSpawnPoint(int index, int fieldSize) {
+		float[][] points = getSpawnPoints(fieldSize);
+		index = Math.floorMod(index, DIAGONAL_SPAWNS + points.length);
+		if (index < DIAGONAL_SPAWNS) return new float[] { SPAWN_BORDER + index * DIAGONAL_SPACING, SPAWN_BORDER + index * DIAGONAL_SPACING };
+		
+		return points[index - DIAGONAL_SPAWNS];
+	}
+	
+	
+	/**
+	 * Get the number of players a play field has spawn points for.
 	 *
-	 * @return			The Color object for this player is returned.
+	 * @param fieldSize		The width and height of the play field in pixels.
+	 * @return						The number of spawn points, at most the most slots a room can have.
 	 */
-	public Color getColor() {
-		return playerColors[colorIndex];
+	static int getSpawnCapacity(int fieldSize) {
+		return DIAGONAL_SPAWNS + getSpawnPoints(fieldSize).length;
+	}
+	
+	
+	/**
+	 * Get the smallest play field, in steps of 100 pixels from the field a server hosts, with spawn
+	 * points for a number of players.
+	 *
+	 * @param players			The number of players.
+	 * @return						The width and height of the field in pixels, the largest field if none holds them all.
+	 */
+	static int getFieldSizeFor(int players) {
+		int size = WORLD_SIZE;
+		while (size < MAXIMUM_FIELD_SIZE && getSpawnCapacity(size) < players) size = Math.min(MAXIMUM_FIELD_SIZE, size + 100);
+		return size;
+	}
+	
+	
+	/**
+	 * Get the lattice spawn points of a field size in the order they are handed out, generated the
+	 * first time the size is used. The first points are the lattice points nearest a sunflower
+	 * spiral over the field, each point a golden angle round from the last, so the first players
+	 * spread out evenly. The rest of the lattice follows row by row. Points next to the diagonal
+	 * spawns are left out.
+	 *
+	 * @param fieldSize		The width and height of the play field in pixels.
+	 * @return						The spawn points after the diagonal spawns.
+	 */
+	static synchronized float[][] getSpawnPoints(int fieldSize) {
+		int size = Math.max(MINIMUM_FIELD_SIZE, Math.min(MAXIMUM_FIELD_SIZE, fieldSize));
+		if (spawnPoints[size] != null) return spawnPoints[size];
+		
+		int columns = (size - 2 * SPAWN_BORDER) / SPAWN_SPACING + 1;
+		int capacity = GameRoom.MAXIMUM_SLOTS - DIAGONAL_SPAWNS;
+		boolean[] taken = new boolean[columns * columns];
+		ArrayList<float[]> points = new ArrayList<float[]>();
+		
+		// the lattice points nearest one pass of the spiral over the field
+		float fieldRadius = size / 2.0f - SPAWN_BORDER;
+		int spiralPoints = (int)((fieldRadius / SPAWN_SPACING) * (fieldRadius / SPAWN_SPACING));
+		for (int point = 1; point <= spiralPoints && points.size() < capacity; point++) {
+			double angle = point * 2.399963;
+			double radius = SPAWN_SPACING * Math.sqrt(point);
+			int column = (int)Math.round((size / 2.0 + radius * Math.cos(angle) - SPAWN_BORDER) / SPAWN_SPACING);
+			int row = (int)Math.round((size / 2.0 + radius * Math.sin(angle) - SPAWN_BORDER) / SPAWN_SPACING);
+			addSpawnPoint(points, taken, columns, Math.max(0, Math.min(columns - 1, column)), Math.max(0, Math.min(columns - 1, row)));
+		}
+		
+		// then the rest of the lattice
+		for (int row = 0; row < columns && points.size() < capacity; row++) {
+			for (int column = 0; column < columns && points.size() < capacity; column++) addSpawnPoint(points, taken, columns, column, row);
+		}
+		
+		spawnPoints[size] = points.toArray(new float[points.size()][]);
+		return spawnPoints[size];
+	}
+	
+	
+	// add a lattice point to the spawn points unless it is taken or next to the diagonal spawns
+	private static void addSpawnPoint(ArrayList<float[]> points, boolean[] taken, int columns, int column, int row) {
+		if (taken[row * columns + column] || Math.abs(column - row) < 2) return;
+		
+		taken[row * columns + column] = true;
+		points.add(new float[] { SPAWN_BORDER + column * SPAWN_SPACING, SPAWN_BORDER + row * SPAWN_SPACING });
 	}
 	
 	
@@ -154,6 +267,9 @@ class Player {
 		if (mapType.equals("current")) {
 			playerMap.put("currentX", currentX);
 			playerMap.put("currentY", currentY);
+			
+			// the last input applied for players that send their inputs
+			if (inputSequence >= 0) playerMap.put("inputSequence", inputSequence);
 		}
 		else if (mapType.equals("goto")) {
 			playerMap.put("gotoX", gotoX);
@@ -173,14 +289,49 @@ class Player {
 	 *															in the passed player map.
 	 */
 	public void applyMap(Map<String, Object> playerMap) {
-			if (playerMap.containsKey("name")) name = (String)playerMap.get("name");
-			if (playerMap.containsKey("colorIndex")) colorIndex = ((Double)playerMap.get("colorIndex")).intValue();
-			if (playerMap.containsKey("currentX")) currentX = ((Double)playerMap.get("currentX")).floatValue();
-			if (playerMap.containsKey("currentY")) currentY = ((Double)playerMap.get("currentY")).floatValue();
-			if (playerMap.containsKey("gotoX")) gotoX = ((Double)playerMap.get("gotoX")).intValue();
-			if (playerMap.containsKey("gotoY")) gotoY = ((Double)playerMap.get("gotoY")).intValue();
-			if (playerMap.containsKey("mousePressed")) mousePressed = (boolean)playerMap.get("mousePressed");
-			if (playerMap.containsKey("isVisible")) isVisible = (boolean)playerMap.get("isVisible");
+			name = BinaryMessageCodec.getString(playerMap, "name", name);
+			colorIndex = BinaryMessageCodec.getInt(playerMap, "colorIndex", colorIndex);
+			currentX = BinaryMessageCodec.getFloat(playerMap, "currentX", currentX);
+			currentY = BinaryMessageCodec.getFloat(playerMap, "currentY", currentY);
+			gotoX = BinaryMessageCodec.getInt(playerMap, "gotoX", gotoX);
+			gotoY = BinaryMessageCodec.getInt(playerMap, "gotoY", gotoY);
+			mousePressed = BinaryMessageCodec.getBoolean(playerMap, "mousePressed", mousePressed);
+			isVisible = BinaryMessageCodec.getBoolean(playerMap, "isVisible", isVisible);
+			inputSequence = BinaryMessageCodec.getInt(playerMap, "inputSequence", inputSequence);
+	}
+	
+	
+	/**
+	 * Apply the controls from a client's "goto" map, the only values a client may set for its
+	 * own player. The server owns the name, color index and position of every player, so those are
+	 * not taken from the client.
+	 *
+	 * @param playerMap				The hash map with the goto coordinates and buttons from the client.
+	 */
+	public void applyControls(Map<String, Object> playerMap) {
+			gotoX = BinaryMessageCodec.getInt(playerMap, "gotoX", gotoX);
+			gotoY = BinaryMessageCodec.getInt(playerMap, "gotoY", gotoY);
+			mousePressed = BinaryMessageCodec.getBoolean(playerMap, "mousePressed", mousePressed);
+			isVisible = BinaryMessageCodec.getBoolean(playerMap, "isVisible", isVisible);
+	}
+	
+	
+	/**
+	 * The applyInput function moves the player for one simulation tick with the controls from an
+	 * input. The server uses it to apply the inputs sent by a client and the client uses it to
+	 * predict its own player, so both move the player the same way.
+	 *
+	 * @param input						The input for one simulation tick.
+	 * @param tickSeconds			The length of the simulation tick in seconds.
+	 */
+	public void applyInput(InputHistory.Input input, float tickSeconds) {
+		gotoX = input.gotoX;
+		gotoY = input.gotoY;
+		mousePressed = input.mousePressed;
+		isVisible = input.isVisible;
+		inputSequence = input.sequence;
+		
+		calculateMove(tickSeconds);
 	}
 	
 	
@@ -191,34 +342,57 @@ class Player {
 	 * pixel coordinates will be integers. This method is used to enable smooth multi-directional player
 	 * movement.
 	 *
-	 * The boundaries of player movement in the play field are currently hard coded in this function. 
-	 * Any changes to the size of the play field in the user interface will require coding changes here
-	 * as well. This is obviously something that needs to be changed in the future.
+	 * The distance moved is the player's move speed in pixels per second scaled by the length of
+	 * the simulation tick, so the player speed does not depend on the tick rate. The step and the
+	 * border limits are stepScale and clamp, which the player store's move uses as well.
+	 *
+	 * @param tickSeconds			The length of the simulation tick in seconds.
 	 */
 	// calculate player move
-	public void calculateMove() {
+	public void calculateMove(float tickSeconds) {
 		if (mousePressed) {
-			// calculate distance to goto coordinates
-			int distance = (int)Math.sqrt((double)Math.pow((double)(gotoX - currentX), (double)2) + Math.pow((double)(gotoY - currentY), (double)2));
+			float dx = gotoX - currentX, dy = gotoY - currentY;
+			float scale = stepScale(dx, dy, moveSpeed * tickSeconds);
 			
 			// if distance is 1 pixel or more then move
-			if (distance > 0) {
-				currentX += moveIncrement * (gotoX - currentX) / distance;
-				
-				// border limits ****Need to come up with something better than hard coded values
-				if (currentX < 0) currentX = 0;
-				if (currentX > 400 - playerRadius) currentX = 400 - playerRadius;
-				
-				currentY += moveIncrement * (gotoY - currentY) / distance;
-				
-				// border limits ****Need to come up with something better than hard coded values
-				if (currentY < 0) currentY = 0;
-				if (currentY > 400 - playerRadius) currentY = 400 - playerRadius;
+			if (scale != 0) {
+				currentX = clamp(currentX + scale * dx, fieldSize - playerRadius);
+				currentY = clamp(currentY + scale * dy, fieldSize - playerRadius);
 			}
 		}
 	}
 	
 	
+	/**
+	 * Get the fraction of the offset to a move target a player moves in one tick, zero if the
+	 * target is less than a pixel away. The distance is truncated to whole pixels as the game has
+	 * always done.
+	 *
+	 * @param dx						The x offset to the target.
+	 * @param dy						The y offset to the target.
+	 * @param moveIncrement	The distance moved in the tick in pixels.
+	 * @return							The scale to apply to the offset.
+	 */
+	static float stepScale(float dx, float dy, float moveIncrement) {
+		float distance = (int)(float)Math.sqrt(dx * dx + dy * dy);
+		return distance >= 1 ? moveIncrement / distance : 0;
+	}
+	
+	
+	/**
+	 * Keep a coordinate between zero and a limit. Plain comparisons are used rather than Math.min
+	 * and Math.max, whose float versions handle NaN and negative zero and are slower here.
+	 *
+	 * @param value					The coordinate.
+	 * @param limit					The largest coordinate.
+	 * @return							The coordinate inside the limits.
+	 */
+	static float clamp(float value, float limit) {
+		value = value < 0 ? 0 : value;
+		return value > limit ? limit : value;
+	}
+	
+	
 	/**
 	 * Player collisions are determined by an overlap of the player's sprite, in this case the 
 	 * radius of the player's circle.
@@ -229,28 +403,10 @@ class Player {
 	 */
 	// determine if collision with the given coordinates
 	public boolean playerCollision(double playerX, double playerY) {
-		// calculate distance to point
-		int distance = (int)Math.sqrt((double)Math.pow((playerX - currentX), (double)2) + Math.pow((playerY - currentY), (double)2));
+		// compare squared distances, no square root needed
+		double dx = playerX - currentX, dy = playerY - currentY;
 		
-		if (distance < playerRadius) return true;
+		if (dx * dx + dy * dy < playerRadius * playerRadius) return true;
 		else return false;
 	}
-	
-	
-	/**
-	 * Draw the player's sprite on the provided graphic. The sprite will be a circle with the radius defined
-	 * in the Player class.
-	 *
-	 * @parameter g				The Graphic object to draw on.
-	 */
-	// draw player on graphic
-	public void drawPlayer(Graphics g) {
-		if (isVisible) g.setColor(getColor());
-		else g.setColor(new Color(0, 0, 0));
-		
-		//g.fillRect((int)next.currentX, (int)next.currentY, 5, 5);
-		g.fillOval((int)currentX + playerRadius, (int)currentY + playerRadius, playerRadius, playerRadius);
-
-	}
-
-}
\ No newline at end of file
+}
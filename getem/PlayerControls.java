@@ -0,0 +1,111 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package getem;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * The PlayerControls carry the mouse controls of the local player from the AWT event thread to
+ * the communication thread. The listeners write the move target, the pressed and visible flags
+ * and a change count packed into one atomic long, and the communication thread copies them into
+ * the local player before each simulation tick, so the player is only ever changed by the one
+ * thread that simulates it and neither thread waits for the other.
+ *
+ * Controls are only copied when they have changed since the last copy, so a reset of the local
+ * player is not undone by the controls from before it.
+ *
+ * @author			Bryan Nielsen
+ */
+class PlayerControls {
+	static final long PRESSED = 1L << 32, VISIBLE = 1L << 33;
+	static final int CHANGE_SHIFT = 34;
+	
+	final AtomicLong state;
+	long appliedChange;
+	
+	
+	/**
+	 * The constructor creates controls with no target, not pressed and visible.
+	 */
+	public PlayerControls() {
+		state = new AtomicLong(VISIBLE);
+		appliedChange = 0;
+	}
+	
+	
+	/**
+	 * Set the controls, only the AWT event thread may call this function.
+	 *
+	 * @param gotoX					The x coordinate of the move target.
+	 * @param gotoY					The y coordinate of the move target.
+	 * @param pressed				The mouse is pressed.
+	 * @param visible				The player is visible.
+	 */
+	public void set(int gotoX, int gotoY, boolean pressed, boolean visible) {
+		long change = (state.get() >>> CHANGE_SHIFT) + 1;
+		state.set(change << CHANGE_SHIFT | (pressed ? PRESSED : 0) | (visible ? VISIBLE : 0) | 
+			(gotoY & 0xffffL) << 16 | (gotoX & 0xffffL));
+	}
+	
+	
+	// the move target the controls hold now
+	int getGotoX() {
+		return (short)state.get();
+	}
+	
+	int getGotoY() {
+		return (short)(state.get() >>> 16);
+	}
+	
+	boolean isPressed() {
+		return (state.get() & PRESSED) != 0;
+	}
+	
+	boolean isVisible() {
+		return (state.get() & VISIBLE) != 0;
+	}
+	
+	
+	/**
+	 * Copy the controls into a player if they have changed since the last copy, only the thread
+	 * that simulates the player may call this function.
+	 *
+	 * @param player				The local player.
+	 */
+	public void applyTo(Player player) {
+		long current = state.get();
+		long change = current >>> CHANGE_SHIFT;
+		if (change == appliedChange) return;
+		
+		appliedChange = change;
+		player.gotoX = (short)current;
+		player.gotoY = (short)(current >>> 16);
+		player.mousePressed = (current & PRESSED) != 0;
+		player.isVisible = (current & VISIBLE) != 0;
+	}
+}
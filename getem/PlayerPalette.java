@@ -0,0 +1,91 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package getem;
+
+import java.awt.*;
+import java.util.*;
+
+
+/**
+ * The PlayerPalette holds the colors players are drawn in, one for each color index. The game
+ * rules only use color indexes so the colors are kept with the user interface.
+ *
+ * @author			Bryan Nielsen
+ */
+class PlayerPalette {
+	// the fixed player colors
+	static Color[] playerColors = new Color[] {
+		new Color(255, 0, 0),
+		new Color(0, 255, 0),
+		new Color(0, 0, 255),
+		new Color(255, 255, 0),
+		new Color(0, 255, 255),
+		new Color(255, 0, 255),
+		new Color(128, 64, 0),
+		new Color(0, 128, 64),
+		new Color(128, 0, 192),
+		new Color(255, 192, 128),
+		new Color(128, 128, 128),
+		new Color(64, 192, 64),
+		new Color(128, 0, 0),
+		new Color(0, 0, 128),
+		new Color(255, 255, 255),
+		new Color(128, 128, 0)
+	};
+	
+	// colors for color indexes past the fixed colors, generated as needed
+	static Color[] generatedColors = new Color[0];
+	
+	
+	/**
+	 * Get the color for a color index. The first colors are the fixed player colors, colors past
+	 * those are generated by stepping the hue by the golden ratio so neighbouring indexes get
+	 * clearly different colors however many players there are. Indexes past the most slots a room
+	 * can have wrap round.
+	 *
+	 * @param index				The color index.
+	 * @return						The Color object for the index.
+	 */
+	static synchronized Color getColor(int index) {
+		index = Math.floorMod(index, GameRoom.MAXIMUM_SLOTS);
+		if (index < playerColors.length) return playerColors[Math.max(0, index)];
+		
+		int generatedIndex = index - playerColors.length;
+		if (generatedIndex >= generatedColors.length) {
+			// grow the generated palette to cover the index
+			Color[] colors = Arrays.copyOf(generatedColors, Math.max(generatedIndex + 1, generatedColors.length * 2));
+			for (int i = generatedColors.length; i < colors.length; i++) {
+				float hue = (i * 0.618034f) % 1.0f;
+				float saturation = 0.55f + 0.45f * ((i / 3) % 2);
+				float brightness = 1.0f - 0.35f * (i % 3) / 2.0f;
+				colors[i] = Color.getHSBColor(hue, saturation, brightness);
+			}
+			generatedColors = colors;
+		}
+		
+		return generatedColors[generatedIndex];
+	}
+}
@@ -0,0 +1,214 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package getem;
+
+import java.net.*;
+import java.util.*;
+
+
+/**
+ * The PlayerRegistry holds the players in their slots. The slot a player is in is their index in
+ * the player list and their color index, so slots are kept when players leave and an empty slot
+ * is a null entry in the list.
+ *
+ * Hash indexes by socket address and by name and a bitmap of the empty slots let the server find
+ * the player a datagram came from, check a joining name and pick a slot without scanning the
+ * player list. All changes to the slots go through the registry so the indexes and the player
+ * store stay in step with the list.
+ *
+ * @author			Bryan Nielsen
+ */
+class PlayerRegistry {
+	ArrayList<Player> slots;
+	HashMap<InetSocketAddress, Integer> addressIndex;
+	HashMap<String, Integer> nameIndex;
+	BitSet freeSlots;
+	PlayerStore state;
+	int maximumPlayers;
+	
+	
+	/**
+	 * The constructor creates an empty registry.
+	 *
+	 * @param maximum			The most player slots.
+	 */
+	public PlayerRegistry(int maximum) {
+		maximumPlayers = maximum;
+		slots = new ArrayList<Player>();
+		addressIndex = new HashMap<InetSocketAddress, Integer>();
+		nameIndex = new HashMap<String, Integer>();
+		freeSlots = new BitSet();
+		state = new PlayerStore(Math.min(maximum, 64));
+	}
+	
+	
+	/**
+	 * Add a player to the lowest empty slot, or a new slot at the end if there are none.
+	 *
+	 * @param player			The player to add.
+	 * @return						The slot of the player, -1 if the registry is full or the name or address is taken.
+	 */
+	public int add(Player player) {
+		if (nameIndex.containsKey(player.name)) return -1;
+		if (player.address != null && addressIndex.containsKey(player.address)) return -1;
+		
+		int slot = freeSlots.nextSetBit(0);
+		if (slot < 0) {
+			if (slots.size() >= maximumPlayers) return -1;
+			slot = slots.size();
+		}
+		
+		set(slot, player);
+		return slot;
+	}
+	
+	
+	/**
+	 * Put a player in a slot, replacing any player already there. The list grows with empty slots
+	 * when the slot is past the end.
+	 *
+	 * @param slot				The slot index.
+	 * @param player			The player, null to empty the slot.
+	 */
+	public void set(int slot, Player player) {
+		while (slots.size() <= slot) {
+			freeSlots.set(slots.size());
+			slots.add(null);
+		}
+		
+		unindex(slot, slots.get(slot));
+		slots.set(slot, player);
+		
+		if (player == null) {
+			freeSlots.set(slot);
+			state.remove(slot);
+		}
+		else {
+			freeSlots.clear(slot);
+			state.load(slot, player);
+			if (player.name != null) nameIndex.put(player.name, slot);
+			if (player.address != null) addressIndex.put(player.address, slot);
+		}
+	}
+	
+	
+	/**
+	 * Empty a slot.
+	 *
+	 * @param slot				The slot index.
+	 * @return						The player that was in the slot, null if it was already empty.
+	 */
+	public Player remove(int slot) {
+		if (slot < 0 || slot >= slots.size()) return null;
+		
+		Player player = slots.get(slot);
+		if (player != null) set(slot, null);
+		
+		return player;
+	}
+	
+	
+	/**
+	 * Get the player in a slot.
+	 *
+	 * @param slot				The slot index.
+	 * @return						The player, null if the slot is empty or past the end.
+	 */
+	public Player get(int slot) {
+		if (slot < 0 || slot >= slots.size()) return null;
+		return slots.get(slot);
+	}
+	
+	
+	/**
+	 * Get the number of players, the slots that are not empty.
+	 *
+	 * @return						The number of players.
+	 */
+	public int size() {
+		return slots.size() - freeSlots.cardinality();
+	}
+	
+	
+	/**
+	 * Find the slot of the player with a socket address.
+	 *
+	 * @param address			The socket address.
+	 * @return						The slot index or -1 if not found.
+	 */
+	public int indexOfAddress(InetSocketAddress address) {
+		Integer slot = address == null ? null : addressIndex.get(address);
+		return slot == null ? -1 : slot;
+	}
+	
+	
+	/**
+	 * Find the slot of the player with a name.
+	 *
+	 * @param name				The player name.
+	 * @return						The slot index or -1 if not found.
+	 */
+	public int indexOfName(String name) {
+		Integer slot = name == null ? null : nameIndex.get(name);
+		return slot == null ? -1 : slot;
+	}
+	
+	
+	/**
+	 * Update the name index after the player in a slot has been given a new name.
+	 *
+	 * @param slot				The slot index.
+	 * @param oldName			The name the player had before.
+	 */
+	public void rename(int slot, String oldName) {
+		Player player = get(slot);
+		if (player == null || Objects.equals(oldName, player.name)) return;
+		
+		if (oldName != null) nameIndex.remove(oldName, slot);
+		if (player.name != null) nameIndex.put(player.name, slot);
+	}
+	
+	
+	/**
+	 * Remove all players and slots.
+	 */
+	public void clear() {
+		slots.clear();
+		addressIndex.clear();
+		nameIndex.clear();
+		freeSlots.clear();
+		state.clear();
+	}
+	
+	
+	// remove the index entries of the player in a slot
+	private void unindex(int slot, Player player) {
+		if (player == null) return;
+		
+		if (player.name != null) nameIndex.remove(player.name, slot);
+		if (player.address != null) addressIndex.remove(player.address, slot);
+	}
+}
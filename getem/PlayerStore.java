@@ -0,0 +1,306 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package getem;
+
+import java.util.*;
+
+
+/**
+ * The PlayerStore keeps the simulation state of the players in a game room in parallel arrays of
+ * primitives indexed by slot, the positions, move targets, color indexes and input counters, with
+ * bitsets for the slots in use and the visible and pressed flags. The per tick work, moving the
+ * players, building the spatial grid, finding a tag and collecting a players frame, runs as loops
+ * over these arrays rather than over a list of Player objects with empty slots.
+ *
+ * On a server the store is the game state and the Player objects in the room's slots are views of
+ * it for the user interface, brought up to date with copyToView. The player registry keeps the
+ * store slots in step with its own, a player added to a slot is copied into the store. A client
+ * draws the views it is sent directly and does not use the store.
+ *
+ * @author			Bryan Nielsen
+ */
+class PlayerStore {
+	int capacity, fieldWidth, fieldHeight;
+	float[] x, y, moveSpeed;
+	int[] gotoX, gotoY, colorIndex, radius, inputSequence, inputAllowance;
+	BitSet present, visible, pressed;
+	
+	
+	/**
+	 * The constructor creates an empty store, it grows as slots are used.
+	 *
+	 * @param initialCapacity			The number of slots to allocate to begin with.
+	 */
+	public PlayerStore(int initialCapacity) {
+		capacity = 0;
+		fieldWidth = Player.WORLD_SIZE;
+		fieldHeight = Player.WORLD_SIZE;
+		present = new BitSet();
+		visible = new BitSet();
+		pressed = new BitSet();
+		grow(Math.max(1, initialCapacity));
+	}
+	
+	
+	// grow the arrays to hold at least the given number of slots
+	private void grow(int slots) {
+		if (slots <= capacity) return;
+		
+		int length = Math.max(slots, capacity * 2);
+		x = Arrays.copyOf(x == null ? new float[0] : x, length);
+		y = Arrays.copyOf(y == null ? new float[0] : y, length);
+		moveSpeed = Arrays.copyOf(moveSpeed == null ? new float[0] : moveSpeed, length);
+		gotoX = Arrays.copyOf(gotoX == null ? new int[0] : gotoX, length);
+		gotoY = Arrays.copyOf(gotoY == null ? new int[0] : gotoY, length);
+		colorIndex = Arrays.copyOf(colorIndex == null ? new int[0] : colorIndex, length);
+		radius = Arrays.copyOf(radius == null ? new int[0] : radius, length);
+		inputSequence = Arrays.copyOf(inputSequence == null ? new int[0] : inputSequence, length);
+		inputAllowance = Arrays.copyOf(inputAllowance == null ? new int[0] : inputAllowance, length);
+		capacity = length;
+	}
+	
+	
+	/**
+	 * Copy a player into a slot of the store.
+	 *
+	 * @param slot						The slot index.
+	 * @param player					The player to copy.
+	 */
+	public void load(int slot, Player player) {
+		grow(slot + 1);
+		
+		x[slot] = player.currentX;
+		y[slot] = player.currentY;
+		moveSpeed[slot] = player.moveSpeed;
+		gotoX[slot] = player.gotoX;
+		gotoY[slot] = player.gotoY;
+		colorIndex[slot] = player.colorIndex;
+		radius[slot] = player.playerRadius;
+		inputSequence[slot] = player.inputSequence;
+		inputAllowance[slot] = player.inputAllowance;
+		visible.set(slot, player.isVisible);
+		pressed.set(slot, player.mousePressed);
+		present.set(slot);
+	}
+	
+	
+	/**
+	 * Empty a slot.
+	 *
+	 * @param slot						The slot index.
+	 */
+	public void remove(int slot) {
+		present.clear(slot);
+		visible.clear(slot);
+		pressed.clear(slot);
+	}
+	
+	
+	/**
+	 * Empty every slot.
+	 */
+	public void clear() {
+		present.clear();
+		visible.clear();
+		pressed.clear();
+	}
+	
+	
+	/**
+	 * Bring a player view up to date with the state in its slot.
+	 *
+	 * @param slot						The slot index.
+	 * @param view						The player in the slot.
+	 * @param withControls		False to leave the move target and flags of the view alone, for a
+	 *														player controlled through its view.
+	 */
+	public void copyToView(int slot, Player view, boolean withControls) {
+		view.currentX = x[slot];
+		view.currentY = y[slot];
+		view.colorIndex = colorIndex[slot];
+		view.inputSequence = inputSequence[slot];
+		view.inputAllowance = inputAllowance[slot];
+		
+		if (withControls) {
+			view.gotoX = gotoX[slot];
+			view.gotoY = gotoY[slot];
+			view.isVisible = visible.get(slot);
+			view.mousePressed = pressed.get(slot);
+		}
+	}
+	
+	
+	/**
+	 * Take the move target and flags of a player that is controlled through its view, the local
+	 * player of a game hosted in the game window.
+	 *
+	 * @param slot						The slot index.
+	 * @param view						The player in the slot.
+	 */
+	public void setControls(int slot, Player view) {
+		gotoX[slot] = view.gotoX;
+		gotoY[slot] = view.gotoY;
+		visible.set(slot, view.isVisible);
+		pressed.set(slot, view.mousePressed);
+	}
+	
+	
+	/**
+	 * Put the player in a slot back at the spawn point of its color index with no move target.
+	 *
+	 * @param slot						The slot index.
+	 */
+	public void spawn(int slot) {
+		float[] spawnPoint = Player.getSpawnPoint(colorIndex[slot], fieldWidth);
+		x[slot] = spawnPoint[0];
+		y[slot] = spawnPoint[1];
+		gotoX[slot] = 0;
+		gotoY[slot] = 0;
+		visible.set(slot);
+		pressed.clear(slot);
+	}
+	
+	
+	/**
+	 * Apply the values in a player map to a slot, the same values Player.applyMap takes.
+	 *
+	 * @param slot						The slot index.
+	 * @param playerMap				The map of player values.
+	 */
+	public void applyMap(int slot, Map<String, Object> playerMap) {
+		colorIndex[slot] = BinaryMessageCodec.getInt(playerMap, "colorIndex", colorIndex[slot]);
+		x[slot] = BinaryMessageCodec.getFloat(playerMap, "currentX", x[slot]);
+		y[slot] = BinaryMessageCodec.getFloat(playerMap, "currentY", y[slot]);
+		gotoX[slot] = BinaryMessageCodec.getInt(playerMap, "gotoX", gotoX[slot]);
+		gotoY[slot] = BinaryMessageCodec.getInt(playerMap, "gotoY", gotoY[slot]);
+		pressed.set(slot, BinaryMessageCodec.getBoolean(playerMap, "mousePressed", pressed.get(slot)));
+		visible.set(slot, BinaryMessageCodec.getBoolean(playerMap, "isVisible", visible.get(slot)));
+		inputSequence[slot] = BinaryMessageCodec.getInt(playerMap, "inputSequence", inputSequence[slot]);
+	}
+	
+	
+	/**
+	 * Apply the controls from a client's "goto" map to a slot, the same values Player.applyControls
+	 * takes.
+	 *
+	 * @param slot						The slot index.
+	 * @param playerMap				The map of player values.
+	 */
+	public void applyControls(int slot, Map<String, Object> playerMap) {
+		gotoX[slot] = BinaryMessageCodec.getInt(playerMap, "gotoX", gotoX[slot]);
+		gotoY[slot] = BinaryMessageCodec.getInt(playerMap, "gotoY", gotoY[slot]);
+		pressed.set(slot, BinaryMessageCodec.getBoolean(playerMap, "mousePressed", pressed.get(slot)));
+		visible.set(slot, BinaryMessageCodec.getBoolean(playerMap, "isVisible", visible.get(slot)));
+	}
+	
+	
+	/**
+	 * Build the "current" player map of a slot, the same map Player.getPlayerMap builds.
+	 *
+	 * @param slot						The slot index.
+	 * @param name						The name of the player, names are kept by the views.
+	 * @return								The player map.
+	 */
+	public Map<String, Object> getPlayerMap(int slot, String name) {
+		Map<String, Object> playerMap = new HashMap<>();
+		playerMap.put("name", name);
+		playerMap.put("colorIndex", colorIndex[slot]);
+		playerMap.put("mousePressed", pressed.get(slot));
+		playerMap.put("isVisible", visible.get(slot));
+		playerMap.put("currentX", x[slot]);
+		playerMap.put("currentY", y[slot]);
+		if (inputSequence[slot] >= 0) playerMap.put("inputSequence", inputSequence[slot]);
+		
+		return playerMap;
+	}
+	
+	
+	/**
+	 * Move the player in a slot for one simulation tick with the controls from an input, as
+	 * Player.applyInput does.
+	 *
+	 * @param slot						The slot index.
+	 * @param input						The input for one simulation tick.
+	 * @param tickSeconds			The length of the simulation tick in seconds.
+	 */
+	public void applyInput(int slot, InputHistory.Input input, float tickSeconds) {
+		gotoX[slot] = input.gotoX;
+		gotoY[slot] = input.gotoY;
+		pressed.set(slot, input.mousePressed);
+		visible.set(slot, input.isVisible);
+		inputSequence[slot] = input.sequence;
+		
+		move(slot, tickSeconds);
+	}
+	
+	
+	/**
+	 * Set the size of the field the players are kept inside.
+	 *
+	 * @param width						The width of the field in pixels.
+	 * @param height					The height of the field in pixels.
+	 */
+	public void setField(int width, int height) {
+		fieldWidth = Math.max(1, width);
+		fieldHeight = Math.max(1, height);
+	}
+	
+	
+	/**
+	 * Run the movement of one simulation tick for every player. Each player is allowed one more
+	 * input, and the players that do not send inputs are moved towards their targets. Only the
+	 * present slots are visited and a slot only moves if its player is pressing.
+	 *
+	 * @param tickSeconds			The length of the simulation tick in seconds.
+	 * @param maximumAllowance	The most inputs a player may get ahead of the ticks.
+	 */
+	public void moveAll(float tickSeconds, int maximumAllowance) {
+		for (int slot = present.nextSetBit(0); slot >= 0; slot = present.nextSetBit(slot + 1)) {
+			inputAllowance[slot] = Math.min(inputAllowance[slot] + 1, maximumAllowance);
+			if (inputSequence[slot] < 0) move(slot, tickSeconds);
+		}
+	}
+	
+	
+	/**
+	 * Move the player in a slot towards its target for one tick. The arithmetic is Player's
+	 * stepScale and clamp, the same as Player.calculateMove, so a client predicting its own player
+	 * agrees with the server.
+	 *
+	 * @param slot						The slot index.
+	 * @param tickSeconds			The length of the simulation tick in seconds.
+	 */
+	public void move(int slot, float tickSeconds) {
+		if (!pressed.get(slot)) return;
+		
+		float dx = gotoX[slot] - x[slot], dy = gotoY[slot] - y[slot];
+		float scale = Player.stepScale(dx, dy, moveSpeed[slot] * tickSeconds);
+		if (scale == 0) return;
+		
+		x[slot] = Player.clamp(x[slot] + scale * dx, fieldWidth - radius[slot]);
+		y[slot] = Player.clamp(y[slot] + scale * dy, fieldHeight - radius[slot]);
+	}
+}
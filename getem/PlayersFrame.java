@@ -0,0 +1,235 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package getem;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+
+/**
+ * A PlayersFrame is a decoded players frame held in reusable arrays rather than maps, so a client
+ * can take in frames without allocating. A frame is a header and a list of entries, each entry
+ * is a slot, a mask of the fields it carries using the binary codec delta bits and the field
+ * values. A keyframe has an entry with every field for each present slot, a delta frame has an
+ * entry for each slot that changed. The trail section of the frame is copied as it is, to be
+ * applied to the trail grid. Frames decoded by the receive stage are handed back to it through
+ * the frame pool once the simulation thread has applied them.
+ *
+ * @author			Bryan Nielsen
+ */
+class PlayersFrame {
+	static final int KEYFRAME_MASK = BinaryMessageCodec.DELTA_FLAGS | BinaryMessageCodec.DELTA_COLOR | 
+		BinaryMessageCodec.DELTA_X | BinaryMessageCodec.DELTA_Y | BinaryMessageCodec.DELTA_NAME;
+	
+	// declare variables
+	int sequence, baseSequence, playerItIndex, serverTime, playerCount, entryCount;
+	int[] slots, masks, flags, colorIndex, inputSequence;
+	float[] x, y;
+	String[] names;
+	
+	// the trail section from the position to the limit, empty if the frame has none
+	ByteBuffer trail;
+	
+	
+	/**
+	 * The constructor creates an empty frame.
+	 */
+	public PlayersFrame() {
+		grow(16);
+		trail = ByteBuffer.allocate(1024);
+		reset(-1, -1, -1, -1, 0);
+	}
+	
+	
+	/**
+	 * Start again as a frame with no entries.
+	 *
+	 * @param seq					The snapshot sequence, -1 for a frame from a server without sequences.
+	 * @param baseSeq			The base snapshot sequence of a delta frame, -1 for a keyframe.
+	 * @param itIndex			The it player index.
+	 * @param time				The server simulation time in milliseconds, -1 if not known.
+	 * @param count				The number of player slots.
+	 */
+	public void reset(int seq, int baseSeq, int itIndex, int time, int count) {
+		sequence = seq;
+		baseSequence = baseSeq;
+		playerItIndex = itIndex;
+		serverTime = time;
+		playerCount = count;
+		entryCount = 0;
+		trail.clear().limit(0);
+	}
+	
+	
+	/**
+	 * Copy a trail section into the frame, replacing any the frame held.
+	 *
+	 * @param section			The trail section, read from its position to its limit.
+	 */
+	public void setTrail(ByteBuffer section) {
+		if (section.remaining() > trail.capacity()) trail = ByteBuffer.allocate(Math.max(section.remaining(), trail.capacity() * 2));
+		
+		trail.clear();
+		trail.put(section);
+		trail.flip();
+	}
+	
+	
+	/**
+	 * Add an entry and return its index for the field values to be filled in.
+	 *
+	 * @param slot				The player slot.
+	 * @param mask				The delta mask of the fields carried.
+	 * @return						The entry index.
+	 */
+	public int addEntry(int slot, int mask) {
+		if (entryCount == slots.length) grow(slots.length * 2);
+		
+		int entry = entryCount++;
+		slots[entry] = slot;
+		masks[entry] = mask;
+		names[entry] = null;
+		return entry;
+	}
+	
+	
+	// grow the entry arrays to hold the given number of entries
+	private void grow(int length) {
+		slots = slots == null ? new int[length] : Arrays.copyOf(slots, length);
+		masks = masks == null ? new int[length] : Arrays.copyOf(masks, length);
+		flags = flags == null ? new int[length] : Arrays.copyOf(flags, length);
+		colorIndex = colorIndex == null ? new int[length] : Arrays.copyOf(colorIndex, length);
+		inputSequence = inputSequence == null ? new int[length] : Arrays.copyOf(inputSequence, length);
+		x = x == null ? new float[length] : Arrays.copyOf(x, length);
+		y = y == null ? new float[length] : Arrays.copyOf(y, length);
+		names = names == null ? new String[length] : Arrays.copyOf(names, length);
+	}
+	
+	
+	/**
+	 * Add an entry from a "current" player map or a player delta map, only the fields found in
+	 * the map are carried.
+	 *
+	 * @param slot				The player slot.
+	 * @param playerMap		The player map or player delta map.
+	 */
+	public void addMap(int slot, Map<String, Object> playerMap) {
+		int mask = 0;
+		if (BinaryMessageCodec.getBoolean(playerMap, "removed")) mask |= BinaryMessageCodec.DELTA_REMOVED;
+		if (playerMap.containsKey("mousePressed") || playerMap.containsKey("isVisible")) mask |= BinaryMessageCodec.DELTA_FLAGS;
+		if (playerMap.containsKey("colorIndex")) mask |= BinaryMessageCodec.DELTA_COLOR;
+		if (playerMap.containsKey("currentX")) mask |= BinaryMessageCodec.DELTA_X;
+		if (playerMap.containsKey("currentY")) mask |= BinaryMessageCodec.DELTA_Y;
+		if (playerMap.containsKey("name")) mask |= BinaryMessageCodec.DELTA_NAME;
+		if (playerMap.containsKey("inputSequence")) mask |= BinaryMessageCodec.DELTA_INPUT;
+		
+		int entry = addEntry(slot, mask);
+		flags[entry] = 0;
+		if (BinaryMessageCodec.getBoolean(playerMap, "mousePressed")) flags[entry] |= BinaryMessageCodec.FLAG_MOUSE_PRESSED;
+		if (BinaryMessageCodec.getBoolean(playerMap, "isVisible")) flags[entry] |= BinaryMessageCodec.FLAG_VISIBLE;
+		colorIndex[entry] = BinaryMessageCodec.getInt(playerMap, "colorIndex", 0);
+		x[entry] = BinaryMessageCodec.getFloat(playerMap, "currentX");
+		y[entry] = BinaryMessageCodec.getFloat(playerMap, "currentY");
+		names[entry] = BinaryMessageCodec.getString(playerMap, "name", null);
+		inputSequence[entry] = BinaryMessageCodec.getInt(playerMap, "inputSequence", -1);
+	}
+	
+	
+	/**
+	 * Build a frame from the payload of a players frame decoded into maps, by the JSON codec or
+	 * from a server that does not send snapshot sequences.
+	 *
+	 * @param payload			The message payload.
+	 * @param defaultIt		The it player index used when the payload has none.
+	 * @return						The frame.
+	 */
+	@SuppressWarnings("unchecked")
+	static PlayersFrame fromPayload(Map<String, Object> payload, int defaultIt) {
+		PlayersFrame frame = new PlayersFrame();
+		int sequence = BinaryMessageCodec.getInt(payload, "sequence", -1);
+		int baseSequence = sequence < 0 ? -1 : BinaryMessageCodec.getInt(payload, "baseSequence", -1);
+		int itIndex = BinaryMessageCodec.getInt(payload, "playerItIndex", defaultIt);
+		int time = BinaryMessageCodec.getInt(payload, "serverTime", -1);
+		
+		if (baseSequence < 0) {
+			// keyframe, every present player
+			List<Map<String, Object>> playerMaps = (List<Map<String, Object>>)payload.get("playerMaps");
+			frame.reset(sequence, -1, itIndex, time, playerMaps.size());
+			
+			for (int slot = 0; slot < playerMaps.size(); slot++) {
+				if (playerMaps.get(slot) != null) frame.addMap(slot, playerMaps.get(slot));
+			}
+		}
+		else {
+			// delta frame, only the changed players
+			List<Map<String, Object>> playerDeltas = (List<Map<String, Object>>)payload.get("playerDeltas");
+			frame.reset(sequence, baseSequence, itIndex, time, BinaryMessageCodec.getInt(payload, "playerCount", 0));
+			
+			for (Map<String, Object> playerDelta : playerDeltas) frame.addMap(BinaryMessageCodec.getInt(playerDelta, "slot", -1), playerDelta);
+		}
+		
+		if (payload.get("trail") instanceof String) frame.setTrail(ByteBuffer.wrap(Base64.getDecoder().decode((String)payload.get("trail"))));
+		
+		return frame;
+	}
+	
+	
+	/**
+	 * Apply the entries to a snapshot that holds the base players, or no players for a keyframe.
+	 * A removed entry empties the slot and a player new to a slot starts from empty fields, as
+	 * SnapshotHistory.applyDeltas does for maps.
+	 *
+	 * @param snapshot		The snapshot to update.
+	 */
+	void applyTo(SnapshotHistory.Snapshot snapshot) {
+		for (int entry = 0; entry < entryCount; entry++) {
+			int slot = slots[entry], mask = masks[entry];
+			if (slot < 0 || slot >= snapshot.playerCount) continue;
+			
+			if ((mask & BinaryMessageCodec.DELTA_REMOVED) != 0) {
+				snapshot.flags[slot] = 0;
+				continue;
+			}
+			
+			if (!snapshot.has(slot)) {
+				snapshot.flags[slot] = BinaryMessageCodec.FLAG_PRESENT;
+				snapshot.colorIndex[slot] = 0;
+				snapshot.x[slot] = 0;
+				snapshot.y[slot] = 0;
+				snapshot.inputSequence[slot] = -1;
+				snapshot.names[slot] = null;
+			}
+			
+			if ((mask & BinaryMessageCodec.DELTA_FLAGS) != 0) snapshot.flags[slot] = BinaryMessageCodec.FLAG_PRESENT | flags[entry];
+			if ((mask & BinaryMessageCodec.DELTA_COLOR) != 0) snapshot.colorIndex[slot] = colorIndex[entry];
+			if ((mask & BinaryMessageCodec.DELTA_X) != 0) snapshot.x[slot] = x[entry];
+			if ((mask & BinaryMessageCodec.DELTA_Y) != 0) snapshot.y[slot] = y[entry];
+			if ((mask & BinaryMessageCodec.DELTA_NAME) != 0) snapshot.names[slot] = names[entry];
+			if ((mask & BinaryMessageCodec.DELTA_INPUT) != 0) snapshot.inputSequence[slot] = inputSequence[entry];
+		}
+	}
+}
@@ -0,0 +1,269 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package getem;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * The ReceiveStage is the first stage of the communication pipeline. It waits on a selector
+ * for datagrams, puts fragmented messages back together, decodes each message and passes it
+ * to the simulation stage through the input queue. The simulation thread is woken as soon as
+ * new messages are queued. Traffic, dropped and malformed packets are counted in the metrics
+ * of the server that owns the stage.
+ *
+ * Binary players frames are decoded into pooled messages holding a PlayersFrame rather than into
+ * maps. The simulation thread hands each one back with release once it has been applied, so a
+ * client takes in players frames without allocating. Frames are only pooled when there is a
+ * single simulation thread, with a router they are decoded into maps.
+ *
+ * @author			Bryan Nielsen
+ */
+class ReceiveStage extends Thread {
+	Thread simulationThread;
+	JsonMessageCodec jsonCodec;
+	BinaryMessageCodec binaryCodec;
+	Selector selector;
+	DatagramChannel channel;
+	volatile DatagramChannel pendingChannel;
+	volatile boolean channelChanged;
+	SelectionKey channelKey;
+	ByteBuffer receiveBuffer;
+	FragmentAssembler fragmentAssembler;
+	SpscQueue<InboundMessage> inputQueue;
+	SpscQueue<GameMessage> framePool;
+	Router router;
+	ServerMetrics metrics;
+	int mtu;
+	
+	
+	/**
+	 * An InboundMessage is a decoded game message with the address and codec it arrived with.
+	 */
+	static class InboundMessage {
+		final GameMessage message;
+		final InetSocketAddress address;
+		final MessageCodec codec;
+		final DatagramChannel channel;
+		
+		InboundMessage(GameMessage msg, InetSocketAddress sockAdd, MessageCodec msgCodec, DatagramChannel msgChannel) {
+			message = msg;
+			address = sockAdd;
+			codec = msgCodec;
+			channel = msgChannel;
+		}
+	}
+	
+	
+	/**
+	 * A Router takes the decoded messages in place of the input queue when they are shared out
+	 * between several simulation threads. It is called on the receive thread.
+	 */
+	interface Router {
+		/**
+		 * Pass a message on to the thread that handles it.
+		 *
+		 * @param inbound				The decoded message.
+		 * @return							False if the message was dropped.
+		 */
+		boolean route(InboundMessage inbound);
+	}
+	
+	
+	/**
+	 * The constructor sets up the receive stage, the thread is started by the communication engine.
+	 *
+	 * @param simThread				The simulation thread to wake when messages are queued.
+	 * @param json						The JSON codec.
+	 * @param binary					The binary codec.
+	 * @param datagramSize		The mtu, the largest datagram accepted.
+	 * @param maximumSize			The largest message accepted after fragments are put together.
+	 * @param queueSize				The capacity of the input queue.
+	 */
+	public ReceiveStage(Thread simThread, JsonMessageCodec json, BinaryMessageCodec binary, int datagramSize, int maximumSize, int queueSize) throws IOException {
+		super("getem-receive");
+		setDaemon(true);
+		
+		simulationThread = simThread;
+		jsonCodec = json;
+		binaryCodec = binary;
+		mtu = datagramSize;
+		selector = Selector.open();
+		// one byte more than the mtu so a full size datagram can be told apart from a cut off one
+		receiveBuffer = ByteBuffer.allocateDirect(mtu + 1);
+		fragmentAssembler = new FragmentAssembler(maximumSize);
+		inputQueue = new SpscQueue<InboundMessage>(queueSize);
+		framePool = new SpscQueue<GameMessage>(queueSize);
+		metrics = new ServerMetrics("receive");
+	}
+	
+	
+	/**
+	 * Hand a new channel to the receive stage, or null to stop receiving. The change is made
+	 * by the receive thread the next time it wakes.
+	 *
+	 * @param newChannel			The channel to read datagrams from.
+	 */
+	public void setChannel(DatagramChannel newChannel) {
+		pendingChannel = newChannel;
+		channelChanged = true;
+		selector.wakeup();
+	}
+	
+	
+	/**
+	 * Hand a message back once the simulation thread has finished with it, a pooled players frame
+	 * is reused for a later frame. Only the simulation thread may release messages.
+	 *
+	 * @param msg					The message taken from the input queue.
+	 */
+	public void release(GameMessage msg) {
+		if (msg.frame != null) framePool.offer(msg);
+	}
+	
+	
+	public void run() {
+		while (true) {
+			try {
+				// switch channels if the communication engine opened or closed a socket
+				if (channelChanged) {
+					channelChanged = false;
+					if (channelKey != null) channelKey.cancel();
+					channelKey = null;
+					channel = pendingChannel;
+					
+					if (channel != null && channel.isOpen()) channelKey = channel.register(selector, SelectionKey.OP_READ);
+					else channel = null;
+				}
+				
+				// wait for datagrams
+				selector.select();
+				selector.selectedKeys().clear();
+				
+				if (channel != null && readDatagrams() > 0) LockSupport.unpark(simulationThread);
+			}
+			catch (IOException ioe) {
+				System.out.println("IO Exception: " + ioe);
+				channel = null;
+			}
+		}
+	}
+	
+	
+	/**
+	 * Read all pending datagrams from the channel and queue the decoded messages.
+	 *
+	 * @return				The number of messages queued.
+	 */
+	private int readDatagrams() throws IOException {
+		int queued = 0;
+		
+		while (true) {
+			receiveBuffer.clear();
+			InetSocketAddress receiveAddress;
+			
+			try {
+				receiveAddress = (InetSocketAddress)channel.receive(receiveBuffer);
+			}
+			catch (ClosedChannelException cce) {
+				// the send stage closed the channel
+				channel = null;
+				return queued;
+			}
+			
+			// nothing left to read
+			if (receiveAddress == null) return queued;
+			metrics.count(ServerMetrics.DATAGRAMS_IN, 1);
+			metrics.count(ServerMetrics.BYTES_IN, receiveBuffer.position());
+			
+			// a full buffer means the datagram was larger than our mtu and has been cut off
+			if (!receiveBuffer.hasRemaining()) {
+				System.out.println("Datagram larger than mtu " + mtu + " dropped");
+				metrics.count(ServerMetrics.MALFORMED, 1);
+				continue;
+			}
+			receiveBuffer.flip();
+			
+			// put fragments back together until the whole message has arrived
+			ByteBuffer messageBuffer = receiveBuffer;
+			if (FragmentAssembler.isFragment(receiveBuffer)) {
+				messageBuffer = fragmentAssembler.addFragment(receiveAddress, receiveBuffer);
+				if (messageBuffer == null) continue;
+			}
+			
+			// pick the codec from the first byte of the message
+			MessageCodec receiveCodec = BinaryMessageCodec.isBinary(messageBuffer) ? binaryCodec : jsonCodec;
+			int messageSize = messageBuffer.remaining();
+			GameMessage msg;
+			
+			// decode the game message straight from the buffer, skip anything we cannot decode
+			try {
+				if (receiveCodec == binaryCodec && router == null && BinaryMessageCodec.isPlayersFrame(messageBuffer)) {
+					// decode straight into a pooled frame
+					msg = framePool.poll();
+					if (msg == null) {
+						msg = new GameMessage(GameMessage.MessageTypes.PLAYERS_FRAME);
+						msg.frame = new PlayersFrame();
+					}
+					BinaryMessageCodec.decodePlayersFrame(messageBuffer, msg.frame);
+				}
+				else msg = receiveCodec.decode(messageBuffer);
+			}
+			catch (RuntimeException re) {
+				System.out.println("Malformed packet: " + re);
+				metrics.count(ServerMetrics.MALFORMED, 1);
+				continue;
+			}
+			// a message needs a payload, or a frame decoded in place of one
+			if (msg == null || msg.getMessageType() == null || (msg.payload == null && msg.frame == null)) {
+				metrics.count(ServerMetrics.MALFORMED, 1);
+				continue;
+			}
+			metrics.countIn(msg.getMessageType(), messageSize);
+			
+			InboundMessage inbound = new InboundMessage(msg, receiveAddress, receiveCodec, channel);
+			
+			// hand the message to the router or the simulation stage, drop it if the stage is too far behind,
+			// a message that can not be routed is counted as malformed so it can never end this thread
+			try {
+				if (router != null) {
+					if (!router.route(inbound)) metrics.count(ServerMetrics.DROPPED_IN, 1);
+				}
+				else if (inputQueue.offer(inbound)) queued += 1;
+				else metrics.count(ServerMetrics.DROPPED_IN, 1);
+			}
+			catch (RuntimeException re) {
+				System.out.println("Malformed packet: " + re);
+				metrics.count(ServerMetrics.MALFORMED, 1);
+			}
+		}
+	}
+}
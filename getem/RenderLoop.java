@@ -0,0 +1,127 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package getem;
+
+import java.awt.*;
+import java.awt.image.BufferStrategy;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * The RenderLoop draws the game field on its own thread at a steady frame rate, set with
+ * -Dgetem.frameRate and 60 by default, rather than when AWT gets round to a repaint. Each frame
+ * draws the latest published world into the field's BufferStrategy and shows it, then syncs
+ * with the display so frames line up with the screen refresh where the platform supports it.
+ *
+ * Frames are paced against a fixed schedule like the simulation ticks, so a slow frame is made
+ * up by starting the next one sooner. If the loop falls more than a frame behind, the missed
+ * frames are skipped rather than drawn back to back. The time spent drawing and presenting each
+ * frame is recorded in the render metrics.
+ *
+ * @author			Bryan Nielsen
+ */
+class RenderLoop extends Thread {
+	GameField field;
+	RenderMetrics metrics;
+	long frameNS;
+	volatile boolean running;
+	
+	
+	/**
+	 * The constructor creates a loop for a game field, it is started once the field is showing.
+	 *
+	 * @param gameField				The field to draw.
+	 * @param renderMetrics		The metrics the frame times are recorded in.
+	 * @param frameRate				The target frames per second.
+	 */
+	public RenderLoop(GameField gameField, RenderMetrics renderMetrics, int frameRate) {
+		super("getem-render");
+		setDaemon(true);
+		field = gameField;
+		metrics = renderMetrics;
+		frameRate = Math.max(1, Math.min(1000, frameRate));
+		metrics.targetFrameRate = frameRate;
+		frameNS = 1000000000L / frameRate;
+		running = true;
+	}
+	
+	
+	public void run() {
+		// two buffers, page flipped where the platform can and copied otherwise
+		field.createBufferStrategy(2);
+		BufferStrategy strategy = field.getBufferStrategy();
+		boolean pageFlipping = strategy.getCapabilities().isPageFlipping();
+		
+		long nextFrameNS = System.nanoTime(), lastStartNS = 0;
+		while (running) {
+			// wait for the frame time
+			long waitNS;
+			while ((waitNS = nextFrameNS - System.nanoTime()) > 0) LockSupport.parkNanos(this, waitNS);
+			
+			long startNS = System.nanoTime();
+			if (startNS - nextFrameNS > frameNS / 2) metrics.count(RenderMetrics.LATE, 1);
+			if (lastStartNS != 0) metrics.recordPart(RenderMetrics.INTERVAL, startNS - lastStartNS);
+			lastStartNS = startNS;
+			
+			// a flipped back buffer holds an older frame and a lost one holds nothing, so they are drawn whole
+			long drawNS = 0;
+			boolean whole = pageFlipping;
+			do {
+				long drawStartNS = System.nanoTime();
+				field.drawFrame(strategy, whole);
+				drawNS += System.nanoTime() - drawStartNS;
+				
+				strategy.show();
+				whole = true;
+			} while (strategy.contentsLost());
+			Toolkit.getDefaultToolkit().sync();
+			long shownNS = System.nanoTime();
+			
+			metrics.recordPart(RenderMetrics.DRAW, drawNS);
+			metrics.recordPart(RenderMetrics.PRESENT, shownNS - startNS - drawNS);
+			metrics.count(RenderMetrics.FRAMES, 1);
+			
+			// keep to the schedule, skip the frames we are too late for
+			nextFrameNS += frameNS;
+			long behindNS = shownNS - nextFrameNS;
+			if (behindNS > frameNS) {
+				long skipped = behindNS / frameNS;
+				metrics.count(RenderMetrics.SKIPPED, skipped);
+				nextFrameNS += skipped * frameNS;
+			}
+		}
+	}
+	
+	
+	/**
+	 * Stop the loop after the current frame.
+	 */
+	public void shutDown() {
+		running = false;
+		LockSupport.unpark(this);
+	}
+}
@@ -0,0 +1,150 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package getem;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.*;
+
+
+/**
+ * The RenderMetrics record what drawing the game window costs, apart from the networking the
+ * ServerMetrics cover. Each frame is timed in two parts, drawing the world into the trail layer
+ * and the screen buffer, and presenting the buffer, and the time from the start of one frame to
+ * the next is kept too. Frames that start late and frames skipped to catch up are counted. They
+ * are registered as a JMX MBean under getem:type=RenderMetrics and dumped with the server
+ * metrics every -Dgetem.metricsInterval seconds.
+ *
+ * Everything is written by the thread that renders the field, readers on other threads may see
+ * the counts a moment late.
+ *
+ * @author			Bryan Nielsen
+ */
+class RenderMetrics implements RenderMetricsMBean {
+	// frame parts
+	static final int DRAW = 0;
+	static final int PRESENT = 1;
+	static final int INTERVAL = 2;
+	static final String[] PART_NAMES = new String[] { "draw", "present", "frame interval" };
+	
+	// counters
+	static final int FRAMES = 0;
+	static final int LATE = 1;
+	static final int SKIPPED = 2;
+	static final int COUNTERS = 3;
+	
+	LatencyHistogram[] parts;
+	AtomicLongArray counters;
+	volatile int targetFrameRate;
+	boolean registered;
+	
+	
+	/**
+	 * The constructor creates empty metrics, they are not visible until registered.
+	 */
+	public RenderMetrics() {
+		parts = new LatencyHistogram[PART_NAMES.length];
+		for (int part = 0; part < parts.length; part++) parts[part] = new LatencyHistogram();
+		counters = new AtomicLongArray(COUNTERS);
+		targetFrameRate = 0;
+	}
+	
+	
+	/**
+	 * Register the metrics as an MBean and start dumping them. Failures are reported and
+	 * otherwise ignored, the game runs the same without them.
+	 */
+	public synchronized void register() {
+		if (registered) return;
+		registered = true;
+		
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(this, new ObjectName("getem:type=RenderMetrics"));
+		}
+		catch (JMException jme) {
+			System.out.println("JMX Exception: " + jme);
+		}
+		
+		// dumped on the same timer thread as the server metrics
+		int interval = Integer.getInteger("getem.metricsInterval", 60);
+		if (interval > 0) {
+			synchronized (ServerMetrics.class) {
+				if (ServerMetrics.dumpTimer == null) ServerMetrics.dumpTimer = new Timer("getem-metrics", true);
+			}
+			ServerMetrics.dumpTimer.scheduleAtFixedRate(new TimerTask() {
+				public void run() {
+					System.out.print(getReport());
+				}
+			}, interval * 1000L, interval * 1000L);
+		}
+	}
+	
+	
+	// add to a counter, render thread only
+	void count(int counter, long amount) {
+		counters.lazySet(counter, counters.get(counter) + amount);
+	}
+	
+	
+	// record the time of a frame part, render thread only
+	void recordPart(int part, long nanos) {
+		parts[part].record(nanos);
+	}
+	
+	
+	public long getFrames() { return counters.get(FRAMES); }
+	public long getLateFrames() { return counters.get(LATE); }
+	public long getSkippedFrames() { return counters.get(SKIPPED); }
+	public int getTargetFrameRate() { return targetFrameRate; }
+	
+	public long getDrawMicrosP50() { return parts[DRAW].getPercentile(50) / 1000; }
+	public long getDrawMicrosP99() { return parts[DRAW].getPercentile(99) / 1000; }
+	public long getPresentMicrosP50() { return parts[PRESENT].getPercentile(50) / 1000; }
+	public long getPresentMicrosP99() { return parts[PRESENT].getPercentile(99) / 1000; }
+	public long getFrameIntervalMicrosP50() { return parts[INTERVAL].getPercentile(50) / 1000; }
+	public long getFrameIntervalMicrosP99() { return parts[INTERVAL].getPercentile(99) / 1000; }
+	
+	
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		report.append("getem render metrics: frames ").append(getFrames());
+		if (targetFrameRate > 0) report.append(" at ").append(targetFrameRate).append(" per second");
+		report.append(", late ").append(getLateFrames()).append(", skipped ").append(getSkippedFrames()).append("\n");
+		
+		for (int part = 0; part < parts.length; part++) {
+			LatencyHistogram times = parts[part];
+			if (times.getCount() == 0) continue;
+			
+			report.append("  ").append(PART_NAMES[part]).append(" us p50 ").append(times.getPercentile(50) / 1000);
+			report.append(" p99 ").append(times.getPercentile(99) / 1000).append(" max ").append(times.getPercentile(100) / 1000).append("\n");
+		}
+		
+		return report.toString();
+	}
+}
@@ -0,0 +1,55 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package getem;
+
+
+/**
+ * The JMX management interface of the RenderMetrics. Times are in microseconds, counts are totals
+ * since the game window opened.
+ *
+ * @author			Bryan Nielsen
+ */
+public interface RenderMetricsMBean {
+	public long getFrames();
+	public long getLateFrames();
+	public long getSkippedFrames();
+	public int getTargetFrameRate();
+	
+	public long getDrawMicrosP50();
+	public long getDrawMicrosP99();
+	public long getPresentMicrosP50();
+	public long getPresentMicrosP99();
+	public long getFrameIntervalMicrosP50();
+	public long getFrameIntervalMicrosP99();
+	
+	/**
+	 * Get all the metrics as text, the same as the periodic dump.
+	 *
+	 * @return						The report.
+	 */
+	public String getReport();
+}
@@ -0,0 +1,313 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package getem;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * The RoomManager hosts many independent game rooms in one server process on one port. The rooms
+ * are shared out between a fixed pool of RoomWorker simulation threads, set with -Dgetem.roomThreads
+ * and one per processor by default, and each room stays with the worker it was given.
+ *
+ * The receive stage routes every message to the room of the player it came from. A JOIN from a new
+ * address goes to the room named in its "room" payload value, which is created if it does not
+ * exist yet, or else to the first room with space, and a new room is created when all the rooms are
+ * full. Rooms hold up to -Dgetem.maxPlayers players, no more than the field has spawn points for,
+ * and there are at most -Dgetem.maxRooms rooms.
+ *
+ * @author			Bryan Nielsen
+ */
+public class RoomManager implements ReceiveStage.Router {
+	int serverPort, mtu, maximumMessageSize, maximumRooms, roomPlayers, historySize;
+	JsonMessageCodec jsonCodec;
+	BinaryMessageCodec binaryCodec;
+	DatagramChannel channel;
+	ReceiveStage receiveStage;
+	RoomWorker[] workers;
+	CopyOnWriteArrayList<GameRoom> rooms;
+	HashMap<String, GameRoom> roomNames;
+	ConcurrentHashMap<InetSocketAddress, GameRoom> playerRooms;
+	long unroutedMessages;
+	
+	
+	/**
+	 * The constructor sets up the receive stage and the workers, nothing runs until start is called.
+	 *
+	 * @param port						The UDP port to serve on.
+	 */
+	public RoomManager(int port) throws IOException {
+		serverPort = port;
+		
+		jsonCodec = new JsonMessageCodec();
+		binaryCodec = new BinaryMessageCodec();
+		
+		// the same mtu and message size limits as the game engine
+		mtu = Math.max(576, Math.min(65507, Integer.getInteger("getem.mtu", 1200)));
+		maximumMessageSize = FragmentAssembler.MAXIMUM_FRAGMENTS * (mtu - FragmentAssembler.HEADER_SIZE);
+		historySize = Integer.getInteger("getem.snapshotHistory", 32);
+		int queueSize = Integer.getInteger("getem.queueSize", 4096);
+		
+		// room limits
+		roomPlayers = Integer.getInteger("getem.maxPlayers", 8);
+		maximumRooms = Math.max(1, Integer.getInteger("getem.maxRooms", 256));
+		rooms = new CopyOnWriteArrayList<GameRoom>();
+		roomNames = new HashMap<String, GameRoom>();
+		playerRooms = new ConcurrentHashMap<InetSocketAddress, GameRoom>();
+		unroutedMessages = 0;
+		
+		// the simulation threads
+		int workerCount = Math.max(1, Integer.getInteger("getem.roomThreads", Runtime.getRuntime().availableProcessors()));
+		workers = new RoomWorker[workerCount];
+		for (int index = 0; index < workerCount; index++) {
+			workers[index] = new RoomWorker(this, index, jsonCodec, binaryCodec, mtu, maximumMessageSize, queueSize);
+		}
+		
+		// there is always at least one room
+		createRoom(nextRoomName());
+		
+		// the receive stage passes every message to route, its own input queue is not used
+		receiveStage = new ReceiveStage(null, jsonCodec, binaryCodec, mtu, maximumMessageSize, 2);
+		receiveStage.router = this;
+		receiveStage.metrics = new ServerMetrics("rooms");
+	}
+	
+	
+	/**
+	 * Open the server socket and start the workers and the receive stage.
+	 */
+	public void start() throws IOException {
+		channel = DatagramChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.bind(new InetSocketAddress(serverPort));
+		}
+		catch (IOException ioe) {
+			channel.close();
+			throw ioe;
+		}
+		
+		// every worker sends through the same channel
+		for (RoomWorker worker : workers) {
+			worker.sendStage.channel = channel;
+			worker.metrics.register();
+			worker.start();
+		}
+		receiveStage.metrics.register();
+		
+		receiveStage.setChannel(channel);
+		receiveStage.start();
+		
+		System.out.println("Room server on port " + serverPort + " with " + workers.length + " room threads");
+	}
+	
+	
+	/**
+	 * Route a message to the room of the player that sent it. Called on the receive thread.
+	 *
+	 * @param inbound					The decoded message.
+	 * @return								False if the message was dropped.
+	 */
+	public boolean route(ReceiveStage.InboundMessage inbound) {
+		GameRoom room = playerRooms.get(inbound.address);
+		
+		if (room == null) {
+			switch (inbound.message.getMessageType()) {
+				case JOIN:
+				// pick a room for a new player
+				Object roomName = inbound.message.payload.get("room");
+				room = chooseRoom(roomName instanceof String ? (String)roomName : null);
+				
+				playerRooms.put(inbound.address, room);
+				room.routedPlayers.incrementAndGet();
+				break;
+				
+				case PING:
+				// a ping from outside any room sees the first room, there is always one
+				room = rooms.get(0);
+				break;
+				
+				default:
+				unroutedMessages += 1;
+				return true;
+			}
+		}
+		
+		return room.worker.offer(room, inbound);
+	}
+	
+	
+	/**
+	 * Pick the room for a joining player, creating it if needed. When no more rooms can be created
+	 * the least full room is used, and the join is rejected by the room if it is full.
+	 *
+	 * @param roomName				The name of the room the player asked for, null for any room.
+	 * @return								The room.
+	 */
+	private GameRoom chooseRoom(String roomName) {
+		if (roomName != null && roomName.length() > 0) {
+			GameRoom room = roomNames.get(roomName);
+			if (room != null) return room;
+			if (rooms.size() < maximumRooms) return createRoom(roomName);
+		}
+		else {
+			// fill the rooms in order so players are not spread thinly
+			for (GameRoom room : rooms) {
+				if (room.routedPlayers.get() < room.maximumPlayers) return room;
+			}
+			if (rooms.size() < maximumRooms) return createRoom(nextRoomName());
+		}
+		
+		GameRoom leastFull = rooms.get(0);
+		for (GameRoom room : rooms) {
+			if (room.routedPlayers.get() < leastFull.routedPlayers.get()) leastFull = room;
+		}
+		return leastFull;
+	}
+	
+	
+	// a name for a new room that no room has yet
+	private String nextRoomName() {
+		int number = rooms.size();
+		while (roomNames.containsKey("room-" + number)) number += 1;
+		return "room-" + number;
+	}
+	
+	
+	/**
+	 * Create a room and give it to the next worker in turn.
+	 *
+	 * @param roomName				The name of the room.
+	 * @return								The new room.
+	 */
+	GameRoom createRoom(String roomName) {
+		GameRoom room = new GameRoom(roomName, roomPlayers, historySize);
+		room.worker = workers[rooms.size() % workers.length];
+		
+		rooms.add(room);
+		roomNames.put(roomName, room);
+		return room;
+	}
+	
+	
+	/**
+	 * Stop routing a player's messages to a room, after they leave or fail to join. Called by the
+	 * room's worker.
+	 *
+	 * @param address					The socket address of the player.
+	 * @param room						The room they were routed to.
+	 */
+	void leaveRoom(InetSocketAddress address, GameRoom room) {
+		if (playerRooms.remove(address, room)) room.routedPlayers.decrementAndGet();
+	}
+	
+	
+	/**
+	 * Get the stats of every room, one line for each.
+	 *
+	 * @return								The list of room stats.
+	 */
+	public List<String> getStats() {
+		ArrayList<String> stats = new ArrayList<String>();
+		
+		long droppedOutbound = 0;
+		for (RoomWorker worker : workers) droppedOutbound += worker.metrics.getDroppedOutbound();
+		stats.add("rooms " + rooms.size() + ", players " + playerRooms.size() + ", dropped in " + receiveStage.metrics.getDroppedInbound() + 
+			" out " + droppedOutbound + ", malformed " + receiveStage.metrics.getMalformedPackets() + ", unrouted " + unroutedMessages);
+		
+		for (GameRoom room : rooms) stats.add(room.getStats());
+		return stats;
+	}
+	
+	
+	/**
+	 * Stop the workers, which send a DISCONNECT to their players, then close the socket.
+	 */
+	public void shutDown() {
+		receiveStage.setChannel(null);
+		
+		for (RoomWorker worker : workers) {
+			worker.running = false;
+			LockSupport.unpark(worker);
+		}
+		
+		// wait a short time for the disconnect messages to be sent
+		long deadline = System.nanoTime() + 2000000000L;
+		for (RoomWorker worker : workers) {
+			try {
+				worker.join(Math.max(1, (deadline - System.nanoTime()) / 1000000));
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			while (!worker.sendStage.outputQueue.isEmpty() && System.nanoTime() - deadline < 0) LockSupport.parkNanos(1000000);
+		}
+		
+		try {
+			channel.close();
+		}
+		catch (IOException ioe) {
+			System.out.println("IO Exception: " + ioe);
+		}
+		System.out.println("Room server closed");
+	}
+	
+	
+	/**
+	 * Start a room server, the port can be given as the first argument. The room stats are printed
+	 * every -Dgetem.statsInterval seconds, 0 for never.
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : Integer.getInteger("getem.port", 3000);
+		int statsInterval = Integer.getInteger("getem.statsInterval", 10);
+		
+		final RoomManager manager = new RoomManager(port);
+		manager.start();
+		
+		// say goodbye to the players when the process is stopped
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				manager.shutDown();
+			}
+		});
+		
+		while (true) {
+			try {
+				Thread.sleep(statsInterval > 0 ? statsInterval * 1000L : Long.MAX_VALUE);
+			}
+			catch (InterruptedException ie) {
+				return;
+			}
+			for (String line : manager.getStats()) System.out.println(line);
+		}
+	}
+}
@@ -0,0 +1,271 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package getem;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * A RoomWorker is one of the simulation threads of a RoomManager. It owns a share of the game
+ * rooms, every message for its rooms is passed to it through its inbox and only this thread
+ * ever touches the rooms, so they need no locks. Each room runs on its own tick time line and
+ * the worker sleeps until the next tick or send is due in any of its rooms.
+ *
+ * Each worker has its own send stage so the output queue keeps a single producer, the send
+ * stages share the server channel. The worker and its send stage keep their own metrics, the
+ * receive phase of a tick is the time spent handling the messages in the inbox.
+ *
+ * @author			Bryan Nielsen
+ */
+class RoomWorker extends Thread {
+	RoomManager manager;
+	JsonMessageCodec jsonCodec;
+	BinaryMessageCodec binaryCodec;
+	SpscQueue<RoomMessage> inbox;
+	SendStage sendStage;
+	ArrayList<GameRoom> rooms;
+	volatile int roomCount;
+	volatile boolean running;
+	ServerMetrics metrics;
+	
+	
+	// the longest the worker sleeps with no rooms to run
+	static final long IDLE_WAIT_NS = 100000000L;
+	
+	
+	/**
+	 * A RoomMessage is a message from the receive stage with the room it was routed to.
+	 */
+	static class RoomMessage {
+		final GameRoom room;
+		final ReceiveStage.InboundMessage inbound;
+		
+		RoomMessage(GameRoom msgRoom, ReceiveStage.InboundMessage msgInbound) {
+			room = msgRoom;
+			inbound = msgInbound;
+		}
+	}
+	
+	
+	/**
+	 * The constructor sets up the worker and its send stage, the threads are started by the room manager.
+	 *
+	 * @param roomManager			The room manager the worker belongs to.
+	 * @param index						The worker number used in the thread name.
+	 * @param json						The JSON codec.
+	 * @param binary					The binary codec.
+	 * @param mtu							The largest datagram sent.
+	 * @param maximumSize			The largest encoded message.
+	 * @param queueSize				The capacity of the inbox and the output queue.
+	 */
+	public RoomWorker(RoomManager roomManager, int index, JsonMessageCodec json, BinaryMessageCodec binary, int mtu, int maximumSize, int queueSize) {
+		super("getem-rooms-" + index);
+		setDaemon(true);
+		
+		manager = roomManager;
+		jsonCodec = json;
+		binaryCodec = binary;
+		inbox = new SpscQueue<RoomMessage>(queueSize);
+		rooms = new ArrayList<GameRoom>();
+		roomCount = 0;
+		running = true;
+		metrics = new ServerMetrics("rooms-" + index);
+		
+		// the rooms keep their own snapshot histories, the send stage history is not used
+		sendStage = new SendStage(json, binary, mtu, maximumSize, queueSize, 1);
+		sendStage.setName("getem-rooms-send-" + index);
+		sendStage.metrics = metrics;
+	}
+	
+	
+	/**
+	 * Pass a message to the worker and wake it. Called on the receive thread only.
+	 *
+	 * @param room						The room the message is for.
+	 * @param inbound					The message.
+	 * @return								False if the inbox is full and the message was dropped.
+	 */
+	public boolean offer(GameRoom room, ReceiveStage.InboundMessage inbound) {
+		if (!inbox.offer(new RoomMessage(room, inbound))) return false;
+		LockSupport.unpark(this);
+		return true;
+	}
+	
+	
+	public void run() {
+		sendStage.start();
+		
+		while (running) {
+			// sleep until something is due in one of the rooms, the receive thread wakes us early
+			long waitNS = IDLE_WAIT_NS;
+			for (GameRoom room : rooms) waitNS = Math.min(waitNS, room.scheduler.nanosUntilNextEvent());
+			if (waitNS > 0 && inbox.isEmpty()) LockSupport.parkNanos(this, waitNS);
+			
+			// handle the messages routed to our rooms
+			long receiveStartNS = inbox.isEmpty() ? 0 : System.nanoTime();
+			RoomMessage next;
+			while ((next = inbox.poll()) != null) {
+				// the first message for a new room hands it to this thread
+				if (!next.room.hosted) {
+					next.room.hosted = true;
+					next.room.scheduler.reset();
+					rooms.add(next.room);
+					roomCount = rooms.size();
+				}
+				
+				// a message the room can not apply is counted as malformed, it must not stop the other rooms
+				try {
+					handleMessage(next.room, next.inbound);
+				}
+				catch (RuntimeException re) {
+					System.out.println("Malformed message: " + re);
+					metrics.count(ServerMetrics.MALFORMED, 1);
+				}
+			}
+			if (receiveStartNS != 0) metrics.recordPhase(ServerMetrics.RECEIVE, System.nanoTime() - receiveStartNS);
+			
+			// run the due ticks and sends of each room
+			int activePlayers = 0;
+			boolean pinged = false;
+			for (GameRoom room : rooms) {
+				pinged |= runRoom(room);
+				activePlayers += room.playerCount;
+			}
+			metrics.activePlayers = activePlayers;
+			
+			// the round trips of the players in all our rooms
+			if (pinged) {
+				ArrayList<Player> allPlayers = new ArrayList<Player>();
+				for (GameRoom room : rooms) allPlayers.addAll(room.playerList);
+				metrics.publishRoundTrips(allPlayers);
+			}
+		}
+		
+		// tell the players in our rooms the server is going away
+		GameMessage disconnect = new GameMessage(GameMessage.MessageTypes.DISCONNECT);
+		for (GameRoom room : rooms) {
+			enqueue(new SendStage.OutboundMessage(SendStage.Actions.BROADCAST, disconnect, null, null, 
+				SendStage.recipientsOf(room.playerList), null, null));
+		}
+	}
+	
+	
+	// run the ticks that are due in a room and send a frame if a send is due, true if the players were pinged
+	private boolean runRoom(GameRoom room) {
+		TickScheduler scheduler = room.scheduler;
+		int ticks = scheduler.simulationTicksDue();
+		boolean sendDue = scheduler.sendDue();
+		
+		if (ticks > 0) {
+			for (int tick = 0; tick < ticks; tick++) {
+				long start = System.nanoTime();
+				room.tick(scheduler.getSimulationSeconds(), metrics);
+				long elapsed = System.nanoTime() - start;
+				
+				// tick timing stats for the room
+				room.tickTimes.record(elapsed);
+				room.tickNanos += elapsed;
+				if (elapsed > room.maximumTickNanos) room.maximumTickNanos = elapsed;
+			}
+			room.ticksRun = scheduler.simulationTicks;
+			room.ticksDropped = scheduler.droppedTicks;
+			metrics.count(ServerMetrics.TICKS, ticks);
+		}
+		
+		// an empty room sends nothing
+		if (sendDue && room.playerCount > 0) {
+			enqueue(SendStage.playersFrameOf(room.takeSnapshot(), room.history));
+			room.framesSent += 1;
+		}
+		
+		// measure the round trip to each player now and then
+		if (room.pingDue() && room.playerCount > 0) {
+			GameMessage ping = GameRoom.buildPing();
+			for (Player next : room.playerList) {
+				if (next != null && next.address != null) sendMessage(ping, next.address, jsonCodec);
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	
+	// handle one message for a room
+	private void handleMessage(GameRoom room, ReceiveStage.InboundMessage inbound) {
+		GameMessage msg = inbound.message;
+		InetSocketAddress address = inbound.address;
+		
+		switch (msg.getMessageType()) {
+			case JOIN:
+			GameMessage reply = room.join(msg, address, jsonCodec, binaryCodec);
+			
+			// a player that could not join is no longer routed to the room
+			if (reply.getMessageType() != GameMessage.MessageTypes.JOIN_ACCEPT) manager.leaveRoom(address, room);
+			
+			// reply with the codec the join request used
+			sendMessage(reply, address, inbound.codec);
+			break;
+			
+			case PLAYER_FRAME:
+			int playerIndex = room.players.indexOfAddress(address);
+			if (playerIndex >= 0) room.applyPlayerFrame(playerIndex, msg.payload, room.scheduler.getSimulationSeconds());
+			break;
+			
+			case DISCONNECT:
+			room.nullPlayer(address);
+			manager.leaveRoom(address, room);
+			break;
+			
+			case PING:
+			sendMessage(room.buildPlayersMessage(GameMessage.MessageTypes.PING_RESPONSE), address, inbound.codec);
+			break;
+			
+			case PING_RESPONSE:
+			int pingIndex = room.players.indexOfAddress(address);
+			if (pingIndex >= 0) room.pingResponse(pingIndex, msg.payload, metrics);
+			break;
+			
+			default:
+			// messages for clients are ignored
+			break;
+		}
+	}
+	
+	
+	// queue a message for the send stage
+	private void sendMessage(GameMessage msg, InetSocketAddress sockAdd, MessageCodec codec) {
+		enqueue(new SendStage.OutboundMessage(SendStage.Actions.SEND, msg, sockAdd, codec, null, null, null));
+	}
+	
+	
+	// queue an action for the send stage and wake it, dropped if the queue is full
+	private void enqueue(SendStage.OutboundMessage out) {
+		if (!sendStage.outputQueue.offer(out)) metrics.count(ServerMetrics.DROPPED_OUT, 1);
+		LockSupport.unpark(sendStage);
+	}
+}
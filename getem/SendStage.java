@@ -0,0 +1,507 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package getem;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.BufferOverflowException;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * The SendStage is the last stage of the communication pipeline. It takes outbound messages and
+ * player frame snapshots from the output queue, encodes them and sends them to the clients, so a
+ * slow send never holds up the simulation. The stage owns the server snapshot history used for
+ * delta frames and the send buffers, and it closes the channel once everything queued before the
+ * close has been sent.
+ *
+ * @author			Bryan Nielsen
+ */
+class SendStage extends Thread {
+	JsonMessageCodec jsonCodec;
+	BinaryMessageCodec binaryCodec;
+	volatile DatagramChannel channel;
+	SpscQueue<OutboundMessage> outputQueue;
+	ByteBuffer sendBuffer, jsonBroadcastBuffer, binaryBroadcastBuffer;
+	BufferPool datagramPool, messagePool;
+	SnapshotHistory serverHistory;
+	ServerMetrics metrics;
+	int mtu, fragmentMessageId;
+	
+	// the frames encoded for the snapshot being sent, one for each codec and base sequence in use
+	ByteBuffer[] frameBuffers;
+	MessageCodec[] frameCodecs;
+	int[] frameBases;
+	int frameCount;
+	long frameEncodeNS;
+	
+	
+	// enumerate the outbound actions
+	public enum Actions {
+		OPEN, CLOSE, SEND, BROADCAST, PLAYERS_FRAME;
+	}
+	
+	
+	/**
+	 * A Recipient is the send details of one player copied from the player when the message was
+	 * queued, so the send stage never reads the live player objects.
+	 */
+	static class Recipient {
+		final InetSocketAddress address;
+		final MessageCodec codec;
+		final boolean deltaFrames;
+		final int ackedSequence;
+		
+		Recipient(Player player) {
+			address = player.address;
+			codec = player.codec;
+			deltaFrames = player.deltaFrames;
+			ackedSequence = player.ackedSequence;
+		}
+	}
+	
+	
+	/**
+	 * An OutboundMessage is one action for the send stage. None of the objects it refers to are
+	 * changed after it has been queued, apart from a players frame history which only the send
+	 * stage uses. A players frame with no recipients is sent to the players in the snapshot.
+	 */
+	static class OutboundMessage {
+		final Actions action;
+		final GameMessage message;
+		final InetSocketAddress address;
+		final MessageCodec codec;
+		final List<Recipient> recipients;
+		final SnapshotHistory.Snapshot snapshot;
+		final DatagramChannel channel;
+		final SnapshotHistory history;
+		
+		OutboundMessage(Actions outAction, GameMessage msg, InetSocketAddress sockAdd, MessageCodec msgCodec, 
+				List<Recipient> msgRecipients, SnapshotHistory.Snapshot msgSnapshot, DatagramChannel msgChannel) {
+			this(outAction, msg, sockAdd, msgCodec, msgRecipients, msgSnapshot, msgChannel, null);
+		}
+		
+		// a players frame for a game room, kept in the room's own history rather than the server history
+		OutboundMessage(Actions outAction, GameMessage msg, InetSocketAddress sockAdd, MessageCodec msgCodec, 
+				List<Recipient> msgRecipients, SnapshotHistory.Snapshot msgSnapshot, DatagramChannel msgChannel, SnapshotHistory msgHistory) {
+			action = outAction;
+			message = msg;
+			address = sockAdd;
+			codec = msgCodec;
+			recipients = msgRecipients;
+			snapshot = msgSnapshot;
+			channel = msgChannel;
+			history = msgHistory;
+		}
+	}
+	
+	
+	/**
+	 * The constructor sets up the send stage, the thread is started by the communication engine.
+	 *
+	 * @param json						The JSON codec.
+	 * @param binary					The binary codec.
+	 * @param datagramSize		The mtu, the largest datagram sent.
+	 * @param maximumSize			The largest encoded message.
+	 * @param queueSize				The capacity of the output queue.
+	 * @param historySize			The number of snapshots kept for delta frames.
+	 */
+	public SendStage(JsonMessageCodec json, BinaryMessageCodec binary, int datagramSize, int maximumSize, int queueSize, int historySize) {
+		super("getem-send");
+		setDaemon(true);
+		
+		jsonCodec = json;
+		binaryCodec = binary;
+		mtu = datagramSize;
+		fragmentMessageId = 0;
+		outputQueue = new SpscQueue<OutboundMessage>(queueSize);
+		serverHistory = new SnapshotHistory(historySize);
+		metrics = new ServerMetrics("send");
+		
+		// pools of direct buffers for datagrams and for encoding whole messages
+		datagramPool = new BufferPool(mtu, true, 16);
+		messagePool = new BufferPool(maximumSize, true, 16);
+		sendBuffer = messagePool.acquire();
+		
+		// broadcast frames are encoded once per codec into these buffers and sent to every client
+		jsonBroadcastBuffer = messagePool.acquire();
+		binaryBroadcastBuffer = messagePool.acquire();
+		
+		frameBuffers = new ByteBuffer[4];
+		frameCodecs = new MessageCodec[4];
+		frameBases = new int[4];
+	}
+	
+	
+	/**
+	 * Get the players frame action for a snapshot, made the first time a pooled snapshot is sent
+	 * and then reused each time the snapshot comes round again. The frame is sent to the players
+	 * in the snapshot.
+	 *
+	 * @param snapshot		The snapshot to send.
+	 * @param history			The snapshot history the snapshot came from, null for the server history.
+	 * @return						The players frame action.
+	 */
+	static OutboundMessage playersFrameOf(SnapshotHistory.Snapshot snapshot, SnapshotHistory history) {
+		if (snapshot.frameMessage == null) snapshot.frameMessage = new OutboundMessage(Actions.PLAYERS_FRAME, null, null, null, null, snapshot, null, history);
+		return snapshot.frameMessage;
+	}
+	
+	
+	/**
+	 * Build the list of recipients for the players that have an address.
+	 *
+	 * @param players			The list of players, may hold null slots.
+	 * @return						The list of recipients.
+	 */
+	static List<Recipient> recipientsOf(List<Player> players) {
+		ArrayList<Recipient> recipients = new ArrayList<Recipient>(players.size());
+		
+		Iterator<Player> playerIterator = players.iterator();
+		while (playerIterator.hasNext()) {
+			Player next = playerIterator.next();
+			if (next != null && next.address != null) recipients.add(new Recipient(next));
+		}
+		
+		return recipients;
+	}
+	
+	
+	public void run() {
+		while (true) {
+			OutboundMessage out = outputQueue.poll();
+			
+			// wait for the simulation stage to queue something
+			if (out == null) {
+				LockSupport.park(this);
+				continue;
+			}
+			
+			switch (out.action) {
+				case OPEN:
+				channel = out.channel;
+				serverHistory.clear();
+				break;
+				
+				case CLOSE:
+				try {
+					out.channel.close();
+				}
+				catch (IOException ioe) {
+					System.out.println("IO Exception: " + ioe);
+				}
+				if (channel == out.channel) channel = null;
+				break;
+				
+				case SEND:
+				sendMessage(out.message, out.address, out.codec);
+				break;
+				
+				case BROADCAST:
+				broadcast(out.message, out.recipients);
+				break;
+				
+				case PLAYERS_FRAME:
+				sendPlayersFrame(out.snapshot, out.recipients, out.history == null ? serverHistory : out.history);
+				break;
+			}
+		}
+	}
+	
+	
+	/**
+	 * Encode a message with the given codec and send it to one address.
+	 *
+	 * @param msg				A game message ready to be sent.
+	 * @param sockAdd	The socket address where the message should be sent.
+	 * @param codec			The codec used to encode the message, null for JSON.
+	 */
+	void sendMessage(GameMessage msg, InetSocketAddress sockAdd, MessageCodec codec) {
+		if (codec == null) codec = jsonCodec;
+		
+		// encode the message into the send buffer and send it
+		if (encodeBuffer(msg, codec, sendBuffer)) sendSocketBuffer(sendBuffer, sockAdd, msg.getMessageType());
+	}
+	
+	
+	/**
+	 * The send players frame function keeps the snapshot in the server history and sends it to the
+	 * recipients. Recipients that can rebuild delta frames are sent only what changed since the
+	 * snapshot they last acknowledged, other recipients and recipients whose ack is too old for the
+	 * history are sent a keyframe. Each distinct frame is encoded once and the bytes are shared by
+	 * all recipients with the same codec and base snapshot. A player in the snapshot with a view
+	 * size is sent only the region round it, a frame of its own that is encoded, sent and dropped.
+	 * The time spent encoding and the time spent sending are recorded as the encode and send
+	 * phases of the tick.
+	 *
+	 * Binary frames are encoded straight from the snapshot arrays, so once the buffers are pooled
+	 * sending a frame to binary clients allocates nothing.
+	 *
+	 * @param snapshot		The snapshot of all the players.
+	 * @param recipients	The players to send the frame to, null for the players in the snapshot.
+	 */
+	void sendPlayersFrame(SnapshotHistory.Snapshot snapshot, List<Recipient> recipients) {
+		sendPlayersFrame(snapshot, recipients, serverHistory);
+	}
+	
+	
+	/**
+	 * Send a players frame with the deltas taken from the given snapshot history.
+	 *
+	 * @param snapshot		The snapshot of all the players.
+	 * @param recipients	The players to send the frame to, null for the players in the snapshot.
+	 * @param history			The snapshot history of the game the frame is from.
+	 */
+	void sendPlayersFrame(SnapshotHistory.Snapshot snapshot, List<Recipient> recipients, SnapshotHistory history) {
+		long startNS = System.nanoTime();
+		history.add(snapshot);
+		frameCount = 0;
+		frameEncodeNS = 0;
+		
+		if (recipients != null) {
+			for (Recipient next : recipients) sendPlayersFrame(snapshot, history, next.address, next.codec, next.deltaFrames ? next.ackedSequence : -1, -1);
+		}
+		else {
+			for (int slot = 0; slot < snapshot.playerCount; slot++) {
+				if (snapshot.addresses[slot] == null) continue;
+				
+				int viewer = snapshot.viewSize[slot] > 0 ? slot : -1;
+				sendPlayersFrame(snapshot, history, snapshot.addresses[slot], snapshot.codecs[slot], snapshot.ackedSequence[slot], viewer);
+			}
+		}
+		
+		// return the encoded frames to the pool
+		for (int index = 0; index < frameCount; index++) {
+			messagePool.release(frameBuffers[index]);
+			frameBuffers[index] = null;
+		}
+		
+		// everything that was not encoding was sending
+		metrics.recordPhase(ServerMetrics.ENCODE, frameEncodeNS);
+		metrics.recordPhase(ServerMetrics.SEND, System.nanoTime() - startNS - frameEncodeNS);
+	}
+	
+	
+	// send the players frame to one player, encoding it if no player before had the same codec and base,
+	// a frame for a viewer is only ever sent to that viewer
+	private void sendPlayersFrame(SnapshotHistory.Snapshot snapshot, SnapshotHistory history, InetSocketAddress sockAdd, MessageCodec codec, int ackedSequence, int viewer) {
+		if (codec == null) codec = jsonCodec;
+		SnapshotHistory.Snapshot base = history.get(ackedSequence);
+		int baseSequence = base == null ? -1 : base.sequence;
+		
+		if (viewer >= 0) {
+			long encodeStartNS = System.nanoTime();
+			boolean encoded = encodePlayersFrame(snapshot, base, viewer, codec, sendBuffer);
+			frameEncodeNS += System.nanoTime() - encodeStartNS;
+			
+			if (encoded) sendSocketBuffer(sendBuffer, sockAdd, GameMessage.MessageTypes.PLAYERS_FRAME);
+			return;
+		}
+		
+		ByteBuffer frame = null;
+		for (int index = 0; index < frameCount && frame == null; index++) {
+			if (frameCodecs[index] == codec && frameBases[index] == baseSequence) frame = frameBuffers[index];
+		}
+		
+		if (frame == null) {
+			long encodeStartNS = System.nanoTime();
+			frame = messagePool.acquire();
+			if (!encodePlayersFrame(snapshot, base, -1, codec, frame)) frame.limit(0);
+			
+			if (frameCount == frameBuffers.length) {
+				frameBuffers = Arrays.copyOf(frameBuffers, frameCount * 2);
+				frameCodecs = Arrays.copyOf(frameCodecs, frameCount * 2);
+				frameBases = Arrays.copyOf(frameBases, frameCount * 2);
+			}
+			frameBuffers[frameCount] = frame;
+			frameCodecs[frameCount] = codec;
+			frameBases[frameCount] = baseSequence;
+			frameCount += 1;
+			frameEncodeNS += System.nanoTime() - encodeStartNS;
+		}
+		
+		if (frame.limit() > 0) {
+			frame.rewind();
+			sendSocketBuffer(frame, sockAdd, GameMessage.MessageTypes.PLAYERS_FRAME);
+		}
+	}
+	
+	
+	// encode a players frame for a viewer, or for everyone with -1, into a buffer and flip it, binary
+	// straight from the snapshot and JSON from the player maps, false if the frame is too large
+	private boolean encodePlayersFrame(SnapshotHistory.Snapshot snapshot, SnapshotHistory.Snapshot base, int viewer, MessageCodec codec, ByteBuffer buffer) {
+		if (codec == binaryCodec) {
+			buffer.clear();
+			
+			try {
+				binaryCodec.encodePlayersFrame(snapshot, base, viewer, buffer);
+			}
+			catch (BufferOverflowException boe) {
+				System.out.println("Message too large: " + GameMessage.MessageTypes.PLAYERS_FRAME);
+				return false;
+			}
+			
+			buffer.flip();
+			return true;
+		}
+		
+		GameMessage msg = new GameMessage(GameMessage.MessageTypes.PLAYERS_FRAME);
+		msg.payload.put("sequence", snapshot.sequence);
+		msg.payload.put("playerItIndex", snapshot.playerItIndex);
+		msg.payload.put("serverTime", snapshot.serverTime);
+		
+		if (base != null) {
+			// delta frame against the acknowledged snapshot
+			msg.payload.put("baseSequence", base.sequence);
+			msg.payload.put("playerCount", snapshot.playerCount);
+			msg.payload.put("playerDeltas", SnapshotHistory.buildDeltas(base.getPlayerMaps(viewer), snapshot.getPlayerMaps(viewer)));
+		}
+		else {
+			// keyframe with all the players
+			msg.payload.put("baseSequence", -1);
+			msg.payload.put("playerMaps", snapshot.getPlayerMaps(viewer));
+		}
+		
+		// the trail chunks changed since the base, as the binary codec sends them
+		if (snapshot.hasTrail) msg.payload.put("trail", BinaryMessageCodec.getTrailString(snapshot, base, viewer));
+		
+		return encodeBuffer(msg, codec, buffer);
+	}
+	
+	
+	/**
+	 * The broadcast function sends the same message to every recipient. The message is encoded
+	 * at most once for each codec in use and the encoded bytes are sent to each recipient, so the
+	 * encoding cost does not grow with the number of clients.
+	 *
+	 * @param msg					A game message ready to be sent.
+	 * @param recipients	The players to send the message to.
+	 */
+	void broadcast(GameMessage msg, List<Recipient> recipients) {
+		boolean jsonEncoded = false, binaryEncoded = false;
+		ByteBuffer buffer;
+		
+		for (Recipient next : recipients) {
+			// encode the message the first time a codec is needed
+			if (next.codec == binaryCodec) {
+				if (!binaryEncoded) {
+					if (!encodeBuffer(msg, binaryCodec, binaryBroadcastBuffer)) binaryBroadcastBuffer.limit(0);
+					binaryEncoded = true;
+				}
+				buffer = binaryBroadcastBuffer;
+			}
+			else {
+				if (!jsonEncoded) {
+					if (!encodeBuffer(msg, jsonCodec, jsonBroadcastBuffer)) jsonBroadcastBuffer.limit(0);
+					jsonEncoded = true;
+				}
+				buffer = jsonBroadcastBuffer;
+			}
+			
+			// send the same encoded bytes to this player
+			if (buffer.limit() > 0) {
+				buffer.rewind();
+				sendSocketBuffer(buffer, next.address, msg.getMessageType());
+			}
+		}
+	}
+	
+	
+	// encode a message into a buffer and flip the buffer ready to send, false if the message is too large
+	private boolean encodeBuffer(GameMessage msg, MessageCodec codec, ByteBuffer buffer) {
+		buffer.clear();
+		
+		try {
+			codec.encode(msg, buffer);
+		}
+		catch (BufferOverflowException boe) {
+			System.out.println("Message too large: " + msg.getMessageType());
+			return false;
+		}
+		
+		buffer.flip();
+		return true;
+	}
+	
+	
+	// count a datagram the channel has taken, a send of zero bytes means the socket buffer was full
+	private void countSent(int bytes) {
+		if (bytes > 0) {
+			metrics.count(ServerMetrics.DATAGRAMS_OUT, 1);
+			metrics.count(ServerMetrics.BYTES_OUT, bytes);
+		}
+		else metrics.count(ServerMetrics.DROPPED_SEND, 1);
+	}
+	
+	
+	/**
+	 * The sendSocketBuffer is a general datagram send function used for all communications.
+	 * The bytes from the buffer's position to its limit are one encoded message, a message
+	 * larger than the mtu is split into fragments that are sent as separate datagrams.
+	 *
+	 * @param buffer				The buffer holding the message to send over the communication channel.
+	 * @param sockAdd		The socket address where the message should be sent.
+	 * @param type				The type of the message, for the metrics.
+	 */
+	private void sendSocketBuffer(ByteBuffer buffer, InetSocketAddress sockAdd, GameMessage.MessageTypes type) {
+		if (channel != null) {
+			metrics.countOut(type, buffer.remaining());
+			
+			try {
+				if (buffer.remaining() <= mtu) {
+					countSent(channel.send(buffer, sockAdd));
+					return;
+				}
+				
+				int fragmentCount = FragmentAssembler.fragmentCount(buffer.remaining(), mtu);
+				if (fragmentCount > FragmentAssembler.MAXIMUM_FRAGMENTS) {
+					System.out.println("Message too large for " + FragmentAssembler.MAXIMUM_FRAGMENTS + " fragments");
+					return;
+				}
+				
+				// send each fragment from a pooled datagram buffer
+				fragmentMessageId = (fragmentMessageId + 1) & 0xffff;
+				ByteBuffer datagram = datagramPool.acquire();
+				
+				for (int index = 0; index < fragmentCount; index++) {
+					datagram.clear();
+					FragmentAssembler.putFragment(buffer, fragmentMessageId, index, fragmentCount, mtu, datagram);
+					datagram.flip();
+					countSent(channel.send(datagram, sockAdd));
+				}
+				
+				datagramPool.release(datagram);
+			}
+			catch (IOException ioe) {
+				System.out.println("IO Exception: " + ioe);
+			}
+		}
+	}
+}
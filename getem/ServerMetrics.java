@@ -0,0 +1,253 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package getem;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.*;
+
+
+/**
+ * The ServerMetrics record what a server is doing, the time spent in each phase of a tick, the
+ * packets and bytes in and out for each message type, the client round trip times, dropped and
+ * malformed packets and the number of players. They are registered as a JMX MBean under
+ * getem:type=ServerMetrics and dumped as text every -Dgetem.metricsInterval seconds, 60 by
+ * default and 0 for never.
+ *
+ * Every count and histogram has a single writer, the receive thread for what comes in, the send
+ * thread for what goes out and the simulation thread for the rest, so recording is a plain
+ * increment with no locking and costs a System.nanoTime() call around each timed phase.
+ * Readers on other threads may see the counts a moment late.
+ *
+ * @author			Bryan Nielsen
+ */
+class ServerMetrics implements ServerMetricsMBean {
+	// tick phases
+	static final int RECEIVE = 0;
+	static final int MOVE = 1;
+	static final int TAG = 2;
+	static final int ENCODE = 3;
+	static final int SEND = 4;
+	static final String[] PHASE_NAMES = new String[] { "receive", "move", "tag", "encode", "send" };
+	
+	// counters, messages dropped on the way out are counted separately by the simulation thread when
+	// the output queue is full and by the send thread when the socket buffer is full
+	static final int DATAGRAMS_IN = 0;
+	static final int BYTES_IN = 1;
+	static final int DATAGRAMS_OUT = 2;
+	static final int BYTES_OUT = 3;
+	static final int DROPPED_IN = 4;
+	static final int DROPPED_OUT = 5;
+	static final int DROPPED_SEND = 6;
+	static final int MALFORMED = 7;
+	static final int TICKS = 8;
+	static final int COUNTERS = 9;
+	
+	static final GameMessage.MessageTypes[] messageTypes = GameMessage.MessageTypes.values();
+	
+	// one timer thread dumps the metrics of every server in the process
+	static Timer dumpTimer;
+	
+	String name;
+	LatencyHistogram[] phases;
+	LatencyHistogram roundTrips;
+	AtomicLongArray counters, messagesIn, messageBytesIn, messagesOut, messageBytesOut;
+	volatile int activePlayers;
+	volatile String[] clientRoundTrips;
+	boolean registered;
+	
+	
+	/**
+	 * The constructor creates empty metrics, they are not visible until registered.
+	 *
+	 * @param metricsName			The name the metrics are registered and dumped under.
+	 */
+	public ServerMetrics(String metricsName) {
+		name = metricsName;
+		phases = new LatencyHistogram[PHASE_NAMES.length];
+		for (int phase = 0; phase < phases.length; phase++) phases[phase] = new LatencyHistogram();
+		roundTrips = new LatencyHistogram();
+		
+		counters = new AtomicLongArray(COUNTERS);
+		messagesIn = new AtomicLongArray(messageTypes.length);
+		messageBytesIn = new AtomicLongArray(messageTypes.length);
+		messagesOut = new AtomicLongArray(messageTypes.length);
+		messageBytesOut = new AtomicLongArray(messageTypes.length);
+		clientRoundTrips = new String[0];
+	}
+	
+	
+	/**
+	 * Register the metrics as an MBean and start dumping them. Failures are reported and
+	 * otherwise ignored, the server runs the same without them.
+	 */
+	public synchronized void register() {
+		if (registered) return;
+		registered = true;
+		
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName("getem:type=ServerMetrics,name=" + ObjectName.quote(name));
+			server.registerMBean(this, objectName);
+		}
+		catch (JMException jme) {
+			System.out.println("JMX Exception: " + jme);
+		}
+		
+		int interval = Integer.getInteger("getem.metricsInterval", 60);
+		if (interval > 0) {
+			synchronized (ServerMetrics.class) {
+				if (dumpTimer == null) dumpTimer = new Timer("getem-metrics", true);
+			}
+			dumpTimer.scheduleAtFixedRate(new TimerTask() {
+				public void run() {
+					System.out.print(getReport());
+				}
+			}, interval * 1000L, interval * 1000L);
+		}
+	}
+	
+	
+	// add to a counter, only the thread that owns the counter may call this
+	void count(int counter, long amount) {
+		counters.lazySet(counter, counters.get(counter) + amount);
+	}
+	
+	
+	// record the time of a tick phase, only the thread that runs the phase may call this
+	void recordPhase(int phase, long nanos) {
+		phases[phase].record(nanos);
+	}
+	
+	
+	// count a decoded message, receive thread only
+	void countIn(GameMessage.MessageTypes type, int bytes) {
+		int index = type.ordinal();
+		messagesIn.lazySet(index, messagesIn.get(index) + 1);
+		messageBytesIn.lazySet(index, messageBytesIn.get(index) + bytes);
+	}
+	
+	
+	// count an encoded message sent to one address, send thread only
+	void countOut(GameMessage.MessageTypes type, int bytes) {
+		int index = type.ordinal();
+		messagesOut.lazySet(index, messagesOut.get(index) + 1);
+		messageBytesOut.lazySet(index, messageBytesOut.get(index) + bytes);
+	}
+	
+	
+	/**
+	 * Record the round trip of a client and publish the latest round trip of every client. Called
+	 * by the simulation thread.
+	 *
+	 * @param millis					The round trip time in milliseconds.
+	 */
+	void recordRoundTrip(long millis) {
+		roundTrips.record(millis);
+	}
+	
+	
+	/**
+	 * Publish the last round trip time of each player for getClientRoundTrips. Called by the
+	 * simulation thread after the pings are sent.
+	 *
+	 * @param players				The player list.
+	 */
+	void publishRoundTrips(List<Player> players) {
+		ArrayList<String> lines = new ArrayList<String>();
+		for (Player next : players) {
+			if (next != null && next.address != null) lines.add(next.name + " " + next.address + " " + next.roundTripMillis + " ms");
+		}
+		clientRoundTrips = lines.toArray(new String[lines.size()]);
+	}
+	
+	
+	public int getActivePlayers() { return activePlayers; }
+	public long getTicks() { return counters.get(TICKS); }
+	public long getPacketsIn() { return counters.get(DATAGRAMS_IN); }
+	public long getBytesIn() { return counters.get(BYTES_IN); }
+	public long getPacketsOut() { return counters.get(DATAGRAMS_OUT); }
+	public long getBytesOut() { return counters.get(BYTES_OUT); }
+	public long getDroppedInbound() { return counters.get(DROPPED_IN); }
+	public long getDroppedOutbound() { return counters.get(DROPPED_OUT) + counters.get(DROPPED_SEND); }
+	public long getMalformedPackets() { return counters.get(MALFORMED); }
+	
+	public long getReceiveMicrosP50() { return phases[RECEIVE].getPercentile(50) / 1000; }
+	public long getReceiveMicrosP99() { return phases[RECEIVE].getPercentile(99) / 1000; }
+	public long getMoveMicrosP50() { return phases[MOVE].getPercentile(50) / 1000; }
+	public long getMoveMicrosP99() { return phases[MOVE].getPercentile(99) / 1000; }
+	public long getTagMicrosP50() { return phases[TAG].getPercentile(50) / 1000; }
+	public long getTagMicrosP99() { return phases[TAG].getPercentile(99) / 1000; }
+	public long getEncodeMicrosP50() { return phases[ENCODE].getPercentile(50) / 1000; }
+	public long getEncodeMicrosP99() { return phases[ENCODE].getPercentile(99) / 1000; }
+	public long getSendMicrosP50() { return phases[SEND].getPercentile(50) / 1000; }
+	public long getSendMicrosP99() { return phases[SEND].getPercentile(99) / 1000; }
+	public long getRoundTripMillisP50() { return roundTrips.getPercentile(50); }
+	public long getRoundTripMillisP99() { return roundTrips.getPercentile(99); }
+	
+	
+	public String[] getMessageCounts() {
+		ArrayList<String> lines = new ArrayList<String>();
+		for (int index = 0; index < messageTypes.length; index++) {
+			if (messagesIn.get(index) == 0 && messagesOut.get(index) == 0) continue;
+			
+			lines.add(messageTypes[index] + " in " + messagesIn.get(index) + " (" + messageBytesIn.get(index) + " bytes) out " + 
+				messagesOut.get(index) + " (" + messageBytesOut.get(index) + " bytes)");
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+	
+	
+	public String[] getClientRoundTrips() {
+		return clientRoundTrips;
+	}
+	
+	
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		report.append("getem metrics ").append(name).append(": players ").append(activePlayers).append(", ticks ").append(getTicks());
+		report.append(", packets in ").append(getPacketsIn()).append(" (").append(getBytesIn()).append(" bytes)");
+		report.append(" out ").append(getPacketsOut()).append(" (").append(getBytesOut()).append(" bytes)");
+		report.append(", dropped in ").append(getDroppedInbound()).append(" out ").append(getDroppedOutbound());
+		report.append(", malformed ").append(getMalformedPackets()).append("\n");
+		
+		for (int phase = 0; phase < phases.length; phase++) {
+			LatencyHistogram times = phases[phase];
+			if (times.getCount() == 0) continue;
+			
+			report.append("  ").append(PHASE_NAMES[phase]).append(" us p50 ").append(times.getPercentile(50) / 1000);
+			report.append(" p99 ").append(times.getPercentile(99) / 1000).append(" max ").append(times.getPercentile(100) / 1000).append("\n");
+		}
+		if (roundTrips.getCount() > 0) {
+			report.append("  round trip ms p50 ").append(roundTrips.getPercentile(50)).append(" p99 ").append(roundTrips.getPercentile(99));
+			report.append(" max ").append(roundTrips.getPercentile(100)).append("\n");
+		}
+		for (String line : getMessageCounts()) report.append("  ").append(line).append("\n");
+		
+		return report.toString();
+	}
+}
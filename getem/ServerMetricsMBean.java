@@ -0,0 +1,79 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package getem;
+
+
+/**
+ * The JMX management interface of the ServerMetrics. Times are in microseconds and round trips in
+ * milliseconds, counts are totals since the server started.
+ *
+ * @author			Bryan Nielsen
+ */
+public interface ServerMetricsMBean {
+	public int getActivePlayers();
+	public long getTicks();
+	public long getPacketsIn();
+	public long getBytesIn();
+	public long getPacketsOut();
+	public long getBytesOut();
+	public long getDroppedInbound();
+	public long getDroppedOutbound();
+	public long getMalformedPackets();
+	
+	public long getReceiveMicrosP50();
+	public long getReceiveMicrosP99();
+	public long getMoveMicrosP50();
+	public long getMoveMicrosP99();
+	public long getTagMicrosP50();
+	public long getTagMicrosP99();
+	public long getEncodeMicrosP50();
+	public long getEncodeMicrosP99();
+	public long getSendMicrosP50();
+	public long getSendMicrosP99();
+	public long getRoundTripMillisP50();
+	public long getRoundTripMillisP99();
+	
+	/**
+	 * Get the messages and bytes in and out for each message type.
+	 *
+	 * @return						One line for each message type that has been seen.
+	 */
+	public String[] getMessageCounts();
+	
+	/**
+	 * Get the last round trip time measured for each client.
+	 *
+	 * @return						One line for each client, the name, address and round trip.
+	 */
+	public String[] getClientRoundTrips();
+	
+	/**
+	 * Get all the metrics as text, the same as the periodic dump.
+	 *
+	 * @return						The report.
+	 */
+	public String getReport();
+}
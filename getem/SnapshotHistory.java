@@ -0,0 +1,549 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package getem;
+
+import java.net.*;
+import java.util.*;
+
+
+/**
+ * The SnapshotHistory holds the most recent player frame snapshots in a ring so player frames
+ * can be sent as deltas against a snapshot a client has acknowledged.
+ *
+ * The server keeps the snapshots it has sent and the client keeps the snapshots it has rebuilt.
+ * A delta frame lists only the player slots and fields that changed since the base snapshot,
+ * the client applies it to its copy of the base snapshot to rebuild the new snapshot. If the
+ * base is no longer held in the history then a full keyframe has to be sent instead.
+ *
+ * Snapshots are reused. A snapshot pushed out of the ring is handed back through a queue to the
+ * thread that takes snapshots, which gets it again from obtain, so once the ring is full taking
+ * and keeping snapshots allocates nothing. The thread that adds to the history and the thread
+ * that obtains snapshots may be different, the send stage and the simulation stage on a server.
+ *
+ * @author			Bryan Nielsen
+ */
+class SnapshotHistory {
+	// a client is sent the players and trail chunks this far outside its view
+	static final int VIEW_MARGIN = 32;
+	
+	Snapshot[] snapshots;
+	SpscQueue<Snapshot> recycled;
+	
+	
+	/**
+	 * A Snapshot is the state of every player slot and the it player index sent in one player
+	 * frame, with the server's simulation time in milliseconds when it was taken. The players
+	 * are kept in parallel arrays by slot, the flags use the binary player record bits. A server
+	 * snapshot also holds the send details of the player in each slot and the encoded chunks of
+	 * the trail grid so the send stage needs nothing else to send it. A snapshot is not changed
+	 * once it has been queued or added to a history until it comes back from obtain.
+	 *
+	 * A player with a view size is only sent the region round it, its view with a margin on each
+	 * side. The region is worked out from the snapshot itself, so the send stage can tell what a
+	 * client was sent in a base snapshot as well as what it is sent now. The slots in each region
+	 * are found with the room's spatial grid when the view is set, so encoding a delta frame for
+	 * a viewer only looks at the players near it.
+	 */
+	static class Snapshot {
+		int sequence, playerItIndex, serverTime, playerCount;
+		int[] flags, colorIndex, inputSequence;
+		float[] x, y;
+		String[] names;
+		
+		// the send details of the player in each slot, a null address is not sent the frame and an
+		// acked sequence of -1 is always sent keyframes
+		InetSocketAddress[] addresses;
+		MessageCodec[] codecs;
+		int[] ackedSequence;
+		
+		// the view size of the player in each slot, 0 to send the whole field, and the left and top
+		// of the region it is sent
+		int[] viewSize;
+		float[] viewLeft, viewTop;
+		
+		// the slots in the region of each player with a view, one player after another in the view
+		// slots from its first to its end
+		int[] viewFirst, viewEnd, viewSlots;
+		int viewSlotCount;
+		
+		// the trail chunks that hold a trail or have changed since the last clear, their runs one after
+		// another in the trail bytes with the chunk index and the trail version each chunk last changed
+		// at, and where each chunk of the grid is in the list, -1 if it is not
+		boolean hasTrail;
+		int trailVersion, trailClearVersion, trailChunkCount, trailChunkColumns;
+		int[] trailChunks, trailChunkVersions, trailOffsets, trailEntries;
+		boolean[] trailFilled;
+		byte[] trailBytes;
+		
+		// the player maps, built from the arrays the first time the JSON codec needs them
+		List<Map<String, Object>> playerMaps;
+		
+		// the send stage action for this snapshot, made the first time and reused
+		SendStage.OutboundMessage frameMessage;
+		
+		Snapshot() {
+			ensureCapacity(16);
+			viewSlots = new int[16];
+			trailChunks = new int[16];
+			trailChunkVersions = new int[16];
+			trailEntries = new int[0];
+			trailOffsets = new int[17];
+			trailFilled = new boolean[16];
+			trailBytes = new byte[1024];
+		}
+		
+		Snapshot(int seq, int itIndex, int time, List<Map<String, Object>> maps) {
+			this();
+			reset(seq, itIndex, time, maps.size());
+			setPlayerMaps(maps);
+		}
+		
+		
+		// start again as an empty snapshot with the given number of slots
+		void reset(int seq, int itIndex, int time, int slots) {
+			sequence = seq;
+			playerItIndex = itIndex;
+			serverTime = time;
+			ensureCapacity(slots);
+			playerCount = slots;
+			playerMaps = null;
+			hasTrail = false;
+			trailChunkCount = 0;
+			viewSlotCount = 0;
+			
+			Arrays.fill(flags, 0, slots, 0);
+			Arrays.fill(addresses, 0, slots, null);
+			Arrays.fill(viewSize, 0, slots, 0);
+		}
+		
+		
+		// grow the arrays to hold at least the given number of slots
+		void ensureCapacity(int slots) {
+			if (flags != null && flags.length >= slots) return;
+			
+			int length = Math.max(slots, flags == null ? 0 : flags.length * 2);
+			flags = flags == null ? new int[length] : Arrays.copyOf(flags, length);
+			colorIndex = colorIndex == null ? new int[length] : Arrays.copyOf(colorIndex, length);
+			inputSequence = inputSequence == null ? new int[length] : Arrays.copyOf(inputSequence, length);
+			x = x == null ? new float[length] : Arrays.copyOf(x, length);
+			y = y == null ? new float[length] : Arrays.copyOf(y, length);
+			names = names == null ? new String[length] : Arrays.copyOf(names, length);
+			addresses = addresses == null ? new InetSocketAddress[length] : Arrays.copyOf(addresses, length);
+			codecs = codecs == null ? new MessageCodec[length] : Arrays.copyOf(codecs, length);
+			ackedSequence = ackedSequence == null ? new int[length] : Arrays.copyOf(ackedSequence, length);
+			viewSize = viewSize == null ? new int[length] : Arrays.copyOf(viewSize, length);
+			viewLeft = viewLeft == null ? new float[length] : Arrays.copyOf(viewLeft, length);
+			viewTop = viewTop == null ? new float[length] : Arrays.copyOf(viewTop, length);
+			viewFirst = viewFirst == null ? new int[length] : Arrays.copyOf(viewFirst, length);
+			viewEnd = viewEnd == null ? new int[length] : Arrays.copyOf(viewEnd, length);
+		}
+		
+		
+		// set the view of the player in a slot and find the slots in its region, once the positions
+		// are set and the grid is built from them
+		void setView(int slot, int size, int fieldSize, SpatialGrid grid) {
+			viewSize[slot] = size;
+			viewLeft[slot] = Player.viewEdge(x[slot], size, fieldSize) - VIEW_MARGIN;
+			viewTop[slot] = Player.viewEdge(y[slot], size, fieldSize) - VIEW_MARGIN;
+			
+			if (viewSlots.length < viewSlotCount + playerCount) viewSlots = Arrays.copyOf(viewSlots, Math.max(viewSlotCount + playerCount, viewSlots.length * 2));
+			viewFirst[slot] = viewSlotCount;
+			viewSlotCount += grid.queryRegion(viewLeft[slot], viewTop[slot], size + 2 * VIEW_MARGIN, viewSlots, viewSlotCount);
+			viewEnd[slot] = viewSlotCount;
+		}
+		
+		
+		// the viewer slot is sent a region and its slots have been found
+		boolean hasViewSlots(int viewer) {
+			return viewer >= 0 && has(viewer) && viewSize[viewer] > 0;
+		}
+		
+		
+		// the region a viewer slot is sent holds a point, a viewer of -1 or with no view is sent
+		// everything and a viewer with no player is sent nothing
+		boolean sees(int viewer, float px, float py) {
+			if (viewer < 0) return true;
+			if (!has(viewer)) return false;
+			if (viewSize[viewer] == 0) return true;
+			
+			int span = viewSize[viewer] + 2 * VIEW_MARGIN;
+			return px >= viewLeft[viewer] && px < viewLeft[viewer] + span && py >= viewTop[viewer] && py < viewTop[viewer] + span;
+		}
+		
+		
+		// the region a viewer slot is sent overlaps a trail chunk
+		boolean seesChunk(int viewer, int chunk) {
+			if (viewer < 0) return true;
+			if (!has(viewer)) return false;
+			if (viewSize[viewer] == 0) return true;
+			
+			int span = viewSize[viewer] + 2 * VIEW_MARGIN;
+			float left = (chunk % trailChunkColumns) * TrailGrid.CHUNK_PIXELS, top = (chunk / trailChunkColumns) * TrailGrid.CHUNK_PIXELS;
+			return left + TrailGrid.CHUNK_PIXELS > viewLeft[viewer] && left < viewLeft[viewer] + span && 
+				top + TrailGrid.CHUNK_PIXELS > viewTop[viewer] && top < viewTop[viewer] + span;
+		}
+		
+		
+		// start the trail again with no chunks
+		void resetTrail(int version, int clearVersion, int chunkColumns, int chunkCount) {
+			hasTrail = true;
+			trailVersion = version;
+			trailClearVersion = clearVersion;
+			trailChunkColumns = chunkColumns;
+			trailChunkCount = 0;
+			trailOffsets[0] = 0;
+			
+			if (trailEntries.length != chunkCount) trailEntries = new int[chunkCount];
+			Arrays.fill(trailEntries, -1);
+		}
+		
+		
+		// add the runs of a trail chunk after the chunks already added
+		void addTrailChunk(int chunk, byte[] runs, int length, int version, boolean filled) {
+			if (trailChunkCount == trailFilled.length) {
+				trailChunks = Arrays.copyOf(trailChunks, trailChunkCount * 2);
+				trailChunkVersions = Arrays.copyOf(trailChunkVersions, trailChunkCount * 2);
+				trailOffsets = Arrays.copyOf(trailOffsets, trailChunkCount * 2 + 1);
+				trailFilled = Arrays.copyOf(trailFilled, trailChunkCount * 2);
+			}
+			
+			int offset = trailOffsets[trailChunkCount];
+			if (offset + length > trailBytes.length) trailBytes = Arrays.copyOf(trailBytes, Math.max(offset + length, trailBytes.length * 2));
+			System.arraycopy(runs, 0, trailBytes, offset, length);
+			
+			trailChunks[trailChunkCount] = chunk;
+			trailEntries[chunk] = trailChunkCount;
+			trailChunkVersions[trailChunkCount] = version;
+			trailFilled[trailChunkCount] = filled;
+			trailChunkCount += 1;
+			trailOffsets[trailChunkCount] = offset + length;
+		}
+		
+		
+		// there is a player in the slot
+		boolean has(int slot) {
+			return slot < playerCount && (flags[slot] & BinaryMessageCodec.FLAG_PRESENT) != 0;
+		}
+		
+		
+		// copy the players of another snapshot, keeping this snapshot's sequence and times
+		void copyPlayers(Snapshot other, int slots) {
+			ensureCapacity(slots);
+			playerCount = slots;
+			playerMaps = null;
+			
+			int copied = Math.min(slots, other.playerCount);
+			System.arraycopy(other.flags, 0, flags, 0, copied);
+			System.arraycopy(other.colorIndex, 0, colorIndex, 0, copied);
+			System.arraycopy(other.inputSequence, 0, inputSequence, 0, copied);
+			System.arraycopy(other.x, 0, x, 0, copied);
+			System.arraycopy(other.y, 0, y, 0, copied);
+			System.arraycopy(other.names, 0, names, 0, copied);
+			Arrays.fill(flags, copied, slots, 0);
+		}
+		
+		
+		// fill the slots from "current" player maps, a null map is an empty slot
+		void setPlayerMaps(List<Map<String, Object>> maps) {
+			for (int slot = 0; slot < playerCount; slot++) {
+				Map<String, Object> playerMap = maps.get(slot);
+				if (playerMap == null) {
+					flags[slot] = 0;
+					continue;
+				}
+				
+				flags[slot] = BinaryMessageCodec.FLAG_PRESENT;
+				if (BinaryMessageCodec.getBoolean(playerMap, "mousePressed")) flags[slot] |= BinaryMessageCodec.FLAG_MOUSE_PRESSED;
+				if (BinaryMessageCodec.getBoolean(playerMap, "isVisible")) flags[slot] |= BinaryMessageCodec.FLAG_VISIBLE;
+				colorIndex[slot] = BinaryMessageCodec.getInt(playerMap, "colorIndex", 0);
+				x[slot] = BinaryMessageCodec.getFloat(playerMap, "currentX");
+				y[slot] = BinaryMessageCodec.getFloat(playerMap, "currentY");
+				inputSequence[slot] = BinaryMessageCodec.getInt(playerMap, "inputSequence", -1);
+				names[slot] = BinaryMessageCodec.getString(playerMap, "name", null);
+			}
+			playerMaps = maps;
+		}
+		
+		
+		/**
+		 * Get the "current" player maps of the slots, null for an empty slot, as used by the JSON
+		 * codec and the map based deltas. The maps are built the first time and kept.
+		 *
+		 * @return						The list of player maps.
+		 */
+		List<Map<String, Object>> getPlayerMaps() {
+			if (playerMaps != null) return playerMaps;
+			
+			ArrayList<Map<String, Object>> maps = new ArrayList<Map<String, Object>>(playerCount);
+			for (int slot = 0; slot < playerCount; slot++) {
+				if (!has(slot)) {
+					maps.add(null);
+					continue;
+				}
+				
+				Map<String, Object> playerMap = new HashMap<>();
+				playerMap.put("name", names[slot]);
+				playerMap.put("colorIndex", colorIndex[slot]);
+				playerMap.put("mousePressed", (flags[slot] & BinaryMessageCodec.FLAG_MOUSE_PRESSED) != 0);
+				playerMap.put("isVisible", (flags[slot] & BinaryMessageCodec.FLAG_VISIBLE) != 0);
+				playerMap.put("currentX", x[slot]);
+				playerMap.put("currentY", y[slot]);
+				if (inputSequence[slot] >= 0) playerMap.put("inputSequence", inputSequence[slot]);
+				maps.add(playerMap);
+			}
+			
+			playerMaps = maps;
+			return maps;
+		}
+
+
+		/**
+		 * Get the "current" player maps of the slots a viewer is sent, the players outside its
+		 * region are left out as empty slots.
+		 *
+		 * @param viewer			The slot of the player the maps are for, -1 for every slot.
+		 * @return						The list of player maps.
+		 */
+		List<Map<String, Object>> getPlayerMaps(int viewer) {
+			List<Map<String, Object>> maps = getPlayerMaps();
+			if (viewer < 0) return maps;
+
+			ArrayList<Map<String, Object>> seen = new ArrayList<Map<String, Object>>(Collections.<Map<String, Object>>nCopies(playerCount, null));
+			if (hasViewSlots(viewer)) {
+				for (int index = viewFirst[viewer]; index < viewEnd[viewer]; index++) seen.set(viewSlots[index], maps.get(viewSlots[index]));
+			}
+			else {
+				for (int slot = 0; slot < playerCount; slot++) {
+					if (has(slot) && sees(viewer, x[slot], y[slot])) seen.set(slot, maps.get(slot));
+				}
+			}
+			return seen;
+		}
+
+		
+		/**
+		 * Apply a slot to a player, the same values Player.applyMap takes from a "current" map.
+		 *
+		 * @param slot				The slot index.
+		 * @param view				The player to update.
+		 */
+		void copyToView(int slot, Player view) {
+			view.name = names[slot];
+			view.colorIndex = colorIndex[slot];
+			view.currentX = x[slot];
+			view.currentY = y[slot];
+			view.mousePressed = (flags[slot] & BinaryMessageCodec.FLAG_MOUSE_PRESSED) != 0;
+			view.isVisible = (flags[slot] & BinaryMessageCodec.FLAG_VISIBLE) != 0;
+			if (inputSequence[slot] >= 0) view.inputSequence = inputSequence[slot];
+		}
+	}
+	
+	
+	/**
+	 * The constructor creates a history to hold the given number of snapshots.
+	 *
+	 * @param size				The number of snapshots held, older snapshots are dropped.
+	 */
+	public SnapshotHistory(int size) {
+		snapshots = new Snapshot[Math.max(1, size)];
+		recycled = new SpscQueue<Snapshot>(snapshots.length * 2);
+	}
+	
+	
+	/**
+	 * Get an unused snapshot to fill, one that has left the history or a new one. Only one thread
+	 * may obtain snapshots from a history.
+	 *
+	 * @return						The snapshot, its contents are left over and must be reset.
+	 */
+	public Snapshot obtain() {
+		Snapshot snapshot = recycled.poll();
+		return snapshot == null ? new Snapshot() : snapshot;
+	}
+	
+	
+	/**
+	 * Add a snapshot to the history replacing the oldest snapshot, which can be obtained again.
+	 *
+	 * @param snapshot		The snapshot to add.
+	 */
+	public void add(Snapshot snapshot) {
+		int index = Math.floorMod(snapshot.sequence, snapshots.length);
+		Snapshot oldest = snapshots[index];
+		snapshots[index] = snapshot;
+		
+		if (oldest != null && oldest != snapshot) recycled.offer(oldest);
+	}
+	
+	
+	/**
+	 * Hand back a snapshot that was obtained but not added to the history.
+	 *
+	 * @param snapshot		The snapshot, it must not be used again.
+	 */
+	public void recycle(Snapshot snapshot) {
+		recycled.offer(snapshot);
+	}
+	
+	
+	/**
+	 * Rebuild the snapshot of a players frame from its base snapshot in the history and add it
+	 * to the history, used by a client. A frame without a sequence from an older server is built
+	 * but not kept.
+	 *
+	 * @param frame				The decoded players frame.
+	 * @return						The new snapshot, null if the frame is a delta against a snapshot we no longer have.
+	 */
+	public Snapshot applyFrame(PlayersFrame frame) {
+		Snapshot base = null;
+		if (frame.baseSequence >= 0) {
+			base = get(frame.baseSequence);
+			if (base == null) return null;
+		}
+		
+		Snapshot snapshot = obtain();
+		snapshot.reset(frame.sequence, frame.playerItIndex, frame.serverTime, frame.playerCount);
+		if (base != null) snapshot.copyPlayers(base, frame.playerCount);
+		frame.applyTo(snapshot);
+		
+		if (frame.sequence >= 0) add(snapshot);
+		return snapshot;
+	}
+	
+	
+	/**
+	 * Get the snapshot with the given sequence number.
+	 *
+	 * @param sequence		The sequence number of the snapshot.
+	 * @return						The snapshot or null if it is not held in the history.
+	 */
+	public Snapshot get(int sequence) {
+		if (sequence < 0) return null;
+		
+		Snapshot snapshot = snapshots[Math.floorMod(sequence, snapshots.length)];
+		if (snapshot != null && snapshot.sequence == sequence) return snapshot;
+		
+		return null;
+	}
+	
+	
+	/**
+	 * Remove all snapshots from the history.
+	 */
+	public void clear() {
+		for (int index = 0; index < snapshots.length; index++) {
+			if (snapshots[index] != null) recycled.offer(snapshots[index]);
+			snapshots[index] = null;
+		}
+	}
+	
+	
+	/**
+	 * Build the list of player deltas needed to turn the base player maps into the current
+	 * player maps. Each delta is a map with the "slot" index and only the fields that changed,
+	 * a player that has left is sent as a delta with "removed" set to true.
+	 *
+	 * @param baseMaps				The player maps of the snapshot the client has.
+	 * @param currentMaps			The player maps of the new snapshot.
+	 * @return								The list of player deltas, empty if nothing changed.
+	 */
+	static ArrayList<Map<String, Object>> buildDeltas(List<Map<String, Object>> baseMaps, List<Map<String, Object>> currentMaps) {
+		ArrayList<Map<String, Object>> deltas = new ArrayList<Map<String, Object>>();
+		
+		for (int slot = 0; slot < currentMaps.size(); slot++) {
+			Map<String, Object> current = currentMaps.get(slot);
+			Map<String, Object> base = slot < baseMaps.size() ? baseMaps.get(slot) : null;
+			Map<String, Object> delta;
+			
+			if (current == null) {
+				// player left the slot
+				if (base == null) continue;
+				delta = new HashMap<>();
+				delta.put("removed", true);
+			}
+			else if (base == null) {
+				// new player in the slot, send all fields
+				delta = new HashMap<>(current);
+			}
+			else {
+				// send only the fields that changed
+				delta = new HashMap<>();
+				for (Map.Entry<String, Object> entry : current.entrySet()) {
+					if (!entry.getValue().equals(base.get(entry.getKey()))) delta.put(entry.getKey(), entry.getValue());
+				}
+				if (delta.isEmpty()) continue;
+				
+				// the player flags are always sent together
+				if (delta.containsKey("mousePressed") || delta.containsKey("isVisible")) {
+					delta.put("mousePressed", current.get("mousePressed"));
+					delta.put("isVisible", current.get("isVisible"));
+				}
+			}
+			
+			delta.put("slot", slot);
+			deltas.add(delta);
+		}
+		
+		return deltas;
+	}
+	
+	
+	/**
+	 * Rebuild the player maps of a new snapshot by applying player deltas to the base player maps.
+	 * The base maps are not changed, changed slots get new maps.
+	 *
+	 * @param baseMaps				The player maps of the base snapshot.
+	 * @param playerCount			The number of player slots in the new snapshot.
+	 * @param deltas					The list of player deltas.
+	 * @return								The player maps of the new snapshot.
+	 */
+	static ArrayList<Map<String, Object>> applyDeltas(List<Map<String, Object>> baseMaps, int playerCount, List<Map<String, Object>> deltas) {
+		ArrayList<Map<String, Object>> playerMaps = new ArrayList<Map<String, Object>>(playerCount);
+		
+		// start with the unchanged base slots
+		for (int slot = 0; slot < playerCount; slot++) {
+			playerMaps.add(slot < baseMaps.size() ? baseMaps.get(slot) : null);
+		}
+		
+		for (Map<String, Object> delta : deltas) {
+			int slot = BinaryMessageCodec.getInt(delta, "slot", -1);
+			if (slot < 0 || slot >= playerCount) continue;
+			
+			if (Boolean.TRUE.equals(delta.get("removed"))) {
+				playerMaps.set(slot, null);
+			}
+			else {
+				Map<String, Object> playerMap = playerMaps.get(slot) == null ? new HashMap<String, Object>() : new HashMap<>(playerMaps.get(slot));
+				playerMap.putAll(delta);
+				playerMap.remove("slot");
+				playerMaps.set(slot, playerMap);
+			}
+		}
+		
+		return playerMaps;
+	}
+}
@@ -0,0 +1,207 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package getem;
+
+import java.util.*;
+
+
+/**
+ * The SpatialGrid is a uniform hash grid over the play field used as the broadphase for player
+ * collisions and proximity queries. The field is split into square cells and each player slot is
+ * linked into the cell its position falls in, so a query only looks at the players in the cells
+ * the query circle covers rather than at every player.
+ *
+ * The grid is rebuilt from the player list once per simulation tick after the players have moved,
+ * which is a single pass over the players with no allocation. Positions are copied into the grid
+ * when it is built and queries test squared distances against them.
+ *
+ * @author			Bryan Nielsen
+ */
+class SpatialGrid {
+	int cellSize, columns, rows;
+	int[] cellHeads, nextInCell;
+	float[] slotX, slotY;
+	int slotCount;
+	
+	
+	/**
+	 * The constructor creates an empty grid covering a square field.
+	 *
+	 * @param fieldSize			The width and height of the field in pixels.
+	 * @param size					The width and height of a cell in pixels, at least the largest query radius
+	 *														works best.
+	 */
+	public SpatialGrid(int fieldSize, int size) {
+		cellSize = Math.max(1, size);
+		columns = fieldSize / cellSize + 1;
+		rows = columns;
+		cellHeads = new int[columns * rows];
+		nextInCell = new int[16];
+		slotX = new float[16];
+		slotY = new float[16];
+		Arrays.fill(cellHeads, -1);
+	}
+	
+	
+	/**
+	 * Rebuild the grid from the current player positions.
+	 *
+	 * @param players				The player list, may hold null slots.
+	 */
+	public void rebuild(List<Player> players) {
+		Arrays.fill(cellHeads, -1);
+		slotCount = players.size();
+		
+		// grow the per slot arrays when the player list grows
+		if (slotCount > nextInCell.length) {
+			int length = Math.max(slotCount, nextInCell.length * 2);
+			nextInCell = new int[length];
+			slotX = new float[length];
+			slotY = new float[length];
+		}
+		
+		for (int slot = 0; slot < slotCount; slot++) {
+			Player player = players.get(slot);
+			if (player == null) continue;
+			
+			slotX[slot] = player.currentX;
+			slotY[slot] = player.currentY;
+			
+			// link the slot in at the head of its cell
+			int cell = cellRow(player.currentY) * columns + cellColumn(player.currentX);
+			nextInCell[slot] = cellHeads[cell];
+			cellHeads[cell] = slot;
+		}
+	}
+	
+	
+	/**
+	 * Find the lowest player slot within a distance of a point, skipping one slot.
+	 *
+	 * @param x							The x coordinate of the point.
+	 * @param y							The y coordinate of the point.
+	 * @param radius				Slots closer than this distance are found.
+	 * @param skipSlot			A slot to ignore, usually the player at the point.
+	 * @return							The lowest slot found or -1 if there are none.
+	 */
+	public int lowestNear(float x, float y, float radius, int skipSlot) {
+		int lowest = -1;
+		float radiusSquared = radius * radius;
+		
+		int firstColumn = cellColumn(x - radius), lastColumn = cellColumn(x + radius);
+		int firstRow = cellRow(y - radius), lastRow = cellRow(y + radius);
+		
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				for (int slot = cellHeads[row * columns + column]; slot >= 0; slot = nextInCell[slot]) {
+					if (slot == skipSlot || (lowest >= 0 && slot > lowest)) continue;
+					
+					float dx = slotX[slot] - x, dy = slotY[slot] - y;
+					if (dx * dx + dy * dy < radiusSquared) lowest = slot;
+				}
+			}
+		}
+		
+		return lowest;
+	}
+	
+	
+	/**
+	 * Find the player slots inside a square region, a slot on the left or top edge is inside and one
+	 * on the right or bottom edge is not.
+	 *
+	 * @param left					The x coordinate of the left edge of the region.
+	 * @param top						The y coordinate of the top edge of the region.
+	 * @param span					The width and height of the region in pixels.
+	 * @param results				The array the slots are written into, no more slots than it holds are found.
+	 * @param offset				Where in the array the first slot is written.
+	 * @return							The number of slots found.
+	 */
+	public int queryRegion(float left, float top, int span, int[] results, int offset) {
+		int found = 0;
+		float right = left + span, bottom = top + span;
+		
+		int firstColumn = cellColumn(left), lastColumn = cellColumn(right);
+		int firstRow = cellRow(top), lastRow = cellRow(bottom);
+		
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				for (int slot = cellHeads[row * columns + column]; slot >= 0; slot = nextInCell[slot]) {
+					if (slotX[slot] >= left && slotX[slot] < right && slotY[slot] >= top && slotY[slot] < bottom) {
+						if (offset + found == results.length) return found;
+						results[offset + found++] = slot;
+					}
+				}
+			}
+		}
+		
+		return found;
+	}
+	
+	
+	/**
+	 * Rebuild the grid from the positions in a player store.
+	 *
+	 * @param state					The player store.
+	 */
+	public void rebuild(PlayerStore state) {
+		Arrays.fill(cellHeads, -1);
+		slotCount = state.present.length();
+		
+		// grow the per slot arrays when the store grows
+		if (slotCount > nextInCell.length) {
+			int length = Math.max(slotCount, nextInCell.length * 2);
+			nextInCell = new int[length];
+			slotX = new float[length];
+			slotY = new float[length];
+		}
+		
+		float[] x = state.x, y = state.y;
+		for (int slot = 0; slot < slotCount; slot++) {
+			if (!state.present.get(slot)) continue;
+			
+			slotX[slot] = x[slot];
+			slotY[slot] = y[slot];
+			
+			// link the slot in at the head of its cell
+			int cell = cellRow(y[slot]) * columns + cellColumn(x[slot]);
+			nextInCell[slot] = cellHeads[cell];
+			cellHeads[cell] = slot;
+		}
+	}
+	
+	
+	// the column of the cell holding an x coordinate, clamped to the grid
+	private int cellColumn(float x) {
+		return Math.max(0, Math.min(columns - 1, (int)(x / cellSize)));
+	}
+	
+	
+	// the row of the cell holding a y coordinate, clamped to the grid
+	private int cellRow(float y) {
+		return Math.max(0, Math.min(rows - 1, (int)(y / cellSize)));
+	}
+}
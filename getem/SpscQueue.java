@@ -0,0 +1,105 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package getem;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * The SpscQueue is a bounded lock-free queue for exactly one producer thread and one consumer
+ * thread. It links the stages of the communication pipeline so neither stage ever blocks the
+ * other, a full queue is reported to the producer instead.
+ *
+ * The producer writes an element and then publishes it by moving the tail index forward, the
+ * consumer reads the element and then frees the slot by moving the head index forward.
+ *
+ * @author			Bryan Nielsen
+ */
+class SpscQueue<E> {
+	final Object[] elements;
+	final int mask;
+	final AtomicLong head, tail;
+	
+	
+	/**
+	 * The constructor creates an empty queue. The capacity is rounded up to a power of two.
+	 *
+	 * @param capacity			The least number of elements the queue can hold.
+	 */
+	public SpscQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		
+		elements = new Object[size];
+		mask = size - 1;
+		head = new AtomicLong(0);
+		tail = new AtomicLong(0);
+	}
+	
+	
+	/**
+	 * Add an element to the queue. Only the producer thread may call this function.
+	 *
+	 * @param element			The element to add, must not be null.
+	 * @return						A boolean is returned noting false if the queue is full.
+	 */
+	public boolean offer(E element) {
+		long currentTail = tail.get();
+		if (currentTail - head.get() >= elements.length) return false;
+		
+		elements[(int)currentTail & mask] = element;
+		tail.lazySet(currentTail + 1);
+		return true;
+	}
+	
+	
+	/**
+	 * Remove the oldest element from the queue. Only the consumer thread may call this function.
+	 *
+	 * @return						The oldest element or null if the queue is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		long currentHead = head.get();
+		if (currentHead >= tail.get()) return null;
+		
+		int index = (int)currentHead & mask;
+		E element = (E)elements[index];
+		elements[index] = null;
+		head.lazySet(currentHead + 1);
+		return element;
+	}
+	
+	
+	/**
+	 * Determine if the queue is empty. The answer may be out of date as soon as it is returned.
+	 *
+	 * @return						A boolean is returned noting true if the queue holds no elements.
+	 */
+	public boolean isEmpty() {
+		return head.get() >= tail.get();
+	}
+}
@@ -0,0 +1,168 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package getem;
+
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * The TickScheduler keeps a fixed simulation timestep and a separate network send rate
+ * on a System.nanoTime() time line. Deadlines are absolute so the time spent doing the
+ * work of a tick does not push later ticks back and the rate does not drift.
+ *
+ * Catch up policy: when the caller falls behind, up to maximumCatchUpTicks simulation
+ * ticks are run back to back to catch up. Any ticks beyond that are dropped and the
+ * time line is moved forward to now, so an overloaded server slows the game down rather
+ * than spiralling. Network sends never catch up, a late send is done once and the
+ * missed send slots are skipped.
+ *
+ * @author			Bryan Nielsen
+ */
+class TickScheduler {
+	// declare variables
+	int simulationRateHz, sendRateHz, maximumCatchUpTicks;
+	long simulationPeriodNS, sendPeriodNS;
+	long nextSimulationNS, nextSendNS;
+	long simulationTicks, droppedTicks;
+
+
+	/**
+	 * The constructor sets the simulation and send rates used by the scheduler.
+	 *
+	 * @param simulationHz				The number of simulation ticks per second.
+	 * @param sendHz							The number of network sends per second.
+	 * @param catchUpTicks				The most simulation ticks that may be run back to back
+	 *																when behind schedule before ticks are dropped.
+	 */
+	public TickScheduler(int simulationHz, int sendHz, int catchUpTicks) {
+		simulationRateHz = Math.max(1, simulationHz);
+		sendRateHz = Math.max(1, sendHz);
+		maximumCatchUpTicks = Math.max(1, catchUpTicks);
+
+		simulationPeriodNS = 1000000000L / simulationRateHz;
+		sendPeriodNS = 1000000000L / sendRateHz;
+
+		reset();
+	}
+
+
+	/**
+	 * Restart the time line from now. Used when a game is started or joined so the
+	 * time spent idle is not treated as missed ticks.
+	 */
+	public void reset() {
+		long now = System.nanoTime();
+		nextSimulationNS = now + simulationPeriodNS;
+		nextSendNS = now + sendPeriodNS;
+		simulationTicks = 0;
+		droppedTicks = 0;
+	}
+
+
+	/**
+	 * Determine how many simulation ticks are due at this time and advance the time line
+	 * past them. If more than the catch up limit are due then the excess ticks are dropped.
+	 *
+	 * @return				The number of simulation ticks the caller should run now.
+	 */
+	public int simulationTicksDue() {
+		long now = System.nanoTime();
+		if (now - nextSimulationNS < 0) return 0;
+
+		// number of whole periods that have elapsed since the tick was due
+		long due = 1 + (now - nextSimulationNS) / simulationPeriodNS;
+
+		if (due > maximumCatchUpTicks) {
+			// too far behind, run what we can and drop the rest
+			droppedTicks += due - maximumCatchUpTicks;
+			nextSimulationNS = now + simulationPeriodNS;
+			due = maximumCatchUpTicks;
+		}
+		else {
+			nextSimulationNS += due * simulationPeriodNS;
+		}
+
+		simulationTicks += due;
+		return (int)due;
+	}
+
+
+	/**
+	 * Determine if a network send is due at this time. Missed send slots are skipped.
+	 *
+	 * @return				A boolean is returned noting true if the caller should send now.
+	 */
+	public boolean sendDue() {
+		long now = System.nanoTime();
+		if (now - nextSendNS < 0) return false;
+
+		// move to the next send slot after now on the send time line
+		nextSendNS += (1 + (now - nextSendNS) / sendPeriodNS) * sendPeriodNS;
+		return true;
+	}
+
+
+	/**
+	 * Get the number of nanoseconds until the next simulation tick or send is due.
+	 *
+	 * @return				The nanoseconds to wait, zero if something is already due.
+	 */
+	public long nanosUntilNextEvent() {
+		long now = System.nanoTime();
+		long wait = Math.min(nextSimulationNS - now, nextSendNS - now);
+		return Math.max(0, wait);
+	}
+
+
+	/**
+	 * Park the calling thread until the next simulation tick or send is due.
+	 */
+	public void waitForNextEvent() {
+		long wait = nanosUntilNextEvent();
+		if (wait > 0) LockSupport.parkNanos(wait);
+	}
+
+
+	/**
+	 * Get the simulation time in milliseconds since the scheduler was reset, the time of the
+	 * game state after the ticks run so far.
+	 *
+	 * @return				The simulation time in milliseconds.
+	 */
+	public int getSimulationMillis() {
+		return (int)(simulationTicks * 1000 / simulationRateHz);
+	}
+	
+	
+	/**
+	 * Get the length of one simulation tick in seconds for use by the movement code.
+	 *
+	 * @return				The simulation timestep in seconds.
+	 */
+	public float getSimulationSeconds() {
+		return 1.0f / simulationRateHz;
+	}
+}
@@ -0,0 +1,432 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package getem;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+
+/**
+ * The TrailGrid is the trail field of a game, the colored trails the players leave behind them
+ * and the invisible players erase, kept as a grid of cells that each hold the color index of the
+ * trail plus one, or 0 for an empty cell. The server draws the players into its grid as they move
+ * and sends the grid to the clients, so every client sees the same trails however late it joined
+ * or however often its window was cleared.
+ *
+ * The cells are CELL_SIZE pixels square and are kept a chunk of CHUNK_CELLS by CHUNK_CELLS cells at
+ * a time. Each chunk keeps the version of the grid it last changed at, and the version moves on
+ * when the grid is read after a change, so a reader that remembers the version it last saw can
+ * tell which chunks have changed since. Clearing the grid is a version of its own so a reader from
+ * before the clear can be told to clear rather than be sent every chunk.
+ *
+ * A trail section, as sent in join accepts and players frames, is the flags (1 byte, SYNC and
+ * CLEAR), the chunk count (2 bytes) and the chunks. Each chunk is its index (2 bytes), the size of
+ * its palette (1 byte), the palette of cell values it uses (2 bytes each), the run count (1 byte)
+ * and the runs. With a palette of up to PACKED_PALETTE values a run is 1 byte, the palette index
+ * in the high 4 bits and the run length less one in the low 4 bits, with a larger palette a run is
+ * the palette index and the run length less one (1 byte each). The runs fill the chunk row by row
+ * from its first cell and the cells after the last run are empty.
+ *
+ * Only the thread that owns the game may use a trail grid.
+ *
+ * @author			Bryan Nielsen
+ */
+class TrailGrid {
+	// cell and chunk sizes
+	static final int CELL_SIZE = 2;
+	static final int CHUNK_CELLS = 8;
+	static final int CHUNK_AREA = CHUNK_CELLS * CHUNK_CELLS;
+	static final int CHUNK_PIXELS = CHUNK_CELLS * CELL_SIZE;
+	static final int MAXIMUM_CHUNK_BYTES = 4 + CHUNK_AREA * 4;
+	
+	// the largest palette whose runs are packed into a byte each
+	static final int PACKED_PALETTE = 16;
+	
+	// trail section flags, the sender keeps the trail and the reader must clear its trail first
+	static final int SYNC = 1;
+	static final int CLEAR = 2;
+	
+	// a player that has moved further than this since it was last drawn has jumped and is drawn
+	// at its new position without a trail across the field
+	static final float MAXIMUM_SEGMENT = 64;
+	
+	int fieldWidth, fieldHeight, columns, rows, chunkColumns, chunkRows, chunkCount;
+	short[] cells;
+	int[] chunkVersion, chunkFilled;
+	int version, clearVersion;
+	boolean changed;
+	
+	// the runs of each chunk as last encoded and the chunk version they were encoded at
+	ByteBuffer[] chunkRuns;
+	int[] encodedVersion, palette;
+	
+	// where each slot was last drawn and the cell value it was drawn with
+	float[] penX, penY;
+	int[] penValue;
+	boolean[] penDown;
+	
+	
+	/**
+	 * The constructor creates an empty grid covering the field.
+	 *
+	 * @param width						The width of the field in pixels.
+	 * @param height					The height of the field in pixels.
+	 */
+	public TrailGrid(int width, int height) {
+		fieldWidth = width;
+		fieldHeight = height;
+		columns = (width + CELL_SIZE - 1) / CELL_SIZE;
+		rows = (height + CELL_SIZE - 1) / CELL_SIZE;
+		chunkColumns = (columns + CHUNK_CELLS - 1) / CHUNK_CELLS;
+		chunkRows = (rows + CHUNK_CELLS - 1) / CHUNK_CELLS;
+		chunkCount = chunkColumns * chunkRows;
+		
+		cells = new short[chunkCount * CHUNK_AREA];
+		chunkVersion = new int[chunkCount];
+		chunkFilled = new int[chunkCount];
+		chunkRuns = new ByteBuffer[chunkCount];
+		encodedVersion = new int[chunkCount];
+		Arrays.fill(encodedVersion, -1);
+		palette = new int[CHUNK_AREA];
+		version = 0;
+		clearVersion = 0;
+		changed = false;
+		growPens(16);
+	}
+	
+	
+	// grow the pen arrays to hold at least the given number of slots
+	private void growPens(int slots) {
+		if (penDown != null && penDown.length >= slots) return;
+		
+		int length = Math.max(slots, penDown == null ? 0 : penDown.length * 2);
+		penX = penDown == null ? new float[length] : Arrays.copyOf(penX, length);
+		penY = penDown == null ? new float[length] : Arrays.copyOf(penY, length);
+		penValue = penDown == null ? new int[length] : Arrays.copyOf(penValue, length);
+		penDown = penDown == null ? new boolean[length] : Arrays.copyOf(penDown, length);
+	}
+	
+	
+	/**
+	 * Get the version of the grid as it is now, any later change is given a newer version. Read
+	 * the version before reading the chunk versions.
+	 *
+	 * @return								The grid version.
+	 */
+	public int currentVersion() {
+		if (changed) {
+			version += 1;
+			changed = false;
+		}
+		return version;
+	}
+	
+	
+	// mark a chunk changed, the change belongs to the next version
+	private void touch(int chunk) {
+		chunkVersion[chunk] = version + 1;
+		changed = true;
+	}
+	
+	
+	/**
+	 * Empty every cell. A reader from before the clear is told to clear its own trail.
+	 */
+	public void clear() {
+		for (int chunk = 0; chunk < chunkCount; chunk++) {
+			if (chunkFilled[chunk] == 0) continue;
+			
+			Arrays.fill(cells, chunk * CHUNK_AREA, (chunk + 1) * CHUNK_AREA, (short)0);
+			chunkFilled[chunk] = 0;
+			touch(chunk);
+		}
+		
+		changed = true;
+		clearVersion = version + 1;
+		Arrays.fill(penDown, false);
+	}
+	
+	
+	/**
+	 * Draw a player into the grid from where it was last drawn, a visible player leaves a trail of
+	 * its color and an invisible player erases. The player is drawn as the game has always drawn
+	 * it, a circle the player radius across with its corner the radius in from the position.
+	 *
+	 * @param slot						The player slot.
+	 * @param x								The x coordinate of the player.
+	 * @param y								The y coordinate of the player.
+	 * @param radius					The player radius.
+	 * @param colorIndex			The player color index.
+	 * @param visible					True if the player is visible.
+	 */
+	public void draw(int slot, float x, float y, int radius, int colorIndex, boolean visible) {
+		growPens(slot + 1);
+		int value = visible ? colorIndex + 1 : 0;
+		
+		// nothing to draw for a player that has not moved or changed
+		if (penDown[slot] && x == penX[slot] && y == penY[slot] && value == penValue[slot]) return;
+		
+		// step along the way a cell at a time so the trail has no gaps
+		float dx = x - penX[slot], dy = y - penY[slot];
+		int steps = 0;
+		if (penDown[slot] && Math.abs(dx) <= MAXIMUM_SEGMENT && Math.abs(dy) <= MAXIMUM_SEGMENT) {
+			steps = (int)Math.ceil(Math.max(Math.abs(dx), Math.abs(dy)) / CELL_SIZE);
+		}
+		for (int step = 1; step < steps; step++) stamp(penX[slot] + dx * step / steps, penY[slot] + dy * step / steps, radius, value);
+		stamp(x, y, radius, value);
+		
+		penDown[slot] = true;
+		penX[slot] = x;
+		penY[slot] = y;
+		penValue[slot] = value;
+	}
+	
+	
+	/**
+	 * Forget where a slot was last drawn, its next draw starts a new trail. Used when the slot is
+	 * emptied or its player jumps.
+	 *
+	 * @param slot						The player slot.
+	 */
+	public void liftPen(int slot) {
+		if (slot < penDown.length) penDown[slot] = false;
+	}
+	
+	
+	// set the cells whose centres fall inside a player's circle
+	private void stamp(float x, float y, int radius, int value) {
+		float half = radius * 0.5f;
+		float centreX = (int)x + radius + half, centreY = (int)y + radius + half;
+		int left = Math.max(0, (int)((centreX - half) / CELL_SIZE)), right = Math.min(columns - 1, (int)((centreX + half) / CELL_SIZE));
+		int top = Math.max(0, (int)((centreY - half) / CELL_SIZE)), bottom = Math.min(rows - 1, (int)((centreY + half) / CELL_SIZE));
+		
+		for (int row = top; row <= bottom; row++) {
+			float offsetY = row * CELL_SIZE + CELL_SIZE * 0.5f - centreY;
+			
+			for (int column = left; column <= right; column++) {
+				float offsetX = column * CELL_SIZE + CELL_SIZE * 0.5f - centreX;
+				if (offsetX * offsetX + offsetY * offsetY > half * half) continue;
+				
+				int chunk = (row / CHUNK_CELLS) * chunkColumns + column / CHUNK_CELLS;
+				setCell(chunk, (row % CHUNK_CELLS) * CHUNK_CELLS + column % CHUNK_CELLS, value);
+			}
+		}
+	}
+	
+	
+	// set one cell of a chunk, keeping the count of filled cells
+	private void setCell(int chunk, int offset, int value) {
+		int index = chunk * CHUNK_AREA + offset;
+		int old = cells[index] & 0xffff;
+		if (old == value) return;
+		
+		if (old == 0) chunkFilled[chunk] += 1;
+		else if (value == 0) chunkFilled[chunk] -= 1;
+		
+		cells[index] = (short)value;
+		touch(chunk);
+	}
+	
+	
+	/**
+	 * Get the runs of a chunk, encoded again if the chunk has changed since they were last
+	 * encoded. The version must have been read since the chunk last changed.
+	 *
+	 * @param chunk						The chunk index.
+	 * @return								The encoded chunk from position 0 to the limit.
+	 */
+	public ByteBuffer encodeChunk(int chunk) {
+		ByteBuffer runs = chunkRuns[chunk];
+		if (runs != null && encodedVersion[chunk] == chunkVersion[chunk]) return runs;
+		
+		if (runs == null) runs = chunkRuns[chunk] = ByteBuffer.allocate(MAXIMUM_CHUNK_BYTES);
+		
+		// the cells up to the last filled cell and the palette of values they use
+		int start = chunk * CHUNK_AREA, end = start + CHUNK_AREA, paletteSize = 0;
+		while (end > start && cells[end - 1] == 0) end -= 1;
+		for (int index = start; index < end; index++) {
+			if (paletteIndex(cells[index], paletteSize) < 0) palette[paletteSize++] = cells[index];
+		}
+		
+		runs.clear();
+		runs.putShort((short)chunk);
+		runs.put((byte)paletteSize);
+		for (int entry = 0; entry < paletteSize; entry++) runs.putShort((short)palette[entry]);
+		int countPosition = runs.position(), runCount = 0;
+		runs.put((byte)0);
+		
+		boolean packed = paletteSize <= PACKED_PALETTE;
+		int longest = packed ? 16 : 256;
+		for (int index = start; index < end; ) {
+			int value = cells[index], length = 1;
+			while (index + length < end && length < longest && cells[index + length] == value) length += 1;
+			
+			int entry = paletteIndex(value, paletteSize);
+			if (packed) runs.put((byte)(entry << 4 | (length - 1)));
+			else {
+				runs.put((byte)entry);
+				runs.put((byte)(length - 1));
+			}
+			runCount += 1;
+			index += length;
+		}
+		
+		runs.put(countPosition, (byte)runCount);
+		runs.flip();
+		encodedVersion[chunk] = chunkVersion[chunk];
+		return runs;
+	}
+	
+	
+	// the index of a value in the first entries of the palette, -1 if it is not there
+	private int paletteIndex(int value, int paletteSize) {
+		for (int entry = 0; entry < paletteSize; entry++) {
+			if (palette[entry] == value) return entry;
+		}
+		return -1;
+	}
+	
+	
+	/**
+	 * Copy the trail into a snapshot for the send stage, every chunk that holds a trail or has
+	 * changed since the last clear encoded with the version it last changed at. The chunks that
+	 * have not changed keep the runs encoded for an earlier snapshot.
+	 *
+	 * @param snapshot				The snapshot to fill.
+	 */
+	public void copyTo(SnapshotHistory.Snapshot snapshot) {
+		snapshot.resetTrail(currentVersion(), clearVersion, chunkColumns, chunkCount);
+		
+		for (int chunk = 0; chunk < chunkCount; chunk++) {
+			if (chunkFilled[chunk] == 0 && chunkVersion[chunk] - clearVersion <= 0) continue;
+			
+			ByteBuffer runs = encodeChunk(chunk);
+			snapshot.addTrailChunk(chunk, runs.array(), runs.limit(), chunkVersion[chunk], chunkFilled[chunk] > 0);
+		}
+	}
+	
+	
+	/**
+	 * Build a trail section of the whole grid, the field is cleared and every chunk that holds
+	 * a trail is sent.
+	 *
+	 * @return								The trail section.
+	 */
+	public byte[] getImage() {
+		return getImage(0, 0, fieldWidth, fieldHeight);
+	}
+	
+	
+	/**
+	 * Build a trail section of a region of the grid, the field is cleared and every chunk in the
+	 * region that holds a trail is sent.
+	 *
+	 * @param left						The left of the region in pixels.
+	 * @param top							The top of the region in pixels.
+	 * @param right						The right of the region in pixels.
+	 * @param bottom					The bottom of the region in pixels.
+	 * @return								The trail section.
+	 */
+	public byte[] getImage(int left, int top, int right, int bottom) {
+		currentVersion();
+		int firstColumn = Math.max(0, Math.floorDiv(left, CHUNK_PIXELS)), lastColumn = Math.min(chunkColumns - 1, Math.floorDiv(right - 1, CHUNK_PIXELS));
+		int firstRow = Math.max(0, Math.floorDiv(top, CHUNK_PIXELS)), lastRow = Math.min(chunkRows - 1, Math.floorDiv(bottom - 1, CHUNK_PIXELS));
+		
+		int size = 3, count = 0;
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				int chunk = row * chunkColumns + column;
+				if (chunkFilled[chunk] == 0) continue;
+				size += encodeChunk(chunk).limit();
+				count += 1;
+			}
+		}
+		
+		ByteBuffer image = ByteBuffer.allocate(size);
+		image.put((byte)(SYNC | CLEAR));
+		image.putShort((short)count);
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				int chunk = row * chunkColumns + column;
+				if (chunkFilled[chunk] > 0) image.put(chunkRuns[chunk].array(), 0, chunkRuns[chunk].limit());
+			}
+		}
+		
+		return image.array();
+	}
+	
+	
+	/**
+	 * Apply a trail section from the server, clearing the grid first if the section says to. A
+	 * chunk that does not fit the grid is skipped and a section cut short is applied as far as it goes.
+	 *
+	 * @param section					The trail section, read from its position to its limit.
+	 * @return								True if the section is from a server that keeps the trail.
+	 */
+	public boolean apply(ByteBuffer section) {
+		if (section.remaining() < 3) return false;
+		
+		int flags = section.get() & 0xff;
+		int count = section.getShort() & 0xffff;
+		if ((flags & SYNC) == 0) return false;
+		if ((flags & CLEAR) != 0) clear();
+		
+		for (int index = 0; index < count && section.remaining() >= 3; index++) {
+			int chunk = section.getShort() & 0xffff;
+			int paletteSize = section.get() & 0xff;
+			if (paletteSize > CHUNK_AREA || section.remaining() < paletteSize * 2 + 1) break;
+			
+			for (int entry = 0; entry < paletteSize; entry++) palette[entry] = section.getShort() & 0xffff;
+			boolean packed = paletteSize <= PACKED_PALETTE;
+			int runCount = section.get() & 0xff, runBytes = packed ? runCount : runCount * 2;
+			if (section.remaining() < runBytes) break;
+			
+			if (chunk >= chunkCount) {
+				section.position(section.position() + runBytes);
+				continue;
+			}
+			
+			int offset = 0;
+			for (int run = 0; run < runCount; run++) {
+				int entry, length;
+				if (packed) {
+					int packedRun = section.get() & 0xff;
+					entry = packedRun >>> 4;
+					length = (packedRun & 15) + 1;
+				}
+				else {
+					entry = section.get() & 0xff;
+					length = (section.get() & 0xff) + 1;
+				}
+				
+				int value = entry < paletteSize ? palette[entry] : 0;
+				for (int end = Math.min(CHUNK_AREA, offset + length); offset < end; offset++) setCell(chunk, offset, value);
+			}
+			for (; offset < CHUNK_AREA; offset++) setCell(chunk, offset, 0);
+		}
+		
+		return true;
+	}
+}
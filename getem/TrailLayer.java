@@ -0,0 +1,290 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package getem;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.*;
+
+
+/**
+ * The TrailLayer keeps the colored trails of the part of the field in view in an off screen
+ * image so they survive anything that happens to the window, and draws the players over them. The
+ * trails are drawn from the trail cells of the world snapshots, only the chunks of cells that
+ * changed or came into view since they were last drawn. The players are drawn straight to the
+ * screen at their latest positions over the trails copied from the image. The bounds of each
+ * changed chunk and of where each player was and is now are kept as dirty rectangles, and only
+ * those are copied to the screen. When the camera moves the whole view is copied.
+ *
+ * The image is a ring of chunks the same shape as the ring in the world snapshot, each chunk
+ * drawn at its place in the ring, so a scrolling camera only draws the chunks coming into view
+ * and copies the view from the ring in up to four pieces.
+ *
+ * The cost of a frame depends on how much of the trail in view changed and how many players
+ * moved, not on the size of the field or the length of the trails. Only the thread that draws
+ * the field may use a trail layer, the AWT event thread or the render loop.
+ *
+ * @author			Bryan Nielsen
+ */
+class TrailLayer {
+	static final Color BACKGROUND = new Color(0, 0, 0);
+	
+	// past this many dirty rectangles in a frame the whole view is copied instead
+	static final int MAXIMUM_DIRTY = 64;
+	
+	BufferedImage image;
+	Graphics2D graphics;
+	int width, height, ringColumns, ringRows;
+	
+	// the camera as last drawn, the chunks of the field drawn for and the chunk and its version
+	// as last drawn at each place in the ring
+	int cameraX, cameraY, chunkColumns, chunkRows;
+	int[] drawnChunks, drawnVersions;
+	
+	// where each slot's circle was last drawn on the screen, its corner and size
+	int[] spriteX, spriteY, spriteSize, spriteColor;
+	boolean[] spriteShown;
+	int spriteCount;
+	
+	// the rectangles of the screen changed since the last copy to the screen
+	int[] dirtyX, dirtyY, dirtyWidth, dirtyHeight;
+	int dirtyCount;
+	boolean allDirty;
+	
+	
+	/**
+	 * The constructor creates a cleared view.
+	 *
+	 * @param viewSize				The width and height of the view in pixels.
+	 */
+	public TrailLayer(int viewSize) {
+		width = viewSize;
+		height = viewSize;
+		
+		// the same ring as the world snapshots
+		ringColumns = ringRows = WorldSnapshot.ringSize(viewSize);
+		image = new BufferedImage(ringColumns * TrailGrid.CHUNK_PIXELS, ringRows * TrailGrid.CHUNK_PIXELS, BufferedImage.TYPE_INT_RGB);
+		graphics = image.createGraphics();
+		graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+		graphics.setColor(BACKGROUND);
+		graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+		
+		drawnChunks = new int[ringColumns * ringRows];
+		drawnVersions = new int[ringColumns * ringRows];
+		Arrays.fill(drawnChunks, -1);
+		
+		dirtyX = new int[MAXIMUM_DIRTY];
+		dirtyY = new int[MAXIMUM_DIRTY];
+		dirtyWidth = new int[MAXIMUM_DIRTY];
+		dirtyHeight = new int[MAXIMUM_DIRTY];
+		spriteCount = 0;
+		grow(16);
+		allDirty = true;
+	}
+	
+	
+	// grow the slot arrays to hold at least the given number of slots
+	private void grow(int slots) {
+		if (spriteShown != null && spriteShown.length >= slots) return;
+		
+		int length = Math.max(slots, spriteShown == null ? 0 : spriteShown.length * 2);
+		spriteX = spriteShown == null ? new int[length] : Arrays.copyOf(spriteX, length);
+		spriteY = spriteShown == null ? new int[length] : Arrays.copyOf(spriteY, length);
+		spriteSize = spriteShown == null ? new int[length] : Arrays.copyOf(spriteSize, length);
+		spriteColor = spriteShown == null ? new int[length] : Arrays.copyOf(spriteColor, length);
+		spriteShown = spriteShown == null ? new boolean[length] : Arrays.copyOf(spriteShown, length);
+	}
+	
+	
+	/**
+	 * Draw the trail chunks of a world snapshot that changed or came into view into the ring and
+	 * note where the players have moved on the screen.
+	 *
+	 * @param world						The world snapshot.
+	 */
+	public void update(WorldSnapshot world) {
+		// a new field starts the ring again
+		if (world.chunkColumns != chunkColumns || world.chunkRows != chunkRows) {
+			chunkColumns = world.chunkColumns;
+			chunkRows = world.chunkRows;
+			Arrays.fill(drawnChunks, -1);
+			graphics.setColor(BACKGROUND);
+			graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+			allDirty = true;
+		}
+		
+		if (world.cameraX != cameraX || world.cameraY != cameraY) {
+			cameraX = world.cameraX;
+			cameraY = world.cameraY;
+			allDirty = true;
+		}
+		
+		for (int row = world.firstRow; row <= world.lastRow; row++) {
+			for (int column = world.firstColumn; column <= world.lastColumn; column++) {
+				int chunk = row * chunkColumns + column, place = world.ringPlace(column, row);
+				if (drawnChunks[place] == chunk && drawnVersions[place] == world.ringVersions[place]) continue;
+				
+				drawChunk(world, place, column, row);
+				drawnChunks[place] = chunk;
+				drawnVersions[place] = world.ringVersions[place];
+			}
+		}
+		
+		// the visible players are drawn as circles, the size of the radius with the corner the radius in from the position
+		grow(world.playerCount);
+		for (int slot = 0; slot < Math.max(spriteCount, world.playerCount); slot++) {
+			boolean shown = slot < world.playerCount && world.present[slot] && world.visible[slot];
+			int size = shown ? world.radius[slot] : 0;
+			int x = shown ? (int)world.x[slot] + size - cameraX : 0, y = shown ? (int)world.y[slot] + size - cameraY : 0;
+			int color = shown ? world.colorIndex[slot] : 0;
+			if (shown == spriteShown[slot] && x == spriteX[slot] && y == spriteY[slot] && size == spriteSize[slot] && color == spriteColor[slot]) continue;
+			
+			if (spriteShown[slot]) addDirty(spriteX[slot] - 1, spriteY[slot] - 1, spriteSize[slot] + 2, spriteSize[slot] + 2);
+			if (shown) addDirty(x - 1, y - 1, size + 2, size + 2);
+			
+			spriteShown[slot] = shown;
+			spriteX[slot] = x;
+			spriteY[slot] = y;
+			spriteSize[slot] = size;
+			spriteColor[slot] = color;
+		}
+		spriteCount = world.playerCount;
+	}
+	
+	
+	// draw one chunk of trail cells at its place in the ring, each row as runs of the same color
+	private void drawChunk(WorldSnapshot world, int place, int column, int row) {
+		int left = (column % ringColumns) * TrailGrid.CHUNK_PIXELS, top = (row % ringRows) * TrailGrid.CHUNK_PIXELS;
+		graphics.setColor(BACKGROUND);
+		graphics.fillRect(left, top, TrailGrid.CHUNK_PIXELS, TrailGrid.CHUNK_PIXELS);
+		
+		int first = place * TrailGrid.CHUNK_AREA;
+		for (int cellRow = 0; cellRow < TrailGrid.CHUNK_CELLS; cellRow++) {
+			int rowStart = first + cellRow * TrailGrid.CHUNK_CELLS;
+			
+			for (int cellColumn = 0; cellColumn < TrailGrid.CHUNK_CELLS; ) {
+				int value = world.trailCells[rowStart + cellColumn], length = 1;
+				while (cellColumn + length < TrailGrid.CHUNK_CELLS && world.trailCells[rowStart + cellColumn + length] == value) length += 1;
+				
+				if (value != 0) {
+					graphics.setColor(PlayerPalette.getColor(value - 1));
+					graphics.fillRect(left + cellColumn * TrailGrid.CELL_SIZE, top + cellRow * TrailGrid.CELL_SIZE, length * TrailGrid.CELL_SIZE, TrailGrid.CELL_SIZE);
+				}
+				cellColumn += length;
+			}
+		}
+		
+		addDirty(column * TrailGrid.CHUNK_PIXELS - cameraX, row * TrailGrid.CHUNK_PIXELS - cameraY, TrailGrid.CHUNK_PIXELS, TrailGrid.CHUNK_PIXELS);
+	}
+	
+	
+	// add a dirty rectangle of the screen, clipped to the view
+	private void addDirty(int x, int y, int w, int h) {
+		if (allDirty) return;
+		
+		int left = Math.max(0, x), top = Math.max(0, y);
+		int right = Math.min(width, x + w), bottom = Math.min(height, y + h);
+		if (right <= left || bottom <= top) return;
+		
+		if (dirtyCount == MAXIMUM_DIRTY) {
+			allDirty = true;
+			return;
+		}
+		
+		dirtyX[dirtyCount] = left;
+		dirtyY[dirtyCount] = top;
+		dirtyWidth[dirtyCount] = right - left;
+		dirtyHeight[dirtyCount] = bottom - top;
+		dirtyCount += 1;
+	}
+	
+	
+	// draw the players whose circles overlap a region of the screen
+	private void drawSprites(Graphics g, int x, int y, int w, int h) {
+		for (int slot = 0; slot < spriteCount; slot++) {
+			if (!spriteShown[slot]) continue;
+			if (spriteX[slot] >= x + w || spriteX[slot] + spriteSize[slot] <= x || spriteY[slot] >= y + h || spriteY[slot] + spriteSize[slot] <= y) continue;
+			
+			g.setColor(PlayerPalette.getColor(spriteColor[slot]));
+			g.fillOval(spriteX[slot], spriteY[slot], spriteSize[slot], spriteSize[slot]);
+		}
+	}
+	
+	
+	/**
+	 * Copy the dirty rectangles to the screen with the players over them and start a new frame.
+	 *
+	 * @param g								The graphics of the canvas.
+	 */
+	public void copyDirty(Graphics g) {
+		if (allDirty) {
+			copyAll(g);
+			return;
+		}
+		
+		for (int index = 0; index < dirtyCount; index++) copyRegion(g, dirtyX[index], dirtyY[index], dirtyWidth[index], dirtyHeight[index]);
+		dirtyCount = 0;
+	}
+	
+	
+	/**
+	 * Copy the whole view to the screen with the players over it and start a new frame.
+	 *
+	 * @param g								The graphics of the canvas or screen buffer.
+	 */
+	public void copyAll(Graphics g) {
+		copyRegion(g, 0, 0, width, height);
+		allDirty = false;
+		dirtyCount = 0;
+	}
+	
+	
+	/**
+	 * Copy a region of the view to the screen with the players over it. The region is copied from
+	 * the ring in pieces that do not cross the edges of the ring image.
+	 *
+	 * @param g								The graphics of the canvas.
+	 * @param x								The left of the region on the screen.
+	 * @param y								The top of the region on the screen.
+	 * @param w								The width of the region.
+	 * @param h								The height of the region.
+	 */
+	public void copyRegion(Graphics g, int x, int y, int w, int h) {
+		int ringWidth = image.getWidth(), ringHeight = image.getHeight();
+		
+		for (int top = y; top < y + h; ) {
+			int imageY = Math.floorMod(top + cameraY, ringHeight), pieceHeight = Math.min(y + h - top, ringHeight - imageY);
+			
+			for (int left = x; left < x + w; ) {
+				int imageX = Math.floorMod(left + cameraX, ringWidth), pieceWidth = Math.min(x + w - left, ringWidth - imageX);
+				g.drawImage(image, left, top, left + pieceWidth, top + pieceHeight, imageX, imageY, imageX + pieceWidth, imageY + pieceHeight, null);
+				left += pieceWidth;
+			}
+			top += pieceHeight;
+		}
+		
+		drawSprites(g, x, y, w, h);
+	}
+}
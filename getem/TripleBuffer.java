@@ -0,0 +1,100 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package getem;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The TripleBuffer hands the latest of a stream of values from one writer thread to one reader
+ * thread without either of them ever waiting. There are three buffers, the writer fills the back
+ * buffer and publishes it by swapping it with the middle buffer, and the reader swaps the middle
+ * buffer with its front buffer when something newer has been published. A buffer is only ever
+ * held by one of the two threads, so a published buffer is not changed while the reader has it
+ * and nothing is allocated after the buffers are made.
+ *
+ * The middle buffer index and a flag noting it is newer than the front buffer are kept in one
+ * atomic integer so each swap is a single atomic step.
+ *
+ * @author			Bryan Nielsen
+ */
+class TripleBuffer<T> {
+	static final int FRESH = 4;
+	
+	final Object[] buffers;
+	final AtomicInteger middle;
+	int backIndex, frontIndex;
+	
+	
+	/**
+	 * The constructor takes the three buffers, the first is the writer's, the second the middle
+	 * buffer and the third the reader's until something is published.
+	 *
+	 * @param back					The writer's first buffer.
+	 * @param spare					The first middle buffer.
+	 * @param front					The reader's first buffer.
+	 */
+	public TripleBuffer(T back, T spare, T front) {
+		buffers = new Object[] { back, spare, front };
+		backIndex = 0;
+		middle = new AtomicInteger(1);
+		frontIndex = 2;
+	}
+	
+	
+	/**
+	 * Get the buffer for the writer to fill. Only the writer thread may call this function.
+	 *
+	 * @return							The back buffer.
+	 */
+	@SuppressWarnings("unchecked")
+	public T back() {
+		return (T)buffers[backIndex];
+	}
+	
+	
+	/**
+	 * Publish the back buffer to the reader, the writer gets the old middle buffer to fill next.
+	 * Only the writer thread may call this function.
+	 */
+	public void publish() {
+		backIndex = middle.getAndSet(backIndex | FRESH) & ~FRESH;
+	}
+	
+	
+	/**
+	 * Get the latest published buffer. The buffer stays the reader's until the next call, which
+	 * may return a newer one. Only the reader thread may call this function.
+	 *
+	 * @return							The front buffer.
+	 */
+	@SuppressWarnings("unchecked")
+	public T latest() {
+		if ((middle.get() & FRESH) != 0) frontIndex = middle.getAndSet(frontIndex) & ~FRESH;
+		return (T)buffers[frontIndex];
+	}
+}
@@ -0,0 +1,191 @@
+/*
+* Copyright (C) 2013 Bryan Nielsen - All Rights Reserved
+*
+* Author: Bryan Nielsen (bnielsen1965@gmail.com)
+*
+*
+*/
+
+/*
+This file is part of GetEm.
+
+GetEm is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GetEm is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GetEm.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package getem;
+
+import java.util.*;
+
+
+/**
+ * A WorldSnapshot is everything the game window draws, taken by the communication thread from
+ * the game after it changes and handed to the thread that draws the field through a triple
+ * buffer. Once it is published it is not changed until the drawing side has moved on to a newer
+ * snapshot, so drawing never sees a player list half way through an update.
+ *
+ * The players are kept in parallel arrays by slot and the snapshots are filled in place, so
+ * publishing the world each tick allocates nothing once the arrays are large enough.
+ *
+ * The window shows the part of the field under a camera that follows our player. Only the trail
+ * chunks the camera shows are copied, into a ring of chunks just larger than the view where a
+ * chunk always has the same place, so as the camera scrolls only the chunks coming into view are
+ * copied, and otherwise only the chunks that changed since this snapshot was last filled. The
+ * cost of publishing the world depends on the size of the view, not the size of the field.
+ *
+ * @author			Bryan Nielsen
+ */
+class WorldSnapshot {
+	int playerCount, playerItIndex, meColorIndex;
+	String meName;
+	boolean[] present, visible;
+	float[] x, y;
+	int[] colorIndex, radius;
+	
+	// the size of the view and its left and top on the field
+	int viewSize, cameraX, cameraY;
+	
+	// the chunks of the trail grid and the range of them the camera shows
+	int chunkColumns, chunkRows, firstColumn, lastColumn, firstRow, lastRow;
+	
+	// the trail cells of the chunks in view as in the trail grid, chunk column c and row r kept at
+	// place (r % ringRows) * ringColumns + c % ringColumns, with the chunk at each place and its
+	// version as copied
+	short[] trailCells;
+	int[] ringChunks, ringVersions;
+	int ringColumns, ringRows;
+	
+	
+	/**
+	 * The constructor creates an empty world with no it player.
+	 *
+	 * @param size						The width and height of the view in pixels.
+	 */
+	public WorldSnapshot(int size) {
+		playerCount = 0;
+		playerItIndex = -1;
+		meName = "";
+		viewSize = size;
+		ringColumns = ringRows = ringSize(size);
+		trailCells = new short[ringColumns * ringRows * TrailGrid.CHUNK_AREA];
+		ringChunks = new int[ringColumns * ringRows];
+		ringVersions = new int[ringColumns * ringRows];
+		Arrays.fill(ringChunks, -1);
+		grow(16);
+	}
+	
+	
+	// grow the arrays to hold at least the given number of slots
+	private void grow(int slots) {
+		if (present != null && present.length >= slots) return;
+		
+		int length = Math.max(slots, present == null ? 0 : present.length * 2);
+		present = new boolean[length];
+		visible = new boolean[length];
+		x = new float[length];
+		y = new float[length];
+		colorIndex = new int[length];
+		radius = new int[length];
+	}
+	
+	
+	/**
+	 * Fill the snapshot from the game, only the thread that changes the players may call this.
+	 * The camera follows our player in the player list, or the local player if we are not in it.
+	 *
+	 * @param players					The player list, null for an empty slot.
+	 * @param itIndex					The it player index.
+	 * @param me							The local player.
+	 * @param trail						The trail grid.
+	 */
+	public void fill(List<Player> players, int itIndex, Player me, TrailGrid trail) {
+		int count = players.size();
+		grow(count);
+		
+		playerCount = count;
+		playerItIndex = itIndex;
+		meColorIndex = me.colorIndex;
+		meName = me.name;
+		
+		Player followed = me.colorIndex < count && players.get(me.colorIndex) != null ? players.get(me.colorIndex) : me;
+		cameraX = (int)Player.viewEdge(followed.currentX, viewSize, trail.fieldWidth);
+		cameraY = (int)Player.viewEdge(followed.currentY, viewSize, trail.fieldHeight);
+		copyTrail(trail);
+		
+		for (int slot = 0; slot < count; slot++) {
+			Player player = players.get(slot);
+			present[slot] = player != null;
+			if (player == null) continue;
+			
+			visible[slot] = player.isVisible;
+			x[slot] = player.currentX;
+			y[slot] = player.currentY;
+			colorIndex[slot] = player.colorIndex;
+			radius[slot] = player.playerRadius;
+		}
+	}
+	
+	
+	// copy the trail chunks in view that came into view or changed since this snapshot was last filled
+	private void copyTrail(TrailGrid trail) {
+		trail.currentVersion();
+		
+		// a new field starts the ring again
+		if (chunkColumns != trail.chunkColumns || chunkRows != trail.chunkRows) {
+			chunkColumns = trail.chunkColumns;
+			chunkRows = trail.chunkRows;
+			Arrays.fill(ringChunks, -1);
+		}
+		
+		firstColumn = cameraX / TrailGrid.CHUNK_PIXELS;
+		lastColumn = Math.min(chunkColumns - 1, (cameraX + viewSize - 1) / TrailGrid.CHUNK_PIXELS);
+		firstRow = cameraY / TrailGrid.CHUNK_PIXELS;
+		lastRow = Math.min(chunkRows - 1, (cameraY + viewSize - 1) / TrailGrid.CHUNK_PIXELS);
+		
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				int chunk = row * chunkColumns + column, place = ringPlace(column, row);
+				if (ringChunks[place] == chunk && ringVersions[place] == trail.chunkVersion[chunk]) continue;
+				
+				System.arraycopy(trail.cells, chunk * TrailGrid.CHUNK_AREA, trailCells, place * TrailGrid.CHUNK_AREA, TrailGrid.CHUNK_AREA);
+				ringChunks[place] = chunk;
+				ringVersions[place] = trail.chunkVersion[chunk];
+			}
+		}
+	}
+	
+	
+	/**
+	 * Get the number of chunk columns and rows of the ring for a view, enough for the chunks a
+	 * view covers wherever its edges fall.
+	 *
+	 * @param viewSize				The width and height of the view in pixels.
+	 * @return								The columns and rows of the ring.
+	 */
+	static int ringSize(int viewSize) {
+		return viewSize / TrailGrid.CHUNK_PIXELS + 2;
+	}
+	
+	
+	/**
+	 * Get the place in the ring of a chunk in view.
+	 *
+	 * @param column					The chunk column.
+	 * @param row							The chunk row.
+	 * @return								The place of the chunk in the ring.
+	 */
+	int ringPlace(int column, int row) {
+		return (row % ringRows) * ringColumns + column % ringColumns;
+	}
+}
@@ -0,0 +1,8 @@
+#!/bin/bash
+
+# compile getem and the benchmarks into a separate output directory
+mkdir -p bench/classes
+javac -Xlint:unchecked -d bench/classes -classpath .:getem/* getem/*.java bench/getem/*.java
+
+# run the load generator against a room server in the same JVM, the bot counts can be given as 16,64,256
+java -classpath bench/classes:getem/* getem.LoadGenerator "$@"